@@ -0,0 +1,186 @@
+package com.ccko.mhtplus;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * ArchiveStorage: how archives are kept on disk. Page archives copied or saved into the library are
+ * transcoded to an {@link MhtContainer}, with text parts deflated when compression is enabled. Anything else
+ * is stored as it is, so the WebView can still open it. Archives gzip-compressed as "&lt;name&gt;.gz" by
+ * earlier versions are never unpacked to a permanent file: readers stream them through {@link #openStream}.
+ * {@link #exportMht} turns any stored form back into a plain MHT.
+ */
+public final class ArchiveStorage {
+
+	private static final String TAG = "ArchiveStorage";
+	private static final String PREFS = "mhtplus_prefs";
+	private static final String KEY_COMPRESS = "compress_archives";
+
+	public static final String COMPRESSED_SUFFIX = ".gz";
+	private static final int STREAM_BUFFER = 64 * 1024;
+
+	private ArchiveStorage() {
+	}
+
+	public static boolean isCompressionEnabled(Context context) {
+		return context.getSharedPreferences(PREFS, Context.MODE_PRIVATE).getBoolean(KEY_COMPRESS, false);
+	}
+
+	public static void setCompressionEnabled(Context context, boolean enabled) {
+		context.getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit().putBoolean(KEY_COMPRESS, enabled).apply();
+	}
+
+	public static boolean isCompressed(File file) {
+		return file.getName().toLowerCase(Locale.US).endsWith(COMPRESSED_SUFFIX);
+	}
+
+	/**
+	 * @return the archive's name as shown to the user, as if it were a plain MHT file.
+	 */
+	public static String displayName(File file) {
+		String name = file.getName();
+		if (isCompressed(file))
+			return name.substring(0, name.length() - COMPRESSED_SUFFIX.length());
+		if (MhtContainer.isContainer(file))
+			return baseName(name.substring(0, name.length() - MhtContainer.SUFFIX.length())) + ".mht";
+		return name;
+	}
+
+	/**
+	 * @return the name without an .mht or .mhtml extension.
+	 */
+	static String baseName(String name) {
+		String lower = name.toLowerCase(Locale.US);
+		if (lower.endsWith(".mht"))
+			return name.substring(0, name.length() - 4);
+		if (lower.endsWith(".mhtml"))
+			return name.substring(0, name.length() - 6);
+		return name;
+	}
+
+	/**
+	 * Puts a freshly written MHT file into its stored form, replacing it. Files that cannot be transcoded
+	 * (documents other than page archives, or broken ones) are kept as they are: nothing could serve their
+	 * parts, so the WebView has to load the file itself, and it cannot read a compressed one.
+	 *
+	 * @return the file now holding the archive.
+	 */
+	public static File store(Context context, File mht) {
+		File container = new File(mht.getParentFile(), baseName(mht.getName()) + MhtContainer.SUFFIX);
+		try (InputStream in = openStream(mht)) {
+			if (MhtContainer.transcode(in, container, isCompressionEnabled(context))) {
+				mht.delete();
+				return container;
+			}
+		} catch (Exception e) {
+			Log.w(TAG, "Keeping " + mht.getName() + " as MHT: " + e.getMessage());
+		}
+		return mht;
+	}
+
+	/**
+	 * A plain MHT copy of a stored archive, for sharing or export. Uncompressed MHT files are returned as
+	 * they are; other forms are written to the cache's "export" folder, replacing earlier exports.
+	 */
+	public static File exportMht(Context context, File stored, String title) throws IOException {
+		if (!MhtContainer.isContainer(stored) && !isCompressed(stored))
+			return stored;
+		File dir = new File(context.getCacheDir(), "export");
+		File[] old = dir.listFiles();
+		if (old != null) {
+			for (File f : old)
+				f.delete();
+		}
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create " + dir);
+
+		File out = new File(dir, displayName(stored));
+		try (OutputStream os = new FileOutputStream(out)) {
+			if (MhtContainer.isContainer(stored)) {
+				try (MhtContainer container = MhtContainer.open(stored)) {
+					container.writeMht(os, title);
+				}
+			} else {
+				try (InputStream in = openStream(stored)) {
+					byte[] buf = new byte[STREAM_BUFFER];
+					int n;
+					while ((n = in.read(buf)) > 0)
+						os.write(buf, 0, n);
+				}
+			}
+		} catch (IOException e) {
+			out.delete();
+			throw e;
+		}
+		return out;
+	}
+
+	/**
+	 * The archive's MHT bytes, decompressed on the fly if needed. Not for containers (see
+	 * {@link MhtContainer#open}).
+	 */
+	public static InputStream openStream(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return isCompressed(file) ? new GZIPInputStream(in, STREAM_BUFFER)
+					: new BufferedInputStream(in, STREAM_BUFFER);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Uncompressed size of a compressed archive, read from the gzip trailer (ISIZE, the size modulo 4GB;
+	 * stored archives are well below that). The file's own length for uncompressed archives.
+	 */
+	public static long uncompressedSize(File file) {
+		if (!isCompressed(file))
+			return file.length();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			if (raf.length() < 4)
+				return raf.length();
+			raf.seek(raf.length() - 4);
+			long b0 = raf.read(), b1 = raf.read(), b2 = raf.read(), b3 = raf.read();
+			return b0 | (b1 << 8) | (b2 << 16) | (b3 << 24);
+		} catch (IOException e) {
+			return file.length();
+		}
+	}
+
+	/**
+	 * @return the size of a stored archive as a plain MHT file, e.g. to show what storing it saved.
+	 */
+	public static long originalSize(File file) {
+		if (isCompressed(file))
+			return uncompressedSize(file);
+		if (MhtContainer.isContainer(file)) {
+			long size = MhtContainer.originalSize(file);
+			return size >= 0 ? size : file.length();
+		}
+		return file.length();
+	}
+
+	/**
+	 * Human-readable size, e.g. "12.3 MB".
+	 */
+	public static String formatSize(long bytes) {
+		if (bytes >= 1024L * 1024 * 1024)
+			return String.format(Locale.US, "%.1f GB", bytes / (1024.0 * 1024 * 1024));
+		if (bytes >= 1024L * 1024)
+			return String.format(Locale.US, "%.1f MB", bytes / (1024.0 * 1024));
+		return (bytes / 1024) + " KB";
+	}
+}
@@ -0,0 +1,97 @@
+package com.ccko.mhtplus;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * BitmapPool: keeps released bitmaps for reuse, so screenshots and OCR crops of the same (or a smaller)
+ * size stop allocating a fresh buffer every time. Bounded by total bytes; bitmaps that do not fit are
+ * recycled instead.
+ */
+public class BitmapPool {
+
+	private final long maxBytes;
+	private final List<Bitmap> free = new ArrayList<>();
+	private long bytes;
+
+	public BitmapPool(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return a mutable bitmap of the given size and config; its pixels are undefined, so draw over all of
+	 *         them or erase it first.
+	 */
+	public synchronized Bitmap acquire(int width, int height, Bitmap.Config config) {
+		long needed = (long) width * height * bytesPerPixel(config);
+		Bitmap best = null;
+		for (Bitmap b : free) {
+			// Exact match first; otherwise the smallest buffer that can be reconfigured to the size
+			if (b.getWidth() == width && b.getHeight() == height && b.getConfig() == config) {
+				best = b;
+				break;
+			}
+			if (b.getAllocationByteCount() >= needed
+					&& (best == null || b.getAllocationByteCount() < best.getAllocationByteCount()))
+				best = b;
+		}
+		if (best != null) {
+			free.remove(best);
+			bytes -= best.getAllocationByteCount();
+			if (best.getWidth() != width || best.getHeight() != height || best.getConfig() != config) {
+				try {
+					best.reconfigure(width, height, config);
+				} catch (IllegalArgumentException e) {
+					best.recycle();
+					return Bitmap.createBitmap(width, height, config);
+				}
+			}
+			return best;
+		}
+		return Bitmap.createBitmap(width, height, config);
+	}
+
+	/**
+	 * Hands a bitmap back once nothing draws or reads it any more.
+	 */
+	public synchronized void release(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled() || free.contains(bitmap))
+			return;
+		int size = bitmap.getAllocationByteCount();
+		if (!bitmap.isMutable() || size > maxBytes) {
+			bitmap.recycle();
+			return;
+		}
+		// Make room by dropping the oldest
+		Iterator<Bitmap> it = free.iterator();
+		while (bytes + size > maxBytes && it.hasNext()) {
+			Bitmap old = it.next();
+			it.remove();
+			bytes -= old.getAllocationByteCount();
+			old.recycle();
+		}
+		free.add(bitmap);
+		bytes += size;
+	}
+
+	/**
+	 * Recycles every pooled bitmap, e.g. when memory runs low or the screen goes away.
+	 */
+	public synchronized void clear() {
+		for (Bitmap b : free)
+			b.recycle();
+		free.clear();
+		bytes = 0;
+	}
+
+	private static int bytesPerPixel(Bitmap.Config config) {
+		if (config == Bitmap.Config.ALPHA_8)
+			return 1;
+		if (config == Bitmap.Config.RGB_565)
+			return 2;
+		return 4;
+	}
+}
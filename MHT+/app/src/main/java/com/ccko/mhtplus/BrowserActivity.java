@@ -1,5 +1,6 @@
 package com.ccko.mhtplus;
 
+import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
@@ -18,6 +19,7 @@ import android.widget.SeekBar;
 
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.ViewGroup;
@@ -43,19 +45,27 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
+import android.content.pm.PackageManager;
+import android.Manifest;
+import android.os.Build;
 import android.preference.PreferenceManager;
 
 public class BrowserActivity extends AppCompatActivity {
 
 	// 1. Constants and state
 	private static final int REQ_OPEN_MHT = 1;
+	private static final int REQ_IMPORT_TREE = 2;
+	private static final int REQ_NOTIFICATIONS = 3;
 	private static final int FILE_CHOOSER_REQ = 0x1001;
 
 	// Tracks whether the OCR selection UI is visible
@@ -63,6 +73,7 @@ public class BrowserActivity extends AppCompatActivity {
 	private OcrOverlayView ocrOverlayView; // The new transparent view for drawing the selection box
 	// 1b. NEW MEMBER VARIABLES (Place inside the BrowserActivity class declaration)
 	private OcrHelper ocrHelper;
+	private PageScanner pageScanner; // "Scan Whole Page"; null without an OcrHelper
 	private Bitmap webViewBitmap = null;
 	// End NEW MEMBER VARIABLES
 
@@ -86,6 +97,16 @@ public class BrowserActivity extends AppCompatActivity {
 
 	private ValueCallback<Uri[]> filePathCallback;
 
+	// Serves the parts of an external archive to the WebView while it is being indexed
+	private volatile MhtResourceServer resourceServer;
+
+	// Background file work that must outlive the activity (e.g. transcoding a page that was just saved)
+	private static final ExecutorService ioExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "browser-io");
+		t.setDaemon(true);
+		return t;
+	});
+
 	private static final String PREF_FULLSCREEN = "pref_fullscreen";
 	private static final String PREF_ORIENTATION = "pref_orientation";
 
@@ -127,6 +148,7 @@ public class BrowserActivity extends AppCompatActivity {
 		// Ensure OcrHelper has a constructor that accepts Context or adapt accordingly
 		try {
 			ocrHelper = new OcrHelper(); // if your OcrHelper requires context change accordingly
+			pageScanner = new PageScanner(this, ocrHelper);
 		} catch (Exception e) {
 			Log.w("BrowserActivity", "Failed to create OcrHelper: " + e.getMessage());
 			ocrHelper = null;
@@ -136,11 +158,14 @@ public class BrowserActivity extends AppCompatActivity {
 		ocrOverlayView = findViewById(R.id.ocr_overlay);
 		if (ocrOverlayView != null) {
 			if (ocrHelper != null) {
+				ocrHelper.setCache(OcrCache.get(this));
 				ocrOverlayView.setOcrHelper(ocrHelper);
 			} else {
 				Log.w("BrowserActivity", "ocrHelper is null; overlay will not perform OCR calls.");
 			}
 			ocrOverlayView.setVisibility(View.GONE); // hidden until OCR mode enabled
+			// Starts fetching the target language's model now, not on the first translation
+			ocrOverlayView.setTargetLanguageTag(getPreferredTargetLanguage());
 		} else {
 			Log.w("BrowserActivity", "ocrOverlayView not found in layout (R.id.ocr_overlay).");
 		}
@@ -279,6 +304,18 @@ public class BrowserActivity extends AppCompatActivity {
 	}
 
 	// 3. Lifecycle
+	@Override
+	protected void onStart() {
+		super.onStart();
+		ImportService.addListener(importListener);
+	}
+
+	@Override
+	protected void onStop() {
+		ImportService.removeListener(importListener);
+		super.onStop();
+	}
+
 	@Override
 	protected void onResume() {
 		super.onResume();
@@ -299,12 +336,15 @@ public class BrowserActivity extends AppCompatActivity {
 		try {
 			if (ocrOverlayView != null) {
 				ocrOverlayView.closeTranslationResources();
+				ocrOverlayView.releaseSourceBitmap();
 			}
 		} catch (Exception ignored) {
 		}
 
 		// 2) Close OCR helper if it exposes a close/cleanup (defensive)
 		try {
+			if (pageScanner != null)
+				pageScanner.close();
 			if (ocrHelper != null) {
 				ocrHelper.close();
 			}
@@ -330,6 +370,7 @@ public class BrowserActivity extends AppCompatActivity {
 		}
 
 		// 5) Safely destroy the WebView (stop loading / clear clients first)
+		closeResourceServer();
 		try {
 			if (webView != null) {
 				webView.stopLoading();
@@ -355,6 +396,14 @@ public class BrowserActivity extends AppCompatActivity {
 		super.onDestroy();
 	}
 
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		// Pooled OCR bitmaps are only kept for reuse; give them back when memory gets tight
+		if (ocrHelper != null)
+			ocrHelper.trimMemory();
+	}
+
 	// 4. onActivityResult
 	@Override
 	protected void onActivityResult(int requestCode, int resultCode, @Nullable Intent data) {
@@ -375,38 +424,27 @@ public class BrowserActivity extends AppCompatActivity {
 				return;
 			}
 
-			// B) From picker: URI in data (The external file selection)
-			Uri uri = data.getData();
-			if (uri != null) {
-				final int takeFlags = data.getFlags()
-						& (Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
-				try {
-					// Attempt to take persistent permission for the URI
-					getContentResolver().takePersistableUriPermission(uri, takeFlags);
-				} catch (Exception ignored) {
-				}
-
-				// Dedup-aware: copy/dedupe the external URI to the app's internal MHT folder.
-				// This returns the internal file path string if successful.
-				String resolved = copyUriToAppMht(uri);
-
-				if (resolved != null) {
-					// CRITICAL FIX: We remove the conditional scheme check.
-					// Any file that has been successfully saved/deduped (resolved != null)
-					// MUST be loaded via loadSavedMht to ensure read-only settings are applied.
-					loadSavedMht(resolved, true);
-				} else {
-					// Fallback for failed copy: attempt to load the raw external URI directly
-					try {
-						webView.loadUrl(uri.toString());
-					} catch (Exception e) {
-						Toast.makeText(this, "Unable to open selected file", Toast.LENGTH_SHORT).show();
-					}
-				}
+			// B) From picker: one or more external documents, imported in the background.
+			// The result comes back through importListener.
+			if (data.getData() != null || data.getClipData() != null) {
+				importPickedDocuments(data);
 				return;
 			}
 		}
 
+		// Folder picked for import: every archive below it is added to the library
+		if (requestCode == REQ_IMPORT_TREE && resultCode == RESULT_OK && data != null && data.getData() != null) {
+			Uri tree = data.getData();
+			try {
+				getContentResolver().takePersistableUriPermission(tree, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+			} catch (Exception ignored) {
+			}
+			requestNotificationPermission();
+			ImportService.startTree(this, tree);
+			Toast.makeText(this, "Importing folder…", Toast.LENGTH_SHORT).show();
+			return;
+		}
+
 		// WebView file chooser result
 		if (requestCode == FILE_CHOOSER_REQ) {
 			if (filePathCallback == null)
@@ -478,31 +516,22 @@ public class BrowserActivity extends AppCompatActivity {
 	private void loadUrl(String url) {
 		if (webView == null)
 			return;
+		closeResourceServer();
+		cancelPageScan();
+		OcrCache.get(this).setArchive(null);
 		webView.post(() -> webView.loadUrl(url));
 	}
 
 	private void loadSavedMht(String path, boolean readOnly) {
 		if (path == null)
 			return;
+		cancelPageScan();
 
 		// Case A: Handle content:// URIs (external .mht files)
 		if (path.startsWith("content://")) {
-			Uri uri = Uri.parse(path);
-			try (InputStream in = getContentResolver().openInputStream(uri)) {
-				// Copy into a temporary file in cache so WebView can load it via file://
-				File tempFile = new File(getCacheDir(), "imported.mht");
-				try (FileOutputStream out = new FileOutputStream(tempFile)) {
-					byte[] buf = new byte[8192];
-					int r;
-					while ((r = in.read(buf)) > 0)
-						out.write(buf, 0, r);
-				}
-				final String tempUri = Uri.fromFile(tempFile).toString();
-				// Continue with normal load flow using the temp file path
-				applyReadonlyOrNormalAndLoad(tempUri, readOnly);
-			} catch (Exception e) {
-				Toast.makeText(this, "Unable to load external MHT", Toast.LENGTH_SHORT).show();
-			}
+			final Uri uri = Uri.parse(path);
+			OcrCache.get(this).setArchive(null);
+			loadArchive(new MhtResourceServer(this, uri), readOnly, () -> loadViaTempCopy(uri, readOnly));
 			return;
 		}
 
@@ -514,14 +543,131 @@ public class BrowserActivity extends AppCompatActivity {
 		}
 
 		setStatus("Opening: " + file.getName());
+		OcrCache.get(this).setArchive(file);
 
+		// Served from a memory mapping of the file
 		final String fileUri = Uri.fromFile(file).toString();
-		applyReadonlyOrNormalAndLoad(fileUri, readOnly);
+		loadArchive(new MhtResourceServer(this, file), readOnly, () -> {
+			if (ArchiveStorage.isCompressed(file))
+				loadDecompressedCopy(file, readOnly);
+			else
+				applyReadonlyOrNormalAndLoad(fileUri, readOnly);
+		});
+	}
+
+	/**
+	 * The WebView cannot read gzip files, so a compressed document with nothing to serve part by part is
+	 * unpacked into the cache, under its own name so the WebView still sees its type, and loaded from there.
+	 */
+	private void loadDecompressedCopy(final File file, final boolean readOnly) {
+		final File dir = new File(getCacheDir(), "open");
+		ioExecutor.execute(() -> {
+			File[] old = dir.listFiles();
+			if (old != null) {
+				for (File f : old)
+					f.delete();
+			}
+			dir.mkdirs();
+			File copy = new File(dir, ArchiveStorage.displayName(file));
+			try (InputStream in = ArchiveStorage.openStream(file); FileOutputStream out = new FileOutputStream(copy)) {
+				byte[] buf = new byte[64 * 1024];
+				int r;
+				while ((r = in.read(buf)) > 0)
+					out.write(buf, 0, r);
+			} catch (Exception e) {
+				Log.w(TAG, "Failed to unpack " + file + ": " + e.getMessage());
+				copy.delete();
+				runOnUiThread(() -> Toast.makeText(this, "Unable to open archive.", Toast.LENGTH_SHORT).show());
+				return;
+			}
+			final String copyUri = Uri.fromFile(copy).toString();
+			runOnUiThread(() -> applyReadonlyOrNormalAndLoad(copyUri, readOnly));
+		});
+	}
+
+	/**
+	 * Shows an archive by serving its parts through shouldInterceptRequest, straight from the source,
+	 * instead of handing the whole file to the WebView's own MHT loader.
+	 *
+	 * @param fallback run if the archive has no HTML part we can serve
+	 */
+	private void loadArchive(final MhtResourceServer server, boolean readOnly, final Runnable fallback) {
+		if (webView == null)
+			return;
+		closeResourceServer();
+		applyReadonlyOrNormal(readOnly);
+
+		resourceServer = server;
+		server.start(rootUrl -> {
+			if (resourceServer != server || webView == null)
+				return;
+			if (rootUrl == null) {
+				// Let the WebView's own MHT loader try
+				closeResourceServer();
+				fallback.run();
+				return;
+			}
+			webView.loadUrl(rootUrl);
+		});
+	}
+
+	private void closeResourceServer() {
+		if (resourceServer != null) {
+			resourceServer.close();
+			resourceServer = null;
+		}
+	}
+
+	/**
+	 * Called from shouldInterceptRequest on a WebView thread.
+	 */
+	private android.webkit.WebResourceResponse interceptArchiveRequest(WebResourceRequest request) {
+		MhtResourceServer server = resourceServer;
+		if (server == null || request == null || request.getUrl() == null)
+			return null;
+		return server.intercept(request.getUrl().toString(), request.isForMainFrame());
+	}
+
+	private void loadViaTempCopy(Uri uri, boolean readOnly) {
+		try (InputStream in = getContentResolver().openInputStream(uri)) {
+			// Copy into a temporary file in cache so WebView can load it via file://
+			File tempFile = new File(getCacheDir(), "imported.mht");
+			try (FileOutputStream out = new FileOutputStream(tempFile)) {
+				byte[] buf = new byte[8192];
+				int r;
+				while ((r = in.read(buf)) > 0)
+					out.write(buf, 0, r);
+			}
+			final String tempUri = Uri.fromFile(tempFile).toString();
+			// Continue with normal load flow using the temp file path
+			applyReadonlyOrNormalAndLoad(tempUri, readOnly);
+		} catch (Exception e) {
+			Toast.makeText(this, "Unable to load external MHT", Toast.LENGTH_SHORT).show();
+		}
 	}
 
 	private void applyReadonlyOrNormalAndLoad(final String uriToLoad, boolean readOnly) {
 		if (webView == null)
 			return;
+		closeResourceServer();
+		applyReadonlyOrNormal(readOnly);
+
+		// Finally, load the requested file URI on the UI thread
+		webView.post(() -> {
+			try {
+				// CRITICAL FIX: The only correct way to load a MHT archive is via loadUrl.
+				// The previous catch block contained faulty MHT parsing logic.
+				webView.loadUrl(uriToLoad);
+			} catch (Exception e) {
+				// Simple error reporting if the WebView fundamentally fails to load the URL
+				Toast.makeText(BrowserActivity.this, "FATAL: WebView unable to load file URI.", Toast.LENGTH_LONG)
+						.show();
+				e.printStackTrace();
+			}
+		});
+	}
+
+	private void applyReadonlyOrNormal(boolean readOnly) {
 
 		// --- Configuration based on readOnly flag ---
 		if (readOnly) {
@@ -558,6 +704,12 @@ public class BrowserActivity extends AppCompatActivity {
 					return true;
 				}
 
+				@Override
+				public android.webkit.WebResourceResponse shouldInterceptRequest(WebView view,
+						WebResourceRequest request) {
+					return interceptArchiveRequest(request);
+				}
+
 				@Override
 				public void onPageFinished(WebView view, String url) {
 					// allow text selection after page finishes loading
@@ -597,7 +749,13 @@ public class BrowserActivity extends AppCompatActivity {
 			s.setBuiltInZoomControls(true);
 			s.setDisplayZoomControls(false);
 
-			webView.setWebViewClient(new WebViewClient());
+			webView.setWebViewClient(new WebViewClient() {
+				@Override
+				public android.webkit.WebResourceResponse shouldInterceptRequest(WebView view,
+						WebResourceRequest request) {
+					return interceptArchiveRequest(request);
+				}
+			});
 			webView.setWebChromeClient(new WebChromeClient());
 
 			// Restore ability to focus inputs
@@ -606,20 +764,6 @@ public class BrowserActivity extends AppCompatActivity {
 			webView.setLongClickable(true);
 			webView.setHapticFeedbackEnabled(true);
 		}
-
-		// Finally, load the requested file URI on the UI thread
-		webView.post(() -> {
-			try {
-				// CRITICAL FIX: The only correct way to load a MHT archive is via loadUrl.
-				// The previous catch block contained faulty MHT parsing logic.
-				webView.loadUrl(uriToLoad);
-			} catch (Exception e) {
-				// Simple error reporting if the WebView fundamentally fails to load the URL
-				Toast.makeText(BrowserActivity.this, "FATAL: WebView unable to load file URI.", Toast.LENGTH_LONG)
-						.show();
-				e.printStackTrace();
-			}
-		});
 	}
 
 	// 7. Incoming intents
@@ -651,7 +795,7 @@ public class BrowserActivity extends AppCompatActivity {
 					loadSavedMht(new File(data.getPath()).getAbsolutePath(), true);
 				} else {
 					// For launch/open intents: open content URIs directly without registering them in the library.
-					// loadSavedMht already handles content:// by copying to a temp cache file for WebView.
+					// loadSavedMht serves content:// archives through MhtResourceServer.
 					loadSavedMht(data.toString(), true);
 				}
 			} catch (Exception e) {
@@ -710,101 +854,85 @@ public class BrowserActivity extends AppCompatActivity {
 		invalidateOptionsMenu(); // refresh menu to reflect OCR mode
 	}
 
-	// 9. Picker import and dedup logic
-	private boolean isMhtUri(Uri uri) {
-		if (uri == null)
-			return false;
-		// MIME check
-		try {
-			String type = getContentResolver().getType(uri);
-			if (type != null && type.equalsIgnoreCase("multipart/related"))
-				return true;
-		} catch (Exception ignored) {
-		}
-		// Display name extension check
-		try (android.database.Cursor c = getContentResolver().query(uri,
-				new String[] { android.provider.OpenableColumns.DISPLAY_NAME }, null, null, null)) {
-			if (c != null && c.moveToFirst()) {
-				String name = c.getString(0);
-				if (name != null) {
-					String lower = name.toLowerCase(Locale.US);
-					return lower.endsWith(".mht") || lower.endsWith(".mhtml");
-				}
+	// 9. Picker import (runs in ImportService)
+	private void importPickedDocuments(Intent data) {
+		List<Uri> uris = new ArrayList<>();
+		if (data.getClipData() != null) {
+			for (int i = 0; i < data.getClipData().getItemCount(); i++) {
+				Uri u = data.getClipData().getItemAt(i).getUri();
+				if (u != null)
+					uris.add(u);
 			}
-		} catch (Exception ignored) {
+		} else if (data.getData() != null) {
+			uris.add(data.getData());
 		}
-		return false;
-	}
+		if (uris.isEmpty())
+			return;
 
-	private String registerExternalMht(Uri uri) {
-		if (uri == null)
-			return null;
-		try {
-			// Build a stable folder name based on display name
-			String displayName = "external";
-			try (android.database.Cursor c = getContentResolver().query(uri,
-					new String[] { android.provider.OpenableColumns.DISPLAY_NAME }, null, null, null)) {
-				if (c != null && c.moveToFirst()) {
-					String n = c.getString(0);
-					if (n != null && !n.trim().isEmpty())
-						displayName = n.replaceAll("[^A-Za-z0-9._-]", "_");
-				}
+		final int takeFlags = data.getFlags()
+				& (Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+		for (Uri uri : uris) {
+			try {
+				// Attempt to take persistent permission for the URI
+				getContentResolver().takePersistableUriPermission(uri, takeFlags);
 			} catch (Exception ignored) {
 			}
+		}
 
-			File baseDir = getExternalFilesDir("mht");
-			if (baseDir == null)
-				baseDir = new File(getFilesDir(), "mht");
+		// A single pick is opened once imported; several are just added to the library
+		requestNotificationPermission();
+		ImportService.start(this, uris, uris.size() == 1);
+		if (uris.size() > 1)
+			Toast.makeText(this, "Importing " + uris.size() + " files…", Toast.LENGTH_SHORT).show();
+	}
 
-			String folder = "link-" + displayName;
-			File pageDir = new File(baseDir, folder);
-			pageDir.mkdirs();
+	/**
+	 * Asks for the notification permission on Android 13+, where ImportService's progress notification is
+	 * hidden without it. The import runs either way.
+	 */
+	private void requestNotificationPermission() {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+				&& checkSelfPermission(Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED)
+			requestPermissions(new String[] { Manifest.permission.POST_NOTIFICATIONS }, REQ_NOTIFICATIONS);
+	}
 
-			// Store uri string as both "uri" and "path" (path may be content://)
-			writeMetadata(pageDir, uri.toString(), uri.toString());
-			return uri.toString();
-		} catch (Exception e) {
-			e.printStackTrace();
-			return null;
+	private final ImportService.Listener importListener = new ImportService.Listener() {
+		@Override
+		public void onImportProgress(ImportService.Progress p) {
+			if (toolbar == null)
+				return;
+			int percent = p.percent();
+			toolbar.setSubtitle("Importing " + p.completed + "/" + p.count + " · "
+					+ (percent >= 0 ? percent + "% · " : "") + ImportService.formatRate(p.bytesPerSecond));
 		}
-	}
 
-	// If .mht: do not copy; just register metadata and return content URI string. Else: copy and return local path.
-	private String copyUriToAppMht(Uri uri) {
-		if (uri == null)
-			return null;
-		try {
-			if (isMhtUri(uri)) {
-				return registerExternalMht(uri); // no physical copy
+		@Override
+		public void onImportFinished(ImportService.Summary summary) {
+			if (toolbar != null)
+				toolbar.setSubtitle(null);
+			if (summary.openWhenDone) {
+				if (!summary.imported.isEmpty()) {
+					MhtImporter.Result r = summary.imported.get(0);
+					if (r.duplicate)
+						Toast.makeText(BrowserActivity.this, "Already in library", Toast.LENGTH_SHORT).show();
+					// Loaded via loadSavedMht so read-only settings are applied
+					loadSavedMht(r.path, true);
+				} else if (!summary.failed.isEmpty()) {
+					// Copy failed: serve the external document directly instead
+					loadSavedMht(summary.failed.get(0).toString(), true);
+				}
+				return;
 			}
-
-			// Non-.mht content: copy into app storage (legacy behavior)
-			String host = "imported";
-			String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
-			String folder = host + "-" + timestamp;
-			File baseDir = getExternalFilesDir("mht");
-			if (baseDir == null)
-				baseDir = new File(getFilesDir(), "mht");
-			File pageDir = new File(baseDir, folder);
-			pageDir.mkdirs();
-			File outFile = new File(pageDir, "page.mht");
-
-			try (InputStream in = getContentResolver().openInputStream(uri);
-					FileOutputStream fos = new FileOutputStream(outFile)) {
-				byte[] buf = new byte[8192];
-				int r;
-				while ((r = in.read(buf)) > 0)
-					fos.write(buf, 0, r);
-				fos.flush();
+			if (summary.imported.isEmpty() && summary.failed.isEmpty()) {
+				Toast.makeText(BrowserActivity.this, "No MHT files found", Toast.LENGTH_SHORT).show();
+				return;
 			}
-
-			writeMetadata(pageDir, uri.toString(), outFile.getAbsolutePath());
-			return outFile.getAbsolutePath();
-		} catch (Exception e) {
-			e.printStackTrace();
-			return null;
+			String msg = "Imported " + summary.imported.size() + " file(s)";
+			if (!summary.failed.isEmpty())
+				msg += ", " + summary.failed.size() + " failed";
+			Toast.makeText(BrowserActivity.this, msg, Toast.LENGTH_SHORT).show();
 		}
-	}
+	};
 
 	// 10. File IO helpers
 	private boolean copyFile(File src, File dst) {
@@ -927,44 +1055,70 @@ public class BrowserActivity extends AppCompatActivity {
 			return;
 		}
 
-		String outPath = getArchiveFileName();
-		if (outPath == null) {
+		// Save straight into a library folder so the page shows up in the Library and in search
+		final String pageUrl = webView.getUrl();
+		final String pageTitle = webView.getTitle();
+		final File pageDir = getArchiveDir(pageUrl);
+		if (pageDir == null) {
 			Toast.makeText(this, "Archive dir unavailable.", Toast.LENGTH_SHORT).show();
 			return;
 		}
+		String outPath = getArchiveFileName(pageDir, pageTitle);
 
 		webView.saveWebArchive(outPath, false, new ValueCallback<String>() {
 			@Override
-			public void onReceiveValue(String value) {
+			public void onReceiveValue(final String value) {
 				if (value != null) {
-					// NOTE: consider writing meta.json here to unify library entries for saved pages.
-					Toast.makeText(BrowserActivity.this, "Page saved successfully.", Toast.LENGTH_SHORT).show();
+					// Transcoded to the library's storage form off the main thread, then recorded
+					final Context appContext = getApplicationContext();
+					ioExecutor.execute(() -> {
+						File saved = new File(value);
+						final long originalSize = saved.length();
+						final String path = ArchiveStorage.store(appContext, saved).getAbsolutePath();
+						try {
+							writeMetadata(pageDir, pageUrl, path, pageTitle, originalSize);
+						} catch (Exception e) {
+							Log.w(TAG, "Failed to write metadata for saved page: " + e.getMessage());
+						}
+						runOnUiThread(() -> onPageSaved(pageDir, pageTitle, path));
+					});
 				} else {
+					pageDir.delete();
 					Toast.makeText(BrowserActivity.this, "Failed to save page.", Toast.LENGTH_SHORT).show();
 				}
 			}
 		});
 	}
 
-	private String getArchiveFileName() {
-		File dir = getArchiveDir();
-		if (dir == null)
-			return null;
-		SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
-		String ts = sdf.format(new Date());
-		return new File(dir, ts + ".mht").getAbsolutePath();
+	private void onPageSaved(File pageDir, String pageTitle, String path) {
+		SearchIndex.get(this).indexArchiveAsync(pageDir.getName(), path, pageTitle);
+		Toast.makeText(this, "Page saved successfully.", Toast.LENGTH_SHORT).show();
 	}
 
-	private File getArchiveDir() {
-		File base = getExternalCacheDir();
-		if (base == null) {
+	private String getArchiveFileName(File dir, String title) {
+		String base = title != null ? title.trim().replaceAll("[^A-Za-z0-9._-]", "_") : "";
+		if (base.length() > 60)
+			base = base.substring(0, 60);
+		if (base.isEmpty() || base.matches("_+"))
+			base = "page";
+		return new File(dir, base + ".mht").getAbsolutePath();
+	}
+
+	private File getArchiveDir(String url) {
+		String host = null;
+		try {
+			host = Uri.parse(url).getHost();
+		} catch (Exception ignored) {
+		}
+		if (host == null || host.isEmpty())
+			host = "saved";
+		String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+		File pageDir = new File(LibraryIndex.getBaseDir(this), host.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + timestamp);
+		if (!pageDir.exists() && !pageDir.mkdirs()) {
 			Toast.makeText(this, "Failed to get archive directory.", Toast.LENGTH_SHORT).show();
 			return null;
 		}
-		File archives = new File(base, "archives");
-		if (!archives.exists())
-			archives.mkdirs();
-		return archives;
+		return pageDir;
 	}
 
 	// 14. Metadata helpers
@@ -973,15 +1127,26 @@ public class BrowserActivity extends AppCompatActivity {
 	}
 
 	private void writeMetadata(File pageDir, String uri, String path) throws Exception {
+		writeMetadata(pageDir, uri, path, webView != null ? webView.getTitle() : null, -1);
+	}
+
+	/**
+	 * Writes meta.json durably and records the folder in the library index. Does disk I/O; call it off the
+	 * main thread where possible.
+	 *
+	 * @param originalSize size of the MHT before it was stored, or -1 if unknown.
+	 */
+	private void writeMetadata(File pageDir, String uri, String path, String title, long originalSize)
+			throws Exception {
 		JSONObject obj = new JSONObject();
 		obj.put("uri", uri);
 		obj.put("path", path);
-		obj.put("title", webView != null && webView.getTitle() != null ? webView.getTitle() : "Untitled");
+		obj.put("title", title != null ? title : "Untitled");
 		obj.put("timestamp", System.currentTimeMillis());
-		try (FileOutputStream fos = new FileOutputStream(getMetadataFile(pageDir));
-				OutputStreamWriter os = new OutputStreamWriter(fos)) {
-			os.write(obj.toString());
-		}
+		if (originalSize >= 0)
+			obj.put(LibraryIndex.KEY_ORIGINAL_SIZE, originalSize);
+		MetadataStore.get(this).write(pageDir, obj);
+		LibraryIndex.get(this).update(pageDir);
 	}
 
 	private void setStatus(String s) {
@@ -1022,10 +1187,16 @@ public class BrowserActivity extends AppCompatActivity {
 			pick.addCategory(Intent.CATEGORY_OPENABLE);
 			String[] mimeTypes = { "multipart/related", "text/html", "application/octet-stream" };
 			pick.putExtra(Intent.EXTRA_MIME_TYPES, mimeTypes);
+			pick.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
 			startActivityForResult(pick, REQ_OPEN_MHT);
 			return true;
 		}
 
+		if (id == R.id.nav_import_folder) {
+			startActivityForResult(new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE), REQ_IMPORT_TREE);
+			return true;
+		}
+
 		if (id == R.id.nav_library) {
 			Intent i = new Intent(this, LibraryActivity.class);
 			startActivityForResult(i, REQ_OPEN_MHT);
@@ -1095,7 +1266,9 @@ public class BrowserActivity extends AppCompatActivity {
 			// cleanup overlay selections and translator if needed
 			if (ocrOverlayView != null) {
 				ocrOverlayView.cancelSelectionIfAny();
+				ocrOverlayView.releaseSourceBitmap();
 			}
+			cancelPageScan();
 			hideToolbarAnimated();
 		}
 
@@ -1153,6 +1326,11 @@ public class BrowserActivity extends AppCompatActivity {
 			return true;
 		}
 
+		if (id == R.id.action_scan_page) {
+			scanWholePage();
+			return true;
+		}
+
 		return super.onOptionsItemSelected(item);
 	}
 
@@ -1195,7 +1373,12 @@ public class BrowserActivity extends AppCompatActivity {
 				int contentWidth = Math.max(1, webView.getWidth());
 				int contentHeight = Math.max(1, webView.getHeight());
 
-				Bitmap webViewBitmap = Bitmap.createBitmap(contentWidth, contentHeight, Bitmap.Config.ARGB_8888);
+				// Hand the previous screenshot back first so the pool can give its buffer out again
+				ocrOverlayView.releaseSourceBitmap();
+				Bitmap webViewBitmap = ocrHelper != null
+						? ocrHelper.getBitmapPool().acquire(contentWidth, contentHeight, Bitmap.Config.ARGB_8888)
+						: Bitmap.createBitmap(contentWidth, contentHeight, Bitmap.Config.ARGB_8888);
+				webViewBitmap.eraseColor(Color.WHITE);
 				Canvas canvas = new Canvas(webViewBitmap);
 
 				// Draw the WebView into the bitmap (visible viewport)
@@ -1210,6 +1393,7 @@ public class BrowserActivity extends AppCompatActivity {
 				if (tag == null || tag.isEmpty())
 					tag = "en";
 				ocrOverlayView.setTargetLanguageTag(tag);
+				ocrOverlayView.prefetchTranslationModels();
 
 				Toast.makeText(this, "Screen captured. Select the text area.", Toast.LENGTH_SHORT).show();
 			} catch (Exception e) {
@@ -1219,6 +1403,68 @@ public class BrowserActivity extends AppCompatActivity {
 		});
 	}
 
+	/**
+	 * Recognizes the text of the whole page, not only the visible part, and shows it. For archives in the
+	 * library the text is also stored with the archive, so library search finds it.
+	 */
+	private void scanWholePage() {
+		if (webView == null || pageScanner == null) {
+			Toast.makeText(this, "OCR not available.", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		if (pageScanner.isRunning()) {
+			Toast.makeText(this, "Page scan already running.", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		if (ocrOverlayView != null) {
+			ocrOverlayView.cancelSelectionIfAny();
+			ocrOverlayView.setVisibility(View.GONE);
+		}
+		final File folder = OcrCache.get(this).getArchiveFolder();
+		Toast.makeText(this, "Scanning whole page...", Toast.LENGTH_SHORT).show();
+		pageScanner.scan(webView, folder, new PageScanner.Listener() {
+			@Override
+			public void onFinished(String text) {
+				if (isFinishing() || isDestroyed())
+					return;
+				if (ocrOverlayView != null && isOcrModeActive)
+					ocrOverlayView.setVisibility(View.VISIBLE);
+				showPageText(text, folder != null);
+			}
+
+			@Override
+			public void onFailed(Exception e) {
+				if (ocrOverlayView != null && isOcrModeActive)
+					ocrOverlayView.setVisibility(View.VISIBLE);
+				Toast.makeText(BrowserActivity.this, "Page scan failed: " + e.getLocalizedMessage(),
+						Toast.LENGTH_SHORT).show();
+			}
+		});
+	}
+
+	private void showPageText(final String text, boolean stored) {
+		if (text.isEmpty()) {
+			Toast.makeText(this, "No text recognized.", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		new androidx.appcompat.app.AlertDialog.Builder(this)
+				.setTitle(stored ? "Page text (saved for search)" : "Page text").setMessage(text)
+				.setNeutralButton("Copy", (d, which) -> {
+					android.content.ClipboardManager clipboard = (android.content.ClipboardManager) getSystemService(
+							Context.CLIPBOARD_SERVICE);
+					if (clipboard != null)
+						clipboard.setPrimaryClip(android.content.ClipData.newPlainText("Page text", text));
+				}).setPositiveButton("OK", null).show();
+	}
+
+	private void cancelPageScan() {
+		if (pageScanner != null && pageScanner.isRunning()) {
+			pageScanner.cancel();
+			if (ocrOverlayView != null && isOcrModeActive)
+				ocrOverlayView.setVisibility(View.VISIBLE);
+		}
+	}
+
 	/**
 	 * Captures the current content of the WebView into a Bitmap.
 	 * This bitmap is stored in webViewBitmap for later cropping by the overlay view.
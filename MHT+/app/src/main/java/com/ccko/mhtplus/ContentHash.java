@@ -0,0 +1,45 @@
+package com.ccko.mhtplus;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * ContentHash: SHA-256 helpers. Imports ({@link MhtImporter}) hash the bytes while they are being copied and
+ * record the digest in meta.json; the {@link LibraryCatalog} keeps it per folder, so importing the same file
+ * twice finds the existing entry there instead of storing a second copy.
+ */
+public final class ContentHash {
+
+	private ContentHash() {
+	}
+
+	/**
+	 * @return the lower-case hex SHA-256 of a string's UTF-8 bytes.
+	 */
+	public static String hashOf(String s) {
+		try {
+			return toHex(newDigest().digest(s.getBytes("UTF-8")));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 unavailable", e); // guaranteed on every Android version
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+		char[] out = new char[bytes.length * 2];
+		final char[] digits = "0123456789abcdef".toCharArray();
+		for (int i = 0; i < bytes.length; i++) {
+			out[i * 2] = digits[(bytes[i] >> 4) & 0xF];
+			out[i * 2 + 1] = digits[bytes[i] & 0xF];
+		}
+		return new String(out);
+	}
+}
@@ -0,0 +1,335 @@
+package com.ccko.mhtplus;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import androidx.core.app.NotificationCompat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ImportService: foreground service that imports picked documents, or every MHT document in a picked
+ * folder tree, into the library with {@link MhtImporter}. Documents are copied a few at a time on a small
+ * pool and the whole job is committed to the indexes once at the end. Progress is shown in a notification
+ * and reported to whichever activity is listening, and the work is not tied to an activity instance, so it
+ * survives rotation and the user leaving the screen.
+ */
+public class ImportService extends Service {
+
+	/**
+	 * Import events, delivered on the main thread.
+	 */
+	public interface Listener {
+		void onImportProgress(Progress progress);
+
+		void onImportFinished(Summary summary);
+	}
+
+	public static final class Progress {
+		public final int completed; // documents finished so far
+		public final int count;
+		public final String name; // document that last reported progress
+		public final long copied; // bytes copied by the whole job
+		public final long total; // size of a single-document job, -1 if unknown or several documents
+		public final long bytesPerSecond;
+
+		Progress(int completed, int count, String name, long copied, long total, long bytesPerSecond) {
+			this.completed = completed;
+			this.count = count;
+			this.name = name;
+			this.copied = copied;
+			this.total = total;
+			this.bytesPerSecond = bytesPerSecond;
+		}
+
+		/**
+		 * @return 0-100, or -1 if it cannot be told (a single document of unknown size).
+		 */
+		public int percent() {
+			if (count == 1)
+				return total > 0 ? (int) Math.min(100, copied * 100 / total) : -1;
+			return count > 0 ? completed * 100 / count : -1;
+		}
+	}
+
+	public static final class Summary {
+		public final List<MhtImporter.Result> imported;
+		public final List<Uri> failed;
+		public final boolean openWhenDone; // open the (single) imported document once finished
+
+		Summary(List<MhtImporter.Result> imported, List<Uri> failed, boolean openWhenDone) {
+			this.imported = imported;
+			this.failed = failed;
+			this.openWhenDone = openWhenDone;
+		}
+	}
+
+	private static final String TAG = "ImportService";
+	private static final String ACTION_IMPORT = "com.ccko.mhtplus.action.IMPORT";
+	private static final String EXTRA_URIS = "uris";
+	private static final String EXTRA_TREE = "tree";
+	private static final String EXTRA_OPEN_WHEN_DONE = "open_when_done";
+	private static final String CHANNEL_ID = "imports";
+	private static final int NOTIFICATION_ID = 0x4D48;
+	private static final long PROGRESS_INTERVAL_MS = 200L;
+
+	// Copies are mostly waiting on the provider and flash storage; a few in flight keep both busy without
+	// thrashing either
+	private static final int COPY_CONCURRENCY = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	// Listeners live in the process, not the service, so a recreated activity can pick up where the old one left
+	private static final List<Listener> listeners = new ArrayList<>();
+	private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+	private static Summary undelivered; // finished while nobody was listening
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(() -> {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			r.run();
+		}, "mht-import");
+		t.setDaemon(true);
+		return t;
+	});
+	private final AtomicInteger copyThreads = new AtomicInteger();
+	private final ExecutorService copyPool = Executors.newFixedThreadPool(COPY_CONCURRENCY, r -> {
+		Thread t = new Thread(() -> {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			r.run();
+		}, "mht-import-copy-" + copyThreads.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	});
+	private int pendingJobs; // main thread only
+	private NotificationManager notificationManager;
+
+	/**
+	 * Imports the documents in the background.
+	 *
+	 * @param openWhenDone report the result as one to open (used for single picks)
+	 */
+	public static void start(Context context, List<Uri> uris, boolean openWhenDone) {
+		Intent i = new Intent(context, ImportService.class);
+		i.setAction(ACTION_IMPORT);
+		i.putParcelableArrayListExtra(EXTRA_URIS, new ArrayList<>(uris));
+		i.putExtra(EXTRA_OPEN_WHEN_DONE, openWhenDone);
+		i.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+		startService(context, i);
+	}
+
+	/**
+	 * Imports every MHT document below a tree picked with ACTION_OPEN_DOCUMENT_TREE. The caller should have
+	 * taken a persistable permission on the tree.
+	 */
+	public static void startTree(Context context, Uri treeUri) {
+		Intent i = new Intent(context, ImportService.class);
+		i.setAction(ACTION_IMPORT);
+		i.putExtra(EXTRA_TREE, treeUri);
+		i.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+		startService(context, i);
+	}
+
+	private static void startService(Context context, Intent i) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+			context.startForegroundService(i);
+		else
+			context.startService(i);
+	}
+
+	/**
+	 * Registers a listener (main thread). A job that finished while nobody was listening is delivered now.
+	 */
+	public static void addListener(Listener listener) {
+		if (!listeners.contains(listener))
+			listeners.add(listener);
+		if (undelivered != null) {
+			Summary s = undelivered;
+			undelivered = null;
+			listener.onImportFinished(s);
+		}
+	}
+
+	public static void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && notificationManager != null) {
+			notificationManager.createNotificationChannel(
+					new NotificationChannel(CHANNEL_ID, "Imports", NotificationManager.IMPORTANCE_LOW));
+		}
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		// Must go foreground promptly, even for an intent we end up ignoring
+		Notification n = buildNotification("Preparing import…", 0, 0, true);
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+			startForeground(NOTIFICATION_ID, n, ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC);
+		else
+			startForeground(NOTIFICATION_ID, n);
+
+		boolean valid = intent != null && ACTION_IMPORT.equals(intent.getAction());
+		final ArrayList<Uri> uris = valid ? intent.getParcelableArrayListExtra(EXTRA_URIS) : null;
+		final Uri tree = valid ? intent.getParcelableExtra(EXTRA_TREE) : null;
+		if ((uris == null || uris.isEmpty()) && tree == null) {
+			if (pendingJobs == 0)
+				stopSelf(startId);
+			return START_NOT_STICKY;
+		}
+		final boolean openWhenDone = intent.getBooleanExtra(EXTRA_OPEN_WHEN_DONE, false);
+		pendingJobs++;
+		executor.execute(() -> runJob(uris, tree, openWhenDone));
+		return START_NOT_STICKY;
+	}
+
+	/**
+	 * Runs one job on the job thread: fans the documents out over the copy pool, waits for all of them and
+	 * commits the successful ones in one go.
+	 */
+	private void runJob(List<Uri> picked, Uri tree, boolean openWhenDone) {
+		final MhtImporter importer = new MhtImporter(this);
+		List<Uri> uris = picked;
+		if (tree != null) {
+			notifyText("Looking for archives…");
+			uris = importer.listTree(tree);
+		}
+		final int count = uris.size();
+		final long started = System.currentTimeMillis();
+		final AtomicInteger completed = new AtomicInteger();
+		final AtomicLong copiedTotal = new AtomicLong();
+		final AtomicLong lastPublish = new AtomicLong();
+
+		List<Future<MhtImporter.Result>> futures = new ArrayList<>(count);
+		for (final Uri uri : uris) {
+			futures.add(copyPool.submit(() -> {
+				String displayName = importer.queryDisplayName(uri);
+				final String name = displayName != null ? displayName : uri.getLastPathSegment();
+				final long[] lastCopied = new long[1];
+				try {
+					return importer.importUri(uri, displayName, (copied, total) -> {
+						long job = copiedTotal.addAndGet(copied - lastCopied[0]);
+						lastCopied[0] = copied;
+						publishProgress(lastPublish, false, new Progress(completed.get(), count, name, job,
+								count == 1 ? total : -1, rate(job, started)));
+					});
+				} finally {
+					long job = copiedTotal.get();
+					publishProgress(lastPublish, true, new Progress(completed.incrementAndGet(), count, name, job,
+							count == 1 ? job : -1, rate(job, started)));
+				}
+			}));
+		}
+
+		// Collected in pick order, so the first result of a single pick is the one to open
+		List<MhtImporter.Result> imported = new ArrayList<>();
+		List<Uri> failed = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			try {
+				imported.add(futures.get(i).get());
+			} catch (ExecutionException e) {
+				Log.w(TAG, "Import failed for " + uris.get(i) + ": " + e.getCause());
+				failed.add(uris.get(i));
+			} catch (InterruptedException e) {
+				// Service destroyed: the copies are cancelled, commit what has finished
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		importer.commit(imported);
+
+		final Summary summary = new Summary(imported, failed, openWhenDone);
+		mainHandler.post(() -> {
+			deliverFinished(summary);
+			if (--pendingJobs == 0) {
+				stopForeground(true);
+				stopSelf();
+			}
+		});
+	}
+
+	private static long rate(long bytes, long started) {
+		return bytes * 1000 / Math.max(1, System.currentTimeMillis() - started);
+	}
+
+	/**
+	 * Reports progress from any copy thread, at most every {@link #PROGRESS_INTERVAL_MS} unless forced.
+	 */
+	private void publishProgress(AtomicLong lastPublish, boolean force, final Progress p) {
+		long now = System.currentTimeMillis();
+		long last = lastPublish.get();
+		if (!force && (now - last < PROGRESS_INTERVAL_MS || !lastPublish.compareAndSet(last, now)))
+			return;
+		if (force)
+			lastPublish.set(now);
+		int percent = p.percent();
+		String text = "Importing " + p.completed + " of " + p.count + " · " + formatRate(p.bytesPerSecond);
+		if (notificationManager != null) {
+			notificationManager.notify(NOTIFICATION_ID,
+					buildNotification(text, 100, Math.max(0, percent), percent < 0));
+		}
+		mainHandler.post(() -> {
+			for (Listener l : new ArrayList<>(listeners))
+				l.onImportProgress(p);
+		});
+	}
+
+	private static void deliverFinished(Summary summary) {
+		if (listeners.isEmpty()) {
+			undelivered = summary;
+			return;
+		}
+		for (Listener l : new ArrayList<>(listeners))
+			l.onImportFinished(summary);
+	}
+
+	private void notifyText(String text) {
+		if (notificationManager != null)
+			notificationManager.notify(NOTIFICATION_ID, buildNotification(text, 0, 0, true));
+	}
+
+	private Notification buildNotification(String text, int max, int progress, boolean indeterminate) {
+		return new NotificationCompat.Builder(this, CHANNEL_ID).setSmallIcon(android.R.drawable.stat_sys_download)
+				.setContentTitle("Importing to library").setContentText(text).setProgress(max, progress, indeterminate)
+				.setOngoing(true).setOnlyAlertOnce(true).build();
+	}
+
+	static String formatRate(long bytesPerSecond) {
+		if (bytesPerSecond >= 1024 * 1024)
+			return String.format(java.util.Locale.US, "%.1f MB/s", bytesPerSecond / (1024.0 * 1024.0));
+		return (bytesPerSecond / 1024) + " KB/s";
+	}
+
+	@Override
+	public void onDestroy() {
+		executor.shutdownNow();
+		copyPool.shutdownNow();
+		super.onDestroy();
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
+	}
+}
@@ -6,30 +6,39 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.inputmethod.EditorInfo;
+import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
+import androidx.core.content.FileProvider;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
 
+import com.google.android.material.snackbar.Snackbar;
+
 import org.json.JSONObject;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class LibraryActivity extends AppCompatActivity {
 
@@ -37,6 +46,33 @@ public class LibraryActivity extends AppCompatActivity {
 	private TextView tvEmpty;
 	private SwipeRefreshLayout swipeRefresh;
 	private LibraryAdapter adapter;
+	private LibraryScanner scanner;
+	private String sortMode = LibraryCatalog.SORT_TIME_DESC;
+	private Comparator<LibraryEntry> sortComparator = LibraryIndex.NEWEST_FIRST;
+	private String hostFilter; // only entries saved from this site are shown; null for all
+
+	// Libraries larger than this are shown through a LibraryPager instead of an in-memory list
+	private static final int PAGED_THRESHOLD = 2000;
+	private int listGeneration; // bumped per sort/reload so stale lists are dropped
+
+	// Full-text search
+	private static final int SEARCH_LIMIT = 200;
+	private EditText etSearch;
+	private String activeQuery; // null when the whole library is shown
+	private int searchGeneration; // bumped per query so stale results are dropped
+	// Row subtitles of entries read from the catalog; only used on searchExecutor
+	private final DateFormat subtitleFormat = DateFormat.getDateTimeInstance();
+	private final ExecutorService searchExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "library-search");
+		t.setDaemon(true);
+		return t;
+	});
+	// Exports, metadata writes and library totals, which must not hold up searches and list loads
+	private final ExecutorService ioExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "library-io");
+		t.setDaemon(true);
+		return t;
+	});
 
 	private Menu menu; // reference to toolbar menu
 	private Toolbar toolbar;
@@ -87,15 +123,8 @@ public class LibraryActivity extends AppCompatActivity {
 
 			@Override
 			public void onLongPress(LibraryEntry entry) {
-				// Enter selection mode if not already
-				if (!adapter.isSelectionMode()) {
-					adapter.enterSelectionMode(true);
-				}
-
-				// Toggle selection for the pressed item (select if not selected)
-				adapter.toggleSelection(entry);
-
-				// Update toolbar UI (enables delete/rename etc.) and show overflow for discoverability
+				// The adapter already entered selection mode and selected the pressed item;
+				// toggling it again here would immediately deselect it.
 				updateToolbarForSelection(adapter.getSelectedItems().size());
 				if (adapter.getSelectedItems().size() > 0 && toolbar != null) {
 					// show overflow so user sees available actions when selection starts
@@ -106,12 +135,32 @@ public class LibraryActivity extends AppCompatActivity {
 
 		rvLibrary.setLayoutManager(new LinearLayoutManager(this));
 		rvLibrary.setAdapter(adapter);
+		if (ThumbnailLoader.isEnabled(this))
+			adapter.setThumbnailLoader(ThumbnailLoader.get(this));
 
 		swipeRefresh.setOnRefreshListener(this::reloadList);
-
+		setupSearch();
+
+		sortMode = getSharedPreferences("mhtplus_prefs", MODE_PRIVATE).getString(PREF_SORT_KEY,
+				LibraryCatalog.SORT_TIME_DESC);
+		sortComparator = comparatorFor(sortMode);
+		scanner = new LibraryScanner(LibraryIndex.get(this));
+		if (savedInstanceState == null)
+			LibraryTrash.get(this).purgeLeftoversAsync();
 		reloadList();
 	}
 
+	@Override
+	protected void onDestroy() {
+		if (scanner != null)
+			scanner.shutdown();
+		searchExecutor.shutdownNow();
+		// Lets a queued rename still write its meta.json
+		ioExecutor.shutdown();
+		adapter.setPager(null);
+		super.onDestroy();
+	}
+
 	private void handleIncomingIntent(Intent intent) {
 		if (intent == null)
 			return;
@@ -156,89 +205,206 @@ public class LibraryActivity extends AppCompatActivity {
 
 	private void reloadList() {
 		swipeRefresh.setRefreshing(true);
-		List<LibraryEntry> list = scanSavedFolders();
-		adapter.setItems(list);
-		tvEmpty.setVisibility(list.isEmpty() ? View.VISIBLE : View.GONE);
-		swipeRefresh.setRefreshing(false);
-		updateToolbarForSelection(adapter.getSelectedItems().size());
-	}
+		scanner.scan(new LibraryScanner.Listener() {
+			private boolean first = true;
+			private boolean paged = hostFilter != null; // a site's entries come from the catalog when done
 
-	// 3. scanSavedFolders
-	private List<LibraryEntry> scanSavedFolders() {
-		List<LibraryEntry> out = new ArrayList<>();
-		File baseDir = getExternalFilesDir("mht");
-		if (baseDir == null)
-			baseDir = new File(getFilesDir(), "mht");
-		if (!baseDir.exists())
-			return out;
-
-		File[] folders = baseDir.listFiles(File::isDirectory);
-		if (folders == null)
-			return out;
-
-		for (File f : folders) {
-			try {
-				// Accept both meta.json and metadata.json
-				File meta = new File(f, "meta.json");
-				if (!meta.exists())
-					meta = new File(f, "metadata.json");
-
-				String url = "";
-				long ts = f.lastModified();
-				String savedPath = null;
-
-				if (meta.exists()) {
-					FileInputStream fis = new FileInputStream(meta);
-					InputStreamReader isr = new InputStreamReader(fis, "UTF-8");
-					StringBuilder sb = new StringBuilder();
-					char[] buf = new char[1024];
-					int r;
-					while ((r = isr.read(buf)) > 0)
-						sb.append(buf, 0, r);
-					try {
-						isr.close();
-					} catch (Exception ignored) {
-					}
-					try {
-						fis.close();
-					} catch (Exception ignored) {
+			@Override
+			public void onBatch(List<LibraryEntry> batch) {
+				// Search results stay on screen until the scan completes
+				if (activeQuery != null || paged)
+					return;
+				// First batch replaces the list so the first screenful shows up right away
+				if (first) {
+					first = false;
+					if (batch.size() > PAGED_THRESHOLD) {
+						// Cached entries of a huge library: page them, and wait for the complete list
+						paged = true;
+						showEntries(batch, false);
+					} else {
+						List<LibraryEntry> sorted = new ArrayList<>(batch);
+						sorted.sort(sortComparator);
+						adapter.setItems(sorted);
 					}
-
-					JSONObject jo = new JSONObject(sb.toString());
-					url = jo.optString("url", jo.optString("uri", ""));
-					ts = jo.optLong("timestamp", ts);
-					// Accept both "savedPath" and "path"
-					savedPath = jo.optString("savedPath", jo.optString("path", null));
 				} else {
-					// Fallback: try to find page.mht
-					File page = new File(f, "page.mht");
-					if (page.exists())
-						savedPath = page.getAbsolutePath();
+					adapter.addItems(batch, sortComparator);
 				}
+				tvEmpty.setVisibility(View.GONE);
+			}
 
-				if (savedPath == null)
-					continue;
+			@Override
+			public void onComplete(List<LibraryEntry> entries) {
+				SearchIndex.get(LibraryActivity.this).syncWithLibraryAsync(entries);
+				swipeRefresh.setRefreshing(false);
+				if (activeQuery != null) {
+					runSearch(activeQuery);
+					return;
+				}
+				showEntries(entries, false);
+				tvEmpty.setText("No saved pages");
+				tvEmpty.setVisibility(entries.isEmpty() ? View.VISIBLE : View.GONE);
+				updateToolbarForSelection(adapter.getSelectedItems().size());
+				showSpaceSaved();
+			}
+		});
+	}
 
-				// Derive display title as filename if possible, otherwise fallback to folder name
-				String displayTitle;
-				if (savedPath.startsWith("content://")) {
-					// content URI may not expose filename reliably; use folder name
-					displayTitle = f.getName();
-				} else {
-					File sp = new File(savedPath);
-					displayTitle = sp.getName();
-					if (displayTitle == null || displayTitle.isEmpty())
-						displayTitle = f.getName();
+	/**
+	 * Shows entries off the main thread. A site filter and lists above {@link #PAGED_THRESHOLD} entries go to
+	 * a {@link LibraryPager} that reads sorted pages from the catalog, so the list only ever holds a few pages
+	 * of them; smaller lists are sorted in memory.
+	 *
+	 * @param entries the entries, or null for the whole library.
+	 * @param reordered true if the entries are the ones on screen in another order, which skips diffing.
+	 */
+	private void showEntries(final List<LibraryEntry> entries, final boolean reordered) {
+		final int generation = ++listGeneration;
+		final Comparator<LibraryEntry> order = sortComparator;
+		final String mode = sortMode;
+		final String host = hostFilter;
+		final LibraryIndex libraryIndex = LibraryIndex.get(this);
+		try {
+			searchExecutor.execute(() -> {
+				LibraryCatalog catalog = libraryIndex.getCatalog();
+				LibraryPager pager = null;
+				List<LibraryEntry> sorted = null;
+				try {
+					int size = entries != null ? entries.size() : catalog.count(null);
+					if (host != null || size > PAGED_THRESHOLD)
+						pager = LibraryPager.open(catalog, mode, host);
+				} catch (Exception ignored) {
+					// fall back to the in-memory list
 				}
+				if (pager == null) {
+					sorted = new ArrayList<>(entries != null ? entries : libraryIndex.entries());
+					sorted.sort(order);
+					LibraryAdapter.formatSubtitles(subtitleFormat, sorted);
+				}
+				final LibraryPager newPager = pager;
+				final List<LibraryEntry> newList = sorted;
+				runOnUiThread(() -> {
+					if (generation != listGeneration || isFinishing()) {
+						if (newPager != null)
+							newPager.close();
+						return;
+					}
+					if (newPager != null)
+						adapter.setPager(newPager);
+					else if (reordered)
+						adapter.setItemsReordered(newList);
+					else
+						adapter.setItems(newList);
+					updateToolbarForSelection(adapter.getSelectedItems().size());
+				});
+			});
+		} catch (Exception ignored) {
+			// executor already shut down
+		}
+	}
 
-				out.add(new LibraryEntry(f.getName(), displayTitle, url, ts, savedPath));
-			} catch (Exception ignored) {
+	/**
+	 * Shows how much disk space compressed archives save, as the toolbar subtitle. Summed by the catalog from
+	 * sizes recorded when each archive was read, so no archive is opened.
+	 */
+	private void showSpaceSaved() {
+		final LibraryCatalog catalog = LibraryIndex.get(this).getCatalog();
+		try {
+			ioExecutor.execute(() -> {
+				long total;
+				try {
+					total = catalog.savedBytes();
+				} catch (Exception e) {
+					total = 0;
+				}
+				final long saved = total;
+				runOnUiThread(() -> {
+					if (toolbar != null)
+						toolbar.setSubtitle(saved > 0 ? "Compression saved " + ArchiveStorage.formatSize(saved) : null);
+				});
+			});
+		} catch (Exception ignored) {
+			// executor already shut down
+		}
+	}
+
+	private void setupSearch() {
+		etSearch = findViewById(R.id.et_search);
+		View go = findViewById(R.id.btn_search_go);
+		if (etSearch == null)
+			return;
+		etSearch.setImeOptions(EditorInfo.IME_ACTION_SEARCH);
+		etSearch.setOnEditorActionListener((v, actionId, event) -> {
+			if (actionId == EditorInfo.IME_ACTION_SEARCH) {
+				onSearchQuery(etSearch.getText().toString());
+				return true;
+			}
+			return false;
+		});
+		// Live search: index lookups are cheap, so results follow typing
+		etSearch.addTextChangedListener(new TextWatcher() {
+			@Override
+			public void beforeTextChanged(CharSequence s, int start, int count, int after) {
 			}
+
+			@Override
+			public void onTextChanged(CharSequence s, int start, int before, int count) {
+			}
+
+			@Override
+			public void afterTextChanged(Editable s) {
+				onSearchQuery(s.toString());
+			}
+		});
+		if (go != null)
+			go.setOnClickListener(v -> onSearchQuery(etSearch.getText().toString()));
+	}
+
+	private void onSearchQuery(String query) {
+		String q = query != null ? query.trim() : "";
+		if (q.isEmpty()) {
+			if (activeQuery != null) {
+				activeQuery = null;
+				searchGeneration++;
+				reloadList();
+			}
+			return;
 		}
+		if (q.equals(activeQuery))
+			return;
+		activeQuery = q;
+		runSearch(q);
+	}
 
-		// Sort newest first
-		out.sort((a, b) -> Long.compare(b.timestamp, a.timestamp));
-		return out;
+	/**
+	 * Queries the full-text index off the main thread and shows the hits in relevance order.
+	 */
+	private void runSearch(final String query) {
+		final int generation = ++searchGeneration;
+		listGeneration++; // a list still being sorted must not replace the hits
+		final SearchIndex searchIndex = SearchIndex.get(this);
+		final LibraryIndex libraryIndex = LibraryIndex.get(this);
+		final String host = hostFilter;
+		try {
+			searchExecutor.execute(() -> {
+				List<String> folders = searchIndex.search(query, SEARCH_LIMIT);
+				final List<LibraryEntry> hits = new ArrayList<>(folders.size());
+				for (String folder : folders) {
+					LibraryEntry e = libraryIndex.find(folder);
+					if (e != null && (host == null || host.equals(LibraryCatalog.hostOf(e.url))))
+						hits.add(e);
+				}
+				LibraryAdapter.formatSubtitles(subtitleFormat, hits);
+				runOnUiThread(() -> {
+					if (generation != searchGeneration || isFinishing())
+						return;
+					adapter.setItemsReordered(hits);
+					tvEmpty.setText("No matches");
+					tvEmpty.setVisibility(hits.isEmpty() ? View.VISIBLE : View.GONE);
+				});
+			});
+		} catch (Exception ignored) {
+			// executor already shut down
+		}
 	}
 
 	private void openSavedMht(LibraryEntry entry) {
@@ -269,6 +435,44 @@ public class LibraryActivity extends AppCompatActivity {
 		}
 	}
 
+	/**
+	 * Shares an entry as a plain MHT file; containers and compressed archives are exported first.
+	 */
+	private void shareEntry(final LibraryEntry entry) {
+		if (entry.savedPath == null)
+			return;
+		if (entry.savedPath.startsWith("content://")) {
+			startShare(Uri.parse(entry.savedPath));
+			return;
+		}
+		final File stored = new File(entry.savedPath);
+		try {
+			ioExecutor.execute(() -> {
+				try {
+					File mht = ArchiveStorage.exportMht(this, stored, entry.title);
+					final Uri uri = FileProvider.getUriForFile(this, getPackageName() + ".fileprovider", mht);
+					runOnUiThread(() -> {
+						if (!isFinishing())
+							startShare(uri);
+					});
+				} catch (Exception e) {
+					runOnUiThread(() -> Toast.makeText(this, "Unable to share: " + e.getMessage(),
+							Toast.LENGTH_SHORT).show());
+				}
+			});
+		} catch (Exception ignored) {
+			// executor already shut down
+		}
+	}
+
+	private void startShare(Uri uri) {
+		Intent send = new Intent(Intent.ACTION_SEND);
+		send.setType("multipart/related");
+		send.putExtra(Intent.EXTRA_STREAM, uri);
+		send.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+		startActivity(Intent.createChooser(send, "Share archive"));
+	}
+
 	private void deleteEntry(LibraryEntry entry) {
 		confirmAndDeleteEntries(java.util.Collections.singletonList(entry));
 	}
@@ -277,6 +481,12 @@ public class LibraryActivity extends AppCompatActivity {
 	public boolean onCreateOptionsMenu(Menu menu) {
 		getMenuInflater().inflate(R.menu.library_menu, menu);
 		this.menu = menu;
+		MenuItem compress = menu.findItem(R.id.action_compress);
+		if (compress != null)
+			compress.setChecked(ArchiveStorage.isCompressionEnabled(this));
+		MenuItem thumbnails = menu.findItem(R.id.action_thumbnails);
+		if (thumbnails != null)
+			thumbnails.setChecked(ThumbnailLoader.isEnabled(this));
 		updateToolbarForSelection(0); // initial state
 		return true;
 	}
@@ -285,11 +495,8 @@ public class LibraryActivity extends AppCompatActivity {
 	public boolean onOptionsItemSelected(MenuItem item) {
 		int id = item.getItemId();
 		if (id == R.id.action_select_all) {
-			// enter selection mode and select all
-			adapter.enterSelectionMode(true);
-			for (LibraryEntry e : adapter.getItems()) {
-				adapter.selectById(e.folderName, true);
-			}
+			// enter selection mode and select all in one pass
+			adapter.selectAll();
 			updateToolbarForSelection(adapter.getSelectedItems().size());
 			return true;
 		} else if (id == R.id.action_delete) {
@@ -302,6 +509,27 @@ public class LibraryActivity extends AppCompatActivity {
 			if (sel.size() == 1)
 				showRenameDialog(sel.get(0));
 			return true;
+		} else if (id == R.id.action_share) {
+			List<LibraryEntry> sel = adapter.getSelectedItems();
+			if (sel.size() == 1)
+				shareEntry(sel.get(0));
+			return true;
+		} else if (id == R.id.action_compress) {
+			boolean enabled = !item.isChecked();
+			item.setChecked(enabled);
+			ArchiveStorage.setCompressionEnabled(this, enabled);
+			Toast.makeText(this, enabled ? "New archives will be stored compressed"
+					: "New archives will be stored as-is", Toast.LENGTH_SHORT).show();
+			return true;
+		} else if (id == R.id.action_thumbnails) {
+			boolean enabled = !item.isChecked();
+			item.setChecked(enabled);
+			ThumbnailLoader.setEnabled(this, enabled);
+			adapter.setThumbnailLoader(enabled ? ThumbnailLoader.get(this) : null);
+			return true;
+		} else if (id == R.id.action_filter_site) {
+			showSiteFilterDialog();
+			return true;
 		} else if (id == R.id.sort_name || id == R.id.sort_time_desc || id == R.id.sort_time_asc) {
 			applySort(id);
 			return true;
@@ -314,17 +542,20 @@ public class LibraryActivity extends AppCompatActivity {
 			return;
 		MenuItem delete = menu.findItem(R.id.action_delete);
 		MenuItem rename = menu.findItem(R.id.action_rename);
+		MenuItem share = menu.findItem(R.id.action_share);
 
 		if (delete != null)
 			delete.setEnabled(count > 0);
 		if (rename != null)
 			rename.setEnabled(count == 1);
+		if (share != null)
+			share.setEnabled(count == 1);
 
 		if (getSupportActionBar() != null) {
 			if (count > 0)
 				getSupportActionBar().setTitle(count + " selected");
 			else
-				getSupportActionBar().setTitle("Library");
+				getSupportActionBar().setTitle(hostFilter != null ? hostFilter : "Library");
 		}
 	}
 
@@ -332,40 +563,87 @@ public class LibraryActivity extends AppCompatActivity {
 
 	private void applySort(int menuId) {
 		// Determine sort mode and persist it
-		String sortMode;
 		if (menuId == R.id.sort_name) {
-			sortMode = "name_asc";
+			sortMode = LibraryCatalog.SORT_NAME;
 		} else if (menuId == R.id.sort_time_asc) {
-			sortMode = "time_asc";
+			sortMode = LibraryCatalog.SORT_TIME_ASC;
 		} else { // default / R.id.sort_time_desc
-			sortMode = "time_desc";
+			sortMode = LibraryCatalog.SORT_TIME_DESC;
 		}
 
 		// persist choice (simple SharedPreferences)
 		getSharedPreferences("mhtplus_prefs", MODE_PRIVATE).edit().putString(PREF_SORT_KEY, sortMode).apply();
 
-		// Apply to current adapter items
+		sortComparator = comparatorFor(sortMode);
+
+		// A paged library is re-read from the catalog in the new order; a list (e.g. search hits) is re-sorted
+		if (adapter.isPaged()) {
+			showEntries(null, true);
+			return;
+		}
 		List<LibraryEntry> items = adapter.getItems();
 		if (items == null || items.isEmpty()) {
 			// nothing to sort
 			return;
 		}
+		showEntries(items, true);
+	}
 
-		if ("name_asc".equals(sortMode)) {
-			items.sort((a, b) -> {
+	private static Comparator<LibraryEntry> comparatorFor(String sortMode) {
+		if (LibraryCatalog.SORT_NAME.equals(sortMode)) {
+			return (a, b) -> {
 				String n1 = (a.title != null && !a.title.isEmpty()) ? a.title : a.folderName;
 				String n2 = (b.title != null && !b.title.isEmpty()) ? b.title : b.folderName;
 				return n1.compareToIgnoreCase(n2);
+			};
+		} else if (LibraryCatalog.SORT_TIME_ASC.equals(sortMode)) {
+			return (a, b) -> Long.compare(a.timestamp, b.timestamp);
+		}
+		// time_desc
+		return LibraryIndex.NEWEST_FIRST;
+	}
+
+	/**
+	 * Lets the user narrow the library to the pages saved from one site, busiest sites first.
+	 */
+	private void showSiteFilterDialog() {
+		final LibraryCatalog catalog = LibraryIndex.get(this).getCatalog();
+		try {
+			searchExecutor.execute(() -> {
+				Map<String, Integer> counts;
+				try {
+					counts = catalog.hostCounts();
+				} catch (Exception e) {
+					counts = new LinkedHashMap<>();
+				}
+				final List<String> hosts = new ArrayList<>(counts.keySet());
+				final String[] labels = new String[hosts.size() + 1];
+				labels[0] = "All sites";
+				for (int i = 0; i < hosts.size(); i++)
+					labels[i + 1] = hosts.get(i) + " (" + counts.get(hosts.get(i)) + ")";
+				runOnUiThread(() -> {
+					if (isFinishing())
+						return;
+					new AlertDialog.Builder(this).setTitle("Filter by site")
+							.setItems(labels, (d, which) -> setHostFilter(which == 0 ? null : hosts.get(which - 1)))
+							.setNegativeButton("Cancel", null).show();
+				});
 			});
-		} else if ("time_asc".equals(sortMode)) {
-			items.sort((a, b) -> Long.compare(a.timestamp, b.timestamp));
-		} else { // time_desc
-			items.sort((a, b) -> Long.compare(b.timestamp, a.timestamp));
+		} catch (Exception ignored) {
+			// executor already shut down
 		}
+	}
 
-		// update adapter and UI
-		adapter.setItems(items);
-		adapter.notifyDataSetChanged();
+	private void setHostFilter(String host) {
+		if (host == null ? hostFilter == null : host.equals(hostFilter))
+			return;
+		hostFilter = host;
+		adapter.enterSelectionMode(false);
+		updateToolbarForSelection(0);
+		if (activeQuery != null)
+			runSearch(activeQuery);
+		else
+			showEntries(null, false);
 	}
 
 	private void confirmAndDeleteEntries(List<LibraryEntry> entries) {
@@ -377,37 +655,79 @@ public class LibraryActivity extends AppCompatActivity {
 				.setNegativeButton("Cancel", null).show();
 	}
 
+	/**
+	 * Moves the entries to the trash in the background. Their rows go right away; the snackbar shows
+	 * progress, then offers an undo until it is dismissed, after which the files are deleted for good.
+	 */
 	private void deleteEntries(List<LibraryEntry> entries) {
-		File baseDir = getExternalFilesDir("mht");
-		if (baseDir == null)
-			baseDir = new File(getFilesDir(), "mht");
-
-		boolean anyFailed = false;
-		for (LibraryEntry e : entries) {
-			try {
-				File dir = new File(baseDir, e.folderName);
-				// If folder exists under our app directory, safely delete it
-				if (dir.exists() && dir.isDirectory()) {
-					deleteRecursively(dir);
-				} else {
-					// Folder not present: try to remove meta.json if exists in a folder with that name
-					File metaDir = new File(baseDir, e.folderName);
-					File meta = new File(metaDir, "meta.json");
-					if (meta.exists())
-						meta.delete();
-				}
-			} catch (Exception ex) {
-				anyFailed = true;
+		final LibraryTrash trash = LibraryTrash.get(this);
+		final int count = entries.size();
+		List<String> folders = new ArrayList<>(count);
+		for (LibraryEntry e : entries)
+			folders.add(e.folderName);
+		adapter.enterSelectionMode(false);
+		adapter.removeItems(folders);
+
+		final Snackbar bar = Snackbar.make(findViewById(R.id.library_root), "Deleting " + count + " item(s)…",
+				Snackbar.LENGTH_INDEFINITE);
+		bar.show();
+		trash.trash(entries, new LibraryTrash.Listener() {
+			@Override
+			public void onProgress(int done, int total) {
+				bar.setText("Deleting " + done + " of " + total + "…");
 			}
-		}
 
-		if (!anyFailed)
-			Toast.makeText(this, "Deleted " + entries.size() + " item(s)", Toast.LENGTH_SHORT).show();
-		else
-			Toast.makeText(this, "Some deletes failed", Toast.LENGTH_SHORT).show();
+			@Override
+			public void onTrashed(final LibraryTrash.Batch batch, int failed) {
+				if (isFinishing() || isDestroyed()) {
+					// Nobody left to undo it
+					trash.purge(batch);
+					return;
+				}
+				if (failed > 0) {
+					Toast.makeText(LibraryActivity.this, "Some deletes failed", Toast.LENGTH_SHORT).show();
+					reloadList(); // brings back the rows that stayed
+				} else if (adapter.isPaged()) {
+					showEntries(null, false);
+				}
+				if (adapter.getItemCount() == 0 && activeQuery == null) {
+					tvEmpty.setText("No saved pages");
+					tvEmpty.setVisibility(View.VISIBLE);
+				}
+				if (batch.getEntries().isEmpty()) {
+					bar.dismiss();
+					return;
+				}
+				final LibraryTrash.Listener listener = this;
+				bar.setText("Deleted " + batch.getEntries().size() + " item(s)");
+				bar.setAction("Undo", v -> trash.restore(batch, listener));
+				bar.addCallback(new Snackbar.Callback() {
+					@Override
+					public void onDismissed(Snackbar snackbar, int event) {
+						if (event != DISMISS_EVENT_ACTION)
+							trash.purge(batch);
+					}
+				});
+				bar.setDuration(Snackbar.LENGTH_LONG);
+				bar.show();
+			}
 
-		adapter.enterSelectionMode(false);
-		reloadList();
+			@Override
+			public void onRestored(List<LibraryEntry> restored, int failed) {
+				if (isFinishing() || isDestroyed())
+					return;
+				if (failed > 0)
+					Toast.makeText(LibraryActivity.this, "Some items could not be restored", Toast.LENGTH_SHORT).show();
+				if (activeQuery != null)
+					runSearch(activeQuery);
+				else if (adapter.isPaged())
+					showEntries(null, false);
+				else
+					adapter.addItems(restored, sortComparator);
+				if (!restored.isEmpty())
+					tvEmpty.setVisibility(View.GONE);
+			}
+		});
 	}
 
 	private void showRenameDialog(LibraryEntry entry) {
@@ -425,124 +745,85 @@ public class LibraryActivity extends AppCompatActivity {
 	}
 
 	private String deriveDisplayBaseName(LibraryEntry e) {
-		if (e.savedPath != null && !e.savedPath.startsWith("content://")) {
-			File f = new File(e.savedPath);
-			String name = f.getName();
-			if (name.endsWith(".mht"))
-				name = name.substring(0, name.length() - 4);
-			return name;
-		}
+		if (e.title != null && !e.title.isEmpty())
+			return ArchiveStorage.baseName(e.title);
 		// fallback to folder name
 		return e.folderName;
 	}
 
-	private void renameEntry(LibraryEntry entry, String newBaseName) {
-		File baseDir = getExternalFilesDir("mht");
-		if (baseDir == null)
-			baseDir = new File(getFilesDir(), "mht");
-
-		File oldDir = new File(baseDir, entry.folderName);
-		String safeFolder = newBaseName.replaceAll("[^A-Za-z0-9._-]", "_");
-		File newDir = new File(baseDir, safeFolder);
-
-		if (newDir.exists()) {
-			Toast.makeText(this, "Name already exists", Toast.LENGTH_SHORT).show();
+	/**
+	 * Renames an entry by giving it a display name: the row and the catalog change, the folder and archive
+	 * keep their names. Only meta.json is rewritten, in the background, so this takes the same time for any
+	 * archive or library size.
+	 */
+	private void renameEntry(final LibraryEntry entry, String newBaseName) {
+		boolean local = entry.savedPath != null && !entry.savedPath.startsWith("content://");
+		// Local archives show as file names, so keep the extension they always had
+		final String title = local ? ArchiveStorage.baseName(newBaseName) + ".mht" : newBaseName;
+		if (title.equals(entry.title))
 			return;
-		}
+		final File folder = new File(LibraryIndex.getBaseDir(this), entry.folderName);
+		final LibraryIndex libraryIndex = LibraryIndex.get(this);
+		final MetadataStore metadataStore = MetadataStore.get(this);
 
-		boolean moved = false;
+		final LibraryEntry renamed = entry.withTitle(title);
+		adapter.enterSelectionMode(false);
+		adapter.updateItem(renamed);
 		try {
-			if (oldDir.exists() && oldDir.isDirectory()) {
-				moved = oldDir.renameTo(newDir);
-				// Update meta.json path/title if present
-				File meta = new File(newDir, "meta.json");
-				if (meta.exists()) {
-					try {
-						FileInputStream fis = new FileInputStream(meta);
-						InputStreamReader isr = new InputStreamReader(fis, "UTF-8");
-						StringBuilder sb = new StringBuilder();
-						char[] buf = new char[1024];
-						int r;
-						while ((r = isr.read(buf)) > 0)
-							sb.append(buf, 0, r);
-						try {
-							isr.close();
-						} catch (Exception ignored) {
-						}
-						try {
-							fis.close();
-						} catch (Exception ignored) {
-						}
-						JSONObject jo = new JSONObject(sb.toString());
-						jo.put("title", newBaseName);
-						// If meta contained a saved local path pointing to a file inside the folder, update it
-						String path = jo.optString("savedPath", jo.optString("path", null));
-						if (path != null && !path.startsWith("content://")) {
-							File oldFile = new File(path);
-							if (oldFile.exists()) {
-								String newFileName = newBaseName;
-								if (!newFileName.endsWith(".mht"))
-									newFileName += ".mht";
-								File newFile = new File(newDir, newFileName);
-								// Attempt to rename internal file
-								try {
-									oldFile.renameTo(newFile);
-									jo.put("savedPath", newFile.getAbsolutePath());
-								} catch (Exception ignored) {
-								}
-							}
+			ioExecutor.execute(() -> {
+				boolean saved = false;
+				try {
+					if (folder.isDirectory()) {
+						JSONObject jo = MetadataStore.read(folder);
+						if (jo == null) {
+							// Folder with a bare page.mht or a legacy metadata file: give it a meta.json
+							jo = new JSONObject();
+							jo.put("path", entry.savedPath);
+							jo.put("uri", entry.url != null ? entry.url : "");
+							jo.put("timestamp", entry.timestamp);
 						}
-						try (FileOutputStream fos = new FileOutputStream(meta);
-								OutputStreamWriter os = new OutputStreamWriter(fos)) {
-							os.write(jo.toString());
-						}
-					} catch (Exception ignored) {
+						jo.put(LibraryIndex.KEY_DISPLAY_NAME, title);
+						metadataStore.write(folder, jo);
+						libraryIndex.update(folder);
+						saved = true;
 					}
+				} catch (Exception ignored) {
 				}
-			} else {
-				// directory missing (external entry) — create a new folder to hold metadata
-				if (newDir.mkdirs()) {
-					JSONObject jo = new JSONObject();
-					try {
-						jo.put("title", newBaseName);
-						jo.put("path", entry.savedPath);
-						jo.put("uri", entry.url != null ? entry.url : "");
-						jo.put("timestamp", System.currentTimeMillis());
-						try (FileOutputStream fos = new FileOutputStream(new File(newDir, "meta.json"));
-								OutputStreamWriter os = new OutputStreamWriter(fos)) {
-							os.write(jo.toString());
-						}
-						moved = true;
-					} catch (Exception ex) {
-						moved = false;
-					}
+				if (saved) {
+					// Title words weigh more in the ranking; re-index so the new ones count and the old ones go
+					SearchIndex.get(this).indexArchiveAsync(entry.folderName, entry.savedPath, title);
+					runOnUiThread(() -> moveRenamedRow(renamed));
+				} else {
+					runOnUiThread(() -> {
+						adapter.updateItem(entry);
+						Toast.makeText(this, "Rename failed", Toast.LENGTH_SHORT).show();
+					});
 				}
-			}
-		} catch (Exception e) {
-			moved = false;
-		}
-
-		if (moved) {
-			Toast.makeText(this, "Renamed", Toast.LENGTH_SHORT).show();
-			adapter.enterSelectionMode(false);
-			reloadList();
-		} else {
-			Toast.makeText(this, "Rename failed", Toast.LENGTH_SHORT).show();
+			});
+		} catch (Exception ignored) {
+			// executor already shut down
 		}
 	}
 
-	private boolean deleteRecursively(File f) {
-		if (f == null || !f.exists())
-			return true;
-		if (f.isDirectory()) {
-			File[] children = f.listFiles();
-			if (children != null) {
-				for (File c : children) {
-					if (!deleteRecursively(c))
-						return false;
-				}
-			}
+	/**
+	 * Puts a renamed row where its new title sorts. Only the name order depends on the title, and search
+	 * hits keep their relevance order.
+	 */
+	private void moveRenamedRow(LibraryEntry renamed) {
+		if (isFinishing() || activeQuery != null || !LibraryCatalog.SORT_NAME.equals(sortMode))
+			return;
+		if (adapter.isPaged()) {
+			// The pages were read in the old order; the catalog has the new title by now
+			showEntries(null, false);
+			return;
+		}
+		List<LibraryEntry> resorted = new ArrayList<>(adapter.getItems());
+		for (int i = 0; i < resorted.size(); i++) {
+			// The in-place update may not have reached the list yet
+			if (resorted.get(i).folderName.equals(renamed.folderName))
+				resorted.set(i, renamed);
 		}
-		return f.delete();
+		resorted.sort(sortComparator);
+		adapter.setItems(resorted);
 	}
 }
@@ -1,5 +1,6 @@
 package com.ccko.mhtplus;
 
+import android.graphics.Bitmap;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -8,14 +9,22 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 public class LibraryAdapter extends RecyclerView.Adapter<LibraryAdapter.VH> {
 
@@ -31,98 +40,277 @@ public class LibraryAdapter extends RecyclerView.Adapter<LibraryAdapter.VH> {
 		void onLongPress(LibraryEntry entry);
 	}
 
-	private final List<LibraryEntry> items = new ArrayList<>();
+	// Payload for partial binds that only touch checkbox/highlight state
+	private static final Object PAYLOAD_SELECTION = new Object();
+
+	private static final DiffUtil.ItemCallback<LibraryEntry> DIFF_CALLBACK = new DiffUtil.ItemCallback<LibraryEntry>() {
+		@Override
+		public boolean areItemsTheSame(@NonNull LibraryEntry a, @NonNull LibraryEntry b) {
+			return a.folderName.equals(b.folderName);
+		}
+
+		@Override
+		public boolean areContentsTheSame(@NonNull LibraryEntry a, @NonNull LibraryEntry b) {
+			return a.timestamp == b.timestamp && Objects.equals(a.title, b.title) && Objects.equals(a.url, b.url)
+					&& Objects.equals(a.savedPath, b.savedPath);
+		}
+	};
+
+	// List diffs are computed on a background thread; getCurrentList() is immutable
+	private final AsyncListDiffer<LibraryEntry> differ = new AsyncListDiffer<>(this, DIFF_CALLBACK);
+	private final Map<String, Integer> positions = new HashMap<>(); // folderName -> adapter position
 	private final Callback callback;
 
 	// Selection state
 	private final Set<String> selectedIds = new HashSet<>(); // use folderName as stable id
 	private boolean selectionMode = false;
 
+	private ThumbnailLoader thumbnails; // null when thumbnails are turned off
+	private LibraryPager pager; // set for very large libraries; the differ's list is empty meanwhile
+
 	public LibraryAdapter(Callback callback) {
 		this.callback = callback;
+		differ.addListListener((previous, current) -> rebuildPositions(current));
 	}
 
+	/**
+	 * @return the in-memory list; empty while a pager is shown.
+	 */
 	public List<LibraryEntry> getItems() {
-		return items;
+		return differ.getCurrentList();
 	}
 
-	public void setItems(List<LibraryEntry> list) {
-		items.clear();
-		if (list != null)
-			items.addAll(list);
-		selectedIds.clear();
-		selectionMode = false;
+	public boolean isPaged() {
+		return pager != null;
+	}
+
+	/**
+	 * Shows a paged list: rows are read from the pager as they scroll into view. Replaces (and closes) the
+	 * previous pager and drops the in-memory list; selection is cleared.
+	 */
+	public void setPager(LibraryPager newPager) {
+		if (newPager == null) {
+			leavePagedMode();
+			return;
+		}
+		differ.submitList(null);
+		if (pager != null)
+			pager.close();
+		pager = newPager;
+		pager.setListener((start, count) -> notifyItemRangeChanged(start, count));
 		notifyDataSetChanged();
-		if (callback != null)
-			callback.onSelectionChanged(0);
+		clearSelection();
+	}
+
+	private void leavePagedMode() {
+		if (pager == null)
+			return;
+		pager.close();
+		pager = null;
+		notifyDataSetChanged();
+	}
+
+	/**
+	 * Replaces the list. Only the rows that actually changed are rebound; selection is cleared.
+	 */
+	public void setItems(List<LibraryEntry> list) {
+		leavePagedMode();
+		differ.submitList(list != null ? new ArrayList<>(list) : null);
+		clearSelection();
+	}
+
+	/**
+	 * Replaces the list with a re-ordered copy of itself. A full re-order makes DiffUtil quadratic, so the
+	 * old list is dropped and the new one inserted in one step instead of being diffed.
+	 */
+	public void setItemsReordered(List<LibraryEntry> list) {
+		leavePagedMode();
+		differ.submitList(null);
+		differ.submitList(list != null ? new ArrayList<>(list) : null);
+		clearSelection();
+	}
+
+	/**
+	 * Merges a batch of newly loaded entries into the list, keeping it ordered by the given comparator.
+	 * Selection state is preserved.
+	 */
+	public void addItems(List<LibraryEntry> list, Comparator<LibraryEntry> comparator) {
+		if (list == null || list.isEmpty() || pager != null)
+			return;
+		List<LibraryEntry> merged = new ArrayList<>(differ.getCurrentList().size() + list.size());
+		merged.addAll(differ.getCurrentList());
+		merged.addAll(list);
+		if (comparator != null)
+			merged.sort(comparator);
+		differ.submitList(merged);
+	}
+
+	/**
+	 * Turns row thumbnails on (with the loader to take them from) or off (null).
+	 */
+	public void setThumbnailLoader(ThumbnailLoader loader) {
+		if (thumbnails == loader)
+			return;
+		thumbnails = loader;
+		int count = getItemCount();
+		if (count > 0)
+			notifyItemRangeChanged(0, count);
+	}
+
+	/**
+	 * Drops entries from the in-memory list, e.g. right after they were deleted. Selection is cleared.
+	 *
+	 * @return false in paged mode, where the pager has to be rebuilt instead.
+	 */
+	public boolean removeItems(Collection<String> folderNames) {
+		if (pager != null)
+			return false;
+		Set<String> gone = new HashSet<>(folderNames);
+		List<LibraryEntry> kept = new ArrayList<>(differ.getCurrentList().size());
+		for (LibraryEntry e : differ.getCurrentList()) {
+			if (!gone.contains(e.folderName))
+				kept.add(e);
+		}
+		differ.submitList(kept);
+		clearSelection();
+		return true;
+	}
+
+	/**
+	 * Replaces one entry with an updated copy of it (same folder name) and rebinds only its row.
+	 */
+	public void updateItem(LibraryEntry entry) {
+		if (pager != null) {
+			int pos = pager.replace(entry);
+			if (pos >= 0)
+				notifyItemChanged(pos);
+			return;
+		}
+		Integer pos = positions.get(entry.folderName);
+		if (pos == null)
+			return;
+		List<LibraryEntry> updated = new ArrayList<>(differ.getCurrentList());
+		updated.set(pos, entry);
+		differ.submitList(updated);
 	}
 
 	public void enterSelectionMode(boolean enter) {
+		if (selectionMode == enter && (enter || selectedIds.isEmpty()))
+			return;
 		selectionMode = enter;
 		if (!enter)
 			selectedIds.clear();
-		notifyDataSetChanged();
+		notifySelectionChangedAll();
 		if (callback != null)
 			callback.onSelectionChanged(selectedIds.size());
 	}
 
 	public void toggleSelection(LibraryEntry e) {
 		String id = e.folderName;
-		if (selectedIds.contains(id))
-			selectedIds.remove(id);
-		else
-			selectedIds.add(id);
+		selectById(id, !selectedIds.contains(id));
+	}
+
+	public void selectById(String id, boolean select) {
+		boolean changed = select ? selectedIds.add(id) : selectedIds.remove(id);
+		boolean wasSelectionMode = selectionMode;
 		selectionMode = !selectedIds.isEmpty();
-		notifyDataSetChanged();
+		if (wasSelectionMode != selectionMode) {
+			// checkbox visibility flips on every row
+			notifySelectionChangedAll();
+		} else if (changed) {
+			int pos = positionOf(id);
+			if (pos >= 0)
+				notifyItemChanged(pos, PAYLOAD_SELECTION);
+		}
 		if (callback != null)
 			callback.onSelectionChanged(selectedIds.size());
 	}
 
-	public void selectById(String id, boolean select) {
-		if (select)
-			selectedIds.add(id);
-		else
-			selectedIds.remove(id);
+	/**
+	 * Selects every entry with a single partial rebind of the visible rows.
+	 */
+	public void selectAll() {
+		if (pager != null) {
+			final LibraryPager current = pager;
+			current.loadFolderNames(names -> {
+				if (pager == current)
+					selectFolders(names);
+			});
+			return;
+		}
+		List<LibraryEntry> items = differ.getCurrentList();
+		for (LibraryEntry e : items)
+			selectedIds.add(e.folderName);
 		selectionMode = !selectedIds.isEmpty();
-		notifyDataSetChanged();
+		notifySelectionChangedAll();
+		if (callback != null)
+			callback.onSelectionChanged(selectedIds.size());
+	}
+
+	private void selectFolders(List<String> folderNames) {
+		selectedIds.addAll(folderNames);
+		selectionMode = !selectedIds.isEmpty();
+		notifySelectionChangedAll();
 		if (callback != null)
 			callback.onSelectionChanged(selectedIds.size());
 	}
 
 	public List<LibraryEntry> getSelectedItems() {
 		List<LibraryEntry> out = new ArrayList<>();
-		for (LibraryEntry e : items)
+		if (pager != null) {
+			for (String id : selectedIds) {
+				LibraryEntry e = pager.find(id);
+				if (e != null)
+					out.add(e);
+			}
+			return out;
+		}
+		for (LibraryEntry e : differ.getCurrentList())
 			if (selectedIds.contains(e.folderName))
 				out.add(e);
 		return out;
 	}
 
-	@NonNull
-	@Override
-	public VH onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
-		View v = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_library_row, parent, false);
-		return new VH(v);
+	private void clearSelection() {
+		boolean hadSelection = selectionMode || !selectedIds.isEmpty();
+		selectedIds.clear();
+		selectionMode = false;
+		if (hadSelection)
+			notifySelectionChangedAll();
+		if (callback != null)
+			callback.onSelectionChanged(0);
 	}
 
-	@Override
-	public void onBindViewHolder(@NonNull VH holder, int position) {
-		final LibraryEntry e = items.get(position);
-
-		String title = (e.title == null || e.title.isEmpty()) ? e.folderName : e.title;
-		holder.tv1.setText(title);
+	private void notifySelectionChangedAll() {
+		int count = getItemCount();
+		if (count > 0)
+			notifyItemRangeChanged(0, count, PAYLOAD_SELECTION);
+	}
 
-		String subtitle = DateFormat.getDateTimeInstance().format(new Date(e.timestamp));
-		holder.tv2.setText(subtitle);
+	private int positionOf(String folderName) {
+		if (pager != null)
+			return pager.positionOf(folderName);
+		Integer pos = positions.get(folderName);
+		return pos != null ? pos : -1;
+	}
 
-		// Selection UI
-		holder.checkbox.setVisibility(selectionMode ? View.VISIBLE : View.GONE);
-		boolean checked = selectedIds.contains(e.folderName);
-		holder.checkbox.setChecked(checked);
+	private void rebuildPositions(List<LibraryEntry> current) {
+		positions.clear();
+		for (int i = 0; i < current.size(); i++)
+			positions.put(current.get(i).folderName, i);
+	}
 
-		holder.itemView.setActivated(checked);
-		holder.itemView.setBackgroundColor(checked ? 0x2200FF00 : 0x00000000);
+	@NonNull
+	@Override
+	public VH onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+		View v = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_library_row, parent, false);
+		final VH holder = new VH(v);
 
-		holder.itemView.setOnClickListener(v -> {
+		// Listeners are attached once per holder and resolve the entry from its current position
+		v.setOnClickListener(view -> {
+			LibraryEntry e = entryAt(holder);
+			if (e == null)
+				return;
 			if (selectionMode) {
 				toggleSelection(e);
 			} else {
@@ -131,7 +319,10 @@ public class LibraryAdapter extends RecyclerView.Adapter<LibraryAdapter.VH> {
 			}
 		});
 
-		holder.itemView.setOnLongClickListener(v -> {
+		v.setOnLongClickListener(view -> {
+			LibraryEntry e = entryAt(holder);
+			if (e == null)
+				return false;
 			if (!selectionMode) {
 				enterSelectionMode(true);
 				toggleSelection(e);
@@ -143,19 +334,147 @@ public class LibraryAdapter extends RecyclerView.Adapter<LibraryAdapter.VH> {
 			return true;
 		});
 
-		holder.checkbox.setOnClickListener(v -> toggleSelection(e));
+		holder.checkbox.setOnClickListener(view -> {
+			LibraryEntry e = entryAt(holder);
+			if (e != null)
+				toggleSelection(e);
+		});
+		return holder;
+	}
+
+	private LibraryEntry entryAt(VH holder) {
+		int pos = holder.getBindingAdapterPosition();
+		if (pos == RecyclerView.NO_POSITION || pos >= getItemCount())
+			return null;
+		return itemAt(pos);
+	}
+
+	/**
+	 * @return the entry at a position, or null while its page is still loading.
+	 */
+	private LibraryEntry itemAt(int position) {
+		if (pager != null)
+			return pager.peek(position);
+		return differ.getCurrentList().get(position);
+	}
+
+	@Override
+	public void onBindViewHolder(@NonNull VH holder, int position, @NonNull List<Object> payloads) {
+		if (!payloads.isEmpty() && payloads.contains(PAYLOAD_SELECTION)) {
+			LibraryEntry e = itemAt(position);
+			if (e != null) {
+				bindSelection(holder, e);
+				return;
+			}
+		}
+		onBindViewHolder(holder, position);
+	}
+
+	@Override
+	public void onBindViewHolder(@NonNull VH holder, int position) {
+		final LibraryEntry e = itemAt(position);
+		if (e == null) {
+			bindPlaceholder(holder);
+			pager.request(position);
+			return;
+		}
+
+		String title = (e.title == null || e.title.isEmpty()) ? e.folderName : e.title;
+		holder.tv1.setText(title);
+
+		// Formatted by whoever loaded the entry (see formatSubtitles), never here
+		holder.tv2.setText(e.subtitle);
+
+		// Selection UI
+		bindSelection(holder, e);
+
+		bindIcon(holder, e);
+	}
+
+	/**
+	 * Shows the entry's thumbnail if it is in memory, else the type icon while the thumbnail loads. Any
+	 * request still pending for the entry previously bound to this row is cancelled.
+	 */
+	private void bindIcon(final VH holder, LibraryEntry e) {
+		cancelThumbnail(holder);
+		holder.thumbFolder = e.folderName;
+		Bitmap cached = thumbnails != null ? thumbnails.getCached(e.folderName) : null;
+		if (cached != null) {
+			holder.icon.setImageBitmap(cached);
+			return;
+		}
 
-		// Icon depending on type
+		// Icon depending on type (setImageResource is a no-op when the resource is unchanged)
 		if (e.savedPath != null && e.savedPath.startsWith("content://")) {
 			holder.icon.setImageResource(android.R.drawable.ic_menu_save);
 		} else {
 			holder.icon.setImageResource(android.R.drawable.ic_menu_view);
 		}
+		if (thumbnails != null) {
+			holder.thumbTask = thumbnails.load(e, (folderName, thumbnail) -> {
+				if (!folderName.equals(holder.thumbFolder))
+					return; // row was rebound meanwhile
+				holder.thumbTask = null;
+				holder.icon.setImageBitmap(thumbnail);
+			});
+		}
+	}
+
+	private static void cancelThumbnail(VH holder) {
+		if (holder.thumbTask != null) {
+			holder.thumbTask.cancel(false);
+			holder.thumbTask = null;
+		}
+	}
+
+	@Override
+	public void onViewRecycled(@NonNull VH holder) {
+		cancelThumbnail(holder);
+		holder.thumbFolder = null;
+	}
+
+	/**
+	 * Empty row for an entry whose page is still loading; it is rebound when the page arrives.
+	 */
+	private void bindPlaceholder(VH holder) {
+		holder.tv1.setText("");
+		holder.tv2.setText("");
+		holder.checkbox.setVisibility(selectionMode ? View.VISIBLE : View.GONE);
+		holder.checkbox.setChecked(false);
+		holder.itemView.setActivated(false);
+		holder.itemView.setBackgroundColor(0x00000000);
+		cancelThumbnail(holder);
+		holder.thumbFolder = null;
+		holder.icon.setImageResource(android.R.drawable.ic_menu_view);
+	}
+
+	static String formatSubtitle(DateFormat format, LibraryEntry e) {
+		return format.format(new Date(e.timestamp));
+	}
+
+	/**
+	 * Fills in the row subtitles that are still missing. Call it on the thread that loaded the entries,
+	 * before they are handed to the adapter, so binding a row does not allocate formatters or strings.
+	 */
+	static void formatSubtitles(DateFormat format, List<LibraryEntry> entries) {
+		for (LibraryEntry e : entries) {
+			if (e.subtitle == null)
+				e.subtitle = formatSubtitle(format, e);
+		}
+	}
+
+	private void bindSelection(VH holder, LibraryEntry e) {
+		holder.checkbox.setVisibility(selectionMode ? View.VISIBLE : View.GONE);
+		boolean checked = selectedIds.contains(e.folderName);
+		holder.checkbox.setChecked(checked);
+
+		holder.itemView.setActivated(checked);
+		holder.itemView.setBackgroundColor(checked ? 0x2200FF00 : 0x00000000);
 	}
 
 	@Override
 	public int getItemCount() {
-		return items.size();
+		return pager != null ? pager.size() : differ.getCurrentList().size();
 	}
 
 	static class VH extends RecyclerView.ViewHolder {
@@ -163,6 +482,8 @@ public class LibraryAdapter extends RecyclerView.Adapter<LibraryAdapter.VH> {
 		TextView tv2;
 		CheckBox checkbox;
 		ImageView icon;
+		String thumbFolder; // entry whose thumbnail this row is waiting for
+		Future<?> thumbTask;
 
 		VH(@NonNull View itemView) {
 			super(itemView);
@@ -0,0 +1,310 @@
+package com.ccko.mhtplus;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * LibraryCatalog: SQLite table with one row per library folder, read from its meta.json. Each sort order
+ * walks a (sort key, folder) index and pages seek into it by key; filtering by source host and counting are
+ * index lookups too. The meta.json files stay the primary
+ * copy: a missing or corrupt database is simply rebuilt from them by the next {@link LibraryIndex} refresh.
+ */
+public class LibraryCatalog extends SQLiteOpenHelper {
+
+	private static final String DB_NAME = "library.db";
+	private static final int DB_VERSION = 4;
+	private static final String TABLE = "entries";
+
+	// Source types
+	public static final String SOURCE_SAVED = "saved"; // saved from the browser
+	public static final String SOURCE_IMPORTED = "imported"; // copied into the library
+	public static final String SOURCE_LINKED = "linked"; // content:// document left in place
+
+	// Sort modes, as stored in the "library_sort" preference
+	public static final String SORT_NAME = "name_asc";
+	public static final String SORT_TIME_ASC = "time_asc";
+	public static final String SORT_TIME_DESC = "time_desc";
+
+	private static final String COLUMNS = "folder, title, url, timestamp, path, size, hash, original_size";
+	// Rows without a path are folders that hold no usable archive; they are only kept for their mtime
+	private static final String USABLE = "path IS NOT NULL";
+
+	private static LibraryCatalog instance;
+
+	private final File legacyHashIndex;
+
+	public static synchronized LibraryCatalog get(Context context) {
+		if (instance == null)
+			instance = new LibraryCatalog(context.getApplicationContext());
+		return instance;
+	}
+
+	private LibraryCatalog(Context context) {
+		super(context, DB_NAME, null, DB_VERSION);
+		// Content hashes used to be kept in a file of their own; the hash column replaced it
+		legacyHashIndex = new File(context.getFilesDir(), "hashes.idx");
+		// Pages and searches keep reading while a refresh writes
+		setWriteAheadLoggingEnabled(true);
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + TABLE + " (folder TEXT PRIMARY KEY NOT NULL, mtime INTEGER NOT NULL,"
+				+ " title TEXT, url TEXT, timestamp INTEGER, path TEXT, size INTEGER, hash TEXT, source TEXT,"
+				+ " host TEXT, original_size INTEGER)");
+		// Partial on USABLE, which every sorted query filters on, and ending in the folder tie-breaker
+		db.execSQL("CREATE INDEX entries_title ON " + TABLE + " (title COLLATE NOCASE, folder) WHERE " + USABLE);
+		db.execSQL("CREATE INDEX entries_timestamp ON " + TABLE + " (timestamp, folder) WHERE " + USABLE);
+		db.execSQL("CREATE INDEX entries_host ON " + TABLE + " (host)");
+		db.execSQL("CREATE INDEX entries_hash ON " + TABLE + " (hash)");
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		// Everything here can be re-read from meta.json
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+		onCreate(db);
+		legacyHashIndex.delete();
+	}
+
+	// --- Writes ---
+
+	/**
+	 * Inserts or replaces folders in one transaction.
+	 *
+	 * @param entries folder name -> entry, or null for a folder without a usable archive.
+	 * @param mtimes folder name -> folder mtime when it was read.
+	 */
+	public void putAll(Map<String, LibraryEntry> entries, Map<String, Long> mtimes) {
+		if (entries.isEmpty())
+			return;
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			ContentValues values = new ContentValues();
+			for (Map.Entry<String, LibraryEntry> me : entries.entrySet()) {
+				values.clear();
+				LibraryEntry e = me.getValue();
+				Long mtime = mtimes.get(me.getKey());
+				values.put("folder", me.getKey());
+				values.put("mtime", mtime != null ? mtime : 0L);
+				if (e != null) {
+					values.put("title", e.title);
+					values.put("url", e.url);
+					values.put("timestamp", e.timestamp);
+					values.put("path", e.savedPath);
+					values.put("size", e.size);
+					values.put("original_size", e.originalSize);
+					values.put("hash", e.sha256);
+					values.put("source", sourceOf(e));
+					values.put("host", hostOf(e.url));
+				}
+				db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	public void removeAll(Collection<String> folderNames) {
+		if (folderNames.isEmpty())
+			return;
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			for (String folder : folderNames)
+				db.delete(TABLE, "folder = ?", new String[] { folder });
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	// --- Queries ---
+
+	/**
+	 * @return folder name -> mtime of every folder read so far, usable or not.
+	 */
+	public Map<String, Long> folderMtimes() {
+		Map<String, Long> out = new HashMap<>();
+		try (Cursor c = getReadableDatabase().rawQuery("SELECT folder, mtime FROM " + TABLE, null)) {
+			while (c.moveToNext())
+				out.put(c.getString(0), c.getLong(1));
+		}
+		return out;
+	}
+
+	public LibraryEntry find(String folderName) {
+		try (Cursor c = getReadableDatabase().rawQuery(
+				"SELECT " + COLUMNS + " FROM " + TABLE + " WHERE folder = ? AND " + USABLE,
+				new String[] { folderName })) {
+			return c.moveToFirst() ? entryAt(c) : null;
+		}
+	}
+
+	/**
+	 * @return an entry whose archive has the given SHA-256, or null. Only imported copies record one.
+	 */
+	public LibraryEntry findByHash(String sha256) {
+		try (Cursor c = getReadableDatabase().rawQuery(
+				"SELECT " + COLUMNS + " FROM " + TABLE + " WHERE hash = ? AND " + USABLE + " LIMIT 1",
+				new String[] { sha256 })) {
+			return c.moveToFirst() ? entryAt(c) : null;
+		}
+	}
+
+	/**
+	 * A window of entries in the given sort order, read by seeking the sort index to the previous window's
+	 * last entry rather than counting rows off from the start.
+	 *
+	 * @param host only entries saved from this host, or null for all.
+	 * @param after the last entry before the window, or null to start at the first one.
+	 * @param skip entries to pass over after that, when the window lies further on than a known entry.
+	 * @param limit number of entries, or -1 for all the rest.
+	 */
+	public List<LibraryEntry> entries(String sortMode, String host, LibraryEntry after, int skip, int limit) {
+		String sql = "SELECT " + COLUMNS + " FROM " + TABLE + where(host) + (after != null ? after(sortMode) : "")
+				+ " ORDER BY " + orderBy(sortMode) + " LIMIT " + limit + " OFFSET " + skip;
+		List<String> args = new ArrayList<>(4);
+		if (host != null)
+			args.add(host);
+		if (after != null) {
+			String key = SORT_NAME.equals(sortMode) ? after.title : String.valueOf(after.timestamp);
+			args.add(key);
+			args.add(key);
+			args.add(after.folderName);
+		}
+		List<LibraryEntry> out = new ArrayList<>(limit > 0 ? limit : 16);
+		try (Cursor c = getReadableDatabase().rawQuery(sql, args.toArray(new String[0]))) {
+			while (c.moveToNext())
+				out.add(entryAt(c));
+		}
+		return out;
+	}
+
+	/**
+	 * @return every folder name in the given sort order, e.g. for "select all".
+	 */
+	public List<String> folderNames(String sortMode, String host) {
+		List<String> out = new ArrayList<>();
+		String sql = "SELECT folder FROM " + TABLE + where(host) + " ORDER BY " + orderBy(sortMode);
+		try (Cursor c = getReadableDatabase().rawQuery(sql, args(host))) {
+			while (c.moveToNext())
+				out.add(c.getString(0));
+		}
+		return out;
+	}
+
+	public int count(String host) {
+		try (Cursor c = getReadableDatabase().rawQuery("SELECT COUNT(*) FROM " + TABLE + where(host), args(host))) {
+			return c.moveToFirst() ? c.getInt(0) : 0;
+		}
+	}
+
+	/**
+	 * @return host -> number of entries saved from it, most entries first.
+	 */
+	public Map<String, Integer> hostCounts() {
+		Map<String, Integer> out = new LinkedHashMap<>();
+		try (Cursor c = getReadableDatabase().rawQuery("SELECT host, COUNT(*) AS n FROM " + TABLE + " WHERE "
+				+ USABLE + " AND host IS NOT NULL GROUP BY host ORDER BY n DESC, host", null)) {
+			while (c.moveToNext())
+				out.put(c.getString(0), c.getInt(1));
+		}
+		return out;
+	}
+
+	/**
+	 * @return bytes saved on disk by compression and containers across the library.
+	 */
+	public long savedBytes() {
+		try (Cursor c = getReadableDatabase().rawQuery("SELECT SUM(original_size - size) FROM " + TABLE + " WHERE "
+				+ USABLE + " AND size >= 0 AND original_size > size", null)) {
+			return c.moveToFirst() ? c.getLong(0) : 0;
+		}
+	}
+
+	private static String where(String host) {
+		return host != null ? " WHERE " + USABLE + " AND host = ?" : " WHERE " + USABLE;
+	}
+
+	private static String[] args(String host) {
+		return host != null ? new String[] { host } : null;
+	}
+
+	/**
+	 * ORDER BY clause of a sort mode, matching one of the (sort key, folder) indexes: the folder breaks ties
+	 * so pages are stable, and runs the same way as the key so newest first is a backwards index scan.
+	 */
+	static String orderBy(String sortMode) {
+		if (SORT_NAME.equals(sortMode))
+			return "title COLLATE NOCASE, folder";
+		if (SORT_TIME_ASC.equals(sortMode))
+			return "timestamp, folder";
+		return "timestamp DESC, folder DESC";
+	}
+
+	/**
+	 * Condition for the rows after (sort key, folder) in a sort order. Spelled out rather than as a row value
+	 * comparison, which older SQLite versions lack; the first term bounds the index range.
+	 */
+	private static String after(String sortMode) {
+		if (SORT_NAME.equals(sortMode))
+			return " AND title COLLATE NOCASE >= ? AND (title COLLATE NOCASE > ? OR folder > ?)";
+		if (SORT_TIME_ASC.equals(sortMode))
+			return " AND timestamp >= ? AND (timestamp > ? OR folder > ?)";
+		return " AND timestamp <= ? AND (timestamp < ? OR folder < ?)";
+	}
+
+	private static LibraryEntry entryAt(Cursor c) {
+		LibraryEntry e = new LibraryEntry(c.getString(0), c.getString(1), c.getString(2), c.getLong(3),
+				c.getString(4));
+		e.size = c.isNull(5) ? -1 : c.getLong(5);
+		e.sha256 = c.getString(6);
+		e.originalSize = c.isNull(7) ? -1 : c.getLong(7);
+		return e;
+	}
+
+	static String sourceOf(LibraryEntry e) {
+		if (e.savedPath != null && e.savedPath.startsWith("content://"))
+			return SOURCE_LINKED;
+		// Pages saved from the browser record their web address; imports record the document they came from
+		return hostOf(e.url) != null ? SOURCE_SAVED : SOURCE_IMPORTED;
+	}
+
+	/**
+	 * @return the lower-case host of a web page url, or null for anything else (e.g. content:// sources).
+	 */
+	static String hostOf(String url) {
+		if (url == null || !(url.startsWith("http://") || url.startsWith("https://")))
+			return null;
+		try {
+			String host = Uri.parse(url).getHost();
+			return host != null && !host.isEmpty() ? host.toLowerCase(Locale.US) : null;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Deletes the binary index and the pager's view file, which the catalog replaced.
+	 */
+	static void deleteLegacyFiles(Context context) {
+		new File(context.getFilesDir(), "library.idx").delete();
+		new File(context.getCacheDir(), "library.view").delete();
+	}
+}
@@ -7,6 +7,15 @@ public class LibraryEntry {
 	public final long timestamp;
 	public final String savedPath;
 
+	// Formatted date line for the library row; filled in once and reused on every bind
+	String subtitle;
+
+	// Stored archive size in bytes (-1 for linked documents), its size before compression or transcoding, and
+	// content digest of imports; catalog columns
+	long size = -1;
+	long originalSize = -1;
+	String sha256;
+
 	public LibraryEntry(String folderName, String title, String url, long timestamp, String savedPath) {
 		this.folderName = folderName;
 		this.title = title;
@@ -14,4 +23,16 @@ public class LibraryEntry {
 		this.timestamp = timestamp;
 		this.savedPath = savedPath;
 	}
+
+	/**
+	 * @return a copy showing another title, e.g. after a rename.
+	 */
+	LibraryEntry withTitle(String newTitle) {
+		LibraryEntry e = new LibraryEntry(folderName, newTitle, url, timestamp, savedPath);
+		e.size = size;
+		e.originalSize = originalSize;
+		e.sha256 = sha256;
+		e.subtitle = subtitle;
+		return e;
+	}
 }
@@ -0,0 +1,486 @@
+package com.ccko.mhtplus;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteException;
+import android.os.Process;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * LibraryIndex: keeps the {@link LibraryCatalog} in step with the LibraryEntry records found under the app's
+ * "mht" folder. A refresh only re-reads meta.json for folders whose mtime changed since the last run (in
+ * parallel, with a streaming JSON reader), and the write paths (metadata writes, rename, delete) update single
+ * rows instead of forcing a full rescan.
+ */
+public class LibraryIndex {
+
+	private static final String TAG = "LibraryIndex";
+
+	// meta.json key of a name the user gave the entry; it wins over the archive's file name
+	static final String KEY_DISPLAY_NAME = "displayName";
+	// Size of the MHT before it was put into its stored form, recorded when it is stored
+	static final String KEY_ORIGINAL_SIZE = "originalSize";
+
+	// Number of freshly parsed entries handed to a RefreshListener at once
+	public static final int BATCH_SIZE = 32;
+
+	public static final Comparator<LibraryEntry> NEWEST_FIRST = (a, b) -> Long.compare(b.timestamp, a.timestamp);
+
+	private static LibraryIndex instance;
+	private static ExecutorService parsePool;
+
+	private final File baseDir;
+	private final LibraryCatalog catalog;
+	private final MetadataStore metadataStore;
+
+	private static class Record {
+		final String folderName;
+		final long mtime;
+		final LibraryEntry entry; // null for folders without a usable path
+
+		Record(String folderName, long mtime, LibraryEntry entry) {
+			this.folderName = folderName;
+			this.mtime = mtime;
+			this.entry = entry;
+		}
+	}
+
+	public static synchronized LibraryIndex get(Context context) {
+		if (instance == null)
+			instance = new LibraryIndex(context.getApplicationContext());
+		return instance;
+	}
+
+	private LibraryIndex(Context context) {
+		this.baseDir = getBaseDir(context);
+		this.catalog = LibraryCatalog.get(context);
+		this.metadataStore = MetadataStore.get(context);
+		LibraryCatalog.deleteLegacyFiles(context);
+	}
+
+	/**
+	 * Pool for meta.json parsing, sized to the device's cores. Idle threads time out.
+	 */
+	static synchronized ExecutorService parsePool() {
+		if (parsePool == null) {
+			int cores = Math.max(1, Runtime.getRuntime().availableProcessors());
+			AtomicInteger count = new AtomicInteger();
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(cores, cores, 30L, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<>(), r -> {
+						Thread t = new Thread(() -> {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}, "library-parse-" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					});
+			pool.allowCoreThreadTimeOut(true);
+			parsePool = pool;
+		}
+		return parsePool;
+	}
+
+	/**
+	 * Root folder holding one sub-folder per saved archive.
+	 */
+	public static File getBaseDir(Context context) {
+		File baseDir = context.getExternalFilesDir("mht");
+		if (baseDir == null)
+			baseDir = new File(context.getFilesDir(), "mht");
+		return baseDir;
+	}
+
+	public LibraryCatalog getCatalog() {
+		return catalog;
+	}
+
+	/**
+	 * Receives entries while a refresh is running. Called on the refreshing thread.
+	 */
+	public interface RefreshListener {
+		void onBatch(List<LibraryEntry> batch);
+
+		boolean isCancelled();
+	}
+
+	/**
+	 * Lists the library folders and re-reads only the ones that changed since the last refresh.
+	 *
+	 * @return all entries, newest first.
+	 */
+	public List<LibraryEntry> refresh() {
+		return refresh(null);
+	}
+
+	/**
+	 * Same as {@link #refresh()}, but hands out entries as they become available: first every unchanged
+	 * catalogued entry, then freshly parsed folders in batches of {@link #BATCH_SIZE}. The index lock is not
+	 * held while folders are parsed, so single-row updates from the UI thread never wait on a scan.
+	 *
+	 * @return all entries, newest first, or null if the listener cancelled the refresh.
+	 */
+	public List<LibraryEntry> refresh(RefreshListener listener) {
+		// First scan of the process: put back any meta.json a crash cut short
+		metadataStore.recover();
+
+		Map<String, Long> known;
+		synchronized (this) {
+			known = folderMtimes();
+		}
+
+		File[] folders = baseDir.exists() ? baseDir.listFiles(File::isDirectory) : null;
+		Set<String> seen = new HashSet<>();
+		Set<String> changedNames = new HashSet<>();
+		List<File> changed = new ArrayList<>();
+		if (folders != null) {
+			for (File f : folders) {
+				String name = f.getName();
+				seen.add(name);
+				Long mtime = known.get(name);
+				if (mtime == null || mtime != f.lastModified()) {
+					changed.add(f);
+					changedNames.add(name);
+				}
+			}
+		}
+
+		if (listener != null) {
+			// The catalog hands them out newest first already
+			List<LibraryEntry> unchanged = new ArrayList<>();
+			for (LibraryEntry e : entries()) {
+				if (seen.contains(e.folderName) && !changedNames.contains(e.folderName))
+					unchanged.add(e);
+			}
+			if (!unchanged.isEmpty())
+				listener.onBatch(unchanged);
+		}
+
+		// Fan the changed folders out over the parse pool and collect them in completion order
+		boolean cancelled = false;
+		Map<String, LibraryEntry> parsed = new HashMap<>();
+		Map<String, Long> parsedMtimes = new HashMap<>();
+		List<LibraryEntry> batch = new ArrayList<>();
+		CompletionService<Record> completion = new ExecutorCompletionService<>(parsePool());
+		List<Future<Record>> pending = new ArrayList<>(changed.size());
+		for (File f : changed)
+			pending.add(completion.submit(() -> new Record(f.getName(), f.lastModified(), readEntry(f))));
+
+		for (int i = 0; i < pending.size(); i++) {
+			if (listener != null && listener.isCancelled()) {
+				cancelled = true;
+				break;
+			}
+			Record r;
+			try {
+				r = completion.take().get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				cancelled = true;
+				break;
+			} catch (ExecutionException e) {
+				// readEntry() swallows its own errors; nothing useful to record for this folder
+				continue;
+			}
+			parsed.put(r.folderName, r.entry);
+			parsedMtimes.put(r.folderName, r.mtime);
+			if (r.entry != null && listener != null) {
+				batch.add(r.entry);
+				if (batch.size() >= BATCH_SIZE) {
+					listener.onBatch(batch);
+					batch = new ArrayList<>();
+				}
+			}
+		}
+		if (cancelled) {
+			for (Future<Record> fu : pending)
+				fu.cancel(false);
+		} else if (listener != null && !batch.isEmpty()) {
+			listener.onBatch(batch);
+		}
+
+		synchronized (this) {
+			// Keep whatever was parsed even when cancelled; it is still valid, unless update() or remove() wrote
+			// the row since the snapshot above (e.g. a rename or an import): then that copy is at least as new
+			Map<String, Long> current = folderMtimes();
+			for (Iterator<Map.Entry<String, Long>> it = parsedMtimes.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, Long> me = it.next();
+				Long before = known.get(me.getKey());
+				Long now = current.get(me.getKey());
+				boolean rewritten = now != null && !now.equals(before) && now >= me.getValue();
+				if (rewritten || (now == null && before != null)) {
+					parsed.remove(me.getKey());
+					it.remove();
+				}
+			}
+			put(parsed, parsedMtimes);
+			if (!cancelled) {
+				// Drop folders that disappeared behind our back
+				List<String> vanished = new ArrayList<>();
+				for (String name : known.keySet()) {
+					if (!seen.contains(name))
+						vanished.add(name);
+				}
+				delete(vanished);
+			}
+			return cancelled ? null : entries();
+		}
+	}
+
+	/**
+	 * Re-reads a single folder, e.g. after its meta.json was written.
+	 */
+	public synchronized void update(File folder) {
+		if (folder == null)
+			return;
+		updateAll(Collections.singletonList(folder));
+	}
+
+	/**
+	 * Re-reads several folders and writes them to the catalog in one transaction, e.g. after a batch import.
+	 */
+	public synchronized void updateAll(List<File> folders) {
+		Map<String, LibraryEntry> entries = new HashMap<>();
+		Map<String, Long> mtimes = new HashMap<>();
+		List<String> gone = new ArrayList<>();
+		for (File folder : folders) {
+			if (folder.isDirectory()) {
+				entries.put(folder.getName(), readEntry(folder));
+				mtimes.put(folder.getName(), folder.lastModified());
+			} else {
+				gone.add(folder.getName());
+			}
+		}
+		put(entries, mtimes);
+		delete(gone);
+	}
+
+	/**
+	 * @return the catalogued entry for a folder, or null if unknown or not a usable archive.
+	 */
+	public LibraryEntry find(String folderName) {
+		try {
+			return catalog.find(folderName);
+		} catch (SQLiteException e) {
+			Log.w(TAG, "Catalog lookup failed: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @return the catalogued entry holding content with this SHA-256, or null. This is what imports check
+	 * for duplicates.
+	 */
+	public LibraryEntry findByHash(String sha256) {
+		try {
+			return catalog.findByHash(sha256);
+		} catch (SQLiteException e) {
+			Log.w(TAG, "Catalog lookup failed: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @return all catalogued entries, newest first, without touching the library folders.
+	 */
+	public List<LibraryEntry> entries() {
+		try {
+			return catalog.entries(LibraryCatalog.SORT_TIME_DESC, null, null, 0, -1);
+		} catch (SQLiteException e) {
+			Log.w(TAG, "Catalog query failed: " + e.getMessage());
+			return new ArrayList<>();
+		}
+	}
+
+	public synchronized void remove(String folderName) {
+		removeAll(Collections.singletonList(folderName));
+	}
+
+	/**
+	 * Drops several folders in one transaction, e.g. after a bulk delete.
+	 */
+	public synchronized void removeAll(List<String> folderNames) {
+		delete(folderNames);
+	}
+
+	// --- Catalog access ---
+	// A failed catalog write is only logged: the meta.json files are untouched, and rows whose folder mtime
+	// was not stored are simply re-read by the next refresh.
+
+	private Map<String, Long> folderMtimes() {
+		try {
+			return catalog.folderMtimes();
+		} catch (SQLiteException e) {
+			Log.w(TAG, "Catalog query failed: " + e.getMessage());
+			return new HashMap<>();
+		}
+	}
+
+	private void put(Map<String, LibraryEntry> entries, Map<String, Long> mtimes) {
+		try {
+			catalog.putAll(entries, mtimes);
+		} catch (SQLiteException e) {
+			Log.w(TAG, "Failed to update library catalog: " + e.getMessage());
+		}
+	}
+
+	private void delete(Collection<String> folderNames) {
+		try {
+			catalog.removeAll(folderNames);
+		} catch (SQLiteException e) {
+			Log.w(TAG, "Failed to update library catalog: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Parses a library folder into an entry. Returns null if the folder has no usable archive path.
+	 */
+	static LibraryEntry readEntry(File f) {
+		try {
+			// Accept both meta.json and metadata.json
+			File meta = new File(f, "meta.json");
+			if (!meta.exists())
+				meta = new File(f, "metadata.json");
+
+			String url = "";
+			long ts = f.lastModified();
+			String savedPath = null;
+			String metaTitle = null;
+			String displayName = null;
+			String sha256 = null;
+			long originalSize = -1;
+
+			if (meta.exists()) {
+				// Stream the file and pull only the fields we need instead of building a JSONObject
+				String uri = null;
+				String path = null;
+				try (JsonReader reader = new JsonReader(
+						new BufferedReader(new InputStreamReader(new FileInputStream(meta), "UTF-8")))) {
+					reader.beginObject();
+					while (reader.hasNext()) {
+						String name = reader.nextName();
+						if (reader.peek() == JsonToken.NULL) {
+							reader.skipValue();
+							continue;
+						}
+						switch (name) {
+						case "url":
+							url = reader.nextString();
+							break;
+						case "uri":
+							uri = reader.nextString();
+							break;
+						case "timestamp":
+							ts = parseLong(reader.nextString(), ts);
+							break;
+						case "savedPath":
+							savedPath = reader.nextString();
+							break;
+						case "path":
+							path = reader.nextString();
+							break;
+						case "title":
+							metaTitle = reader.nextString();
+							break;
+						case KEY_DISPLAY_NAME:
+							displayName = reader.nextString();
+							break;
+						case "sha256":
+							sha256 = reader.nextString();
+							break;
+						case KEY_ORIGINAL_SIZE:
+							originalSize = parseLong(reader.nextString(), -1);
+							break;
+						default:
+							reader.skipValue();
+							break;
+						}
+					}
+				}
+				if (url.isEmpty() && uri != null)
+					url = uri;
+				// Accept both "savedPath" and "path"
+				if (savedPath == null)
+					savedPath = path;
+			} else {
+				// Fallback: try to find page.mht
+				File page = new File(f, "page.mht");
+				if (page.exists())
+					savedPath = page.getAbsolutePath();
+			}
+
+			if (savedPath == null)
+				return null;
+
+			// Derive display title as filename if possible, otherwise fallback to folder name
+			String displayTitle;
+			long size = -1;
+			if (displayName != null && !displayName.isEmpty()) {
+				displayTitle = displayName;
+				if (!savedPath.startsWith("content://"))
+					size = new File(savedPath).length();
+			} else if (savedPath.startsWith("content://")) {
+				// content URI may not expose filename reliably; use the stored title or folder name
+				displayTitle = (metaTitle != null && !metaTitle.isEmpty()) ? metaTitle : f.getName();
+			} else {
+				File sp = new File(savedPath);
+				displayTitle = ArchiveStorage.displayName(sp);
+				if (displayTitle == null || displayTitle.isEmpty())
+					displayTitle = f.getName();
+				size = sp.length();
+			}
+
+			LibraryEntry entry = new LibraryEntry(f.getName(), displayTitle, url, ts, savedPath);
+			entry.size = size;
+			// Kept in the catalog, so totals never open the archives; only folders stored before meta.json
+			// recorded the size need their archive's header read, once per change of the folder
+			if (originalSize >= 0)
+				entry.originalSize = originalSize;
+			else if (size >= 0) {
+				File stored = new File(savedPath);
+				entry.originalSize = ArchiveStorage.isCompressed(stored) || MhtContainer.isContainer(stored)
+						? ArchiveStorage.originalSize(stored) : size;
+			}
+			entry.sha256 = sha256;
+			return entry;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static long parseLong(String value, long fallback) {
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			try {
+				return (long) Double.parseDouble(value);
+			} catch (NumberFormatException ignored) {
+				return fallback;
+			}
+		}
+	}
+}
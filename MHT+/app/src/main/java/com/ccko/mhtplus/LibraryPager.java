@@ -0,0 +1,253 @@
+package com.ccko.mhtplus;
+
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * LibraryPager: the library list for very large collections, or for one site's entries. Rows read pages of
+ * {@link #PAGE_SIZE} entries on demand from the {@link LibraryCatalog}, each seeking its sort index to the
+ * last entry of the page before, and at most {@link #MAX_PAGES} pages stay in memory, however big the library is.
+ * <p>
+ * Pages are read on a background thread; everything else, listener calls included, happens on the main
+ * thread.
+ */
+public class LibraryPager implements Closeable {
+
+	private static final String TAG = "LibraryPager";
+
+	public static final int PAGE_SIZE = 100;
+	private static final int MAX_PAGES = 8;
+
+	public interface Listener {
+		void onPageLoaded(int start, int count);
+	}
+
+	public interface FolderNamesCallback {
+		void onFolderNames(List<String> folderNames);
+	}
+
+	private final LibraryCatalog catalog;
+	private final String sortMode;
+	private final String host;
+	private final int size;
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(() -> {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			r.run();
+		}, "library-pages");
+		t.setDaemon(true);
+		return t;
+	});
+	// Only touched from the pager thread, so sharing one (non thread-safe) DateFormat is fine
+	private final DateFormat dateFormat = DateFormat.getDateTimeInstance();
+
+	// page number -> entries, least recently used first
+	private final Map<Integer, List<LibraryEntry>> pages = new LinkedHashMap<Integer, List<LibraryEntry>>(
+			MAX_PAGES + 1, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, List<LibraryEntry>> eldest) {
+			return size() > MAX_PAGES;
+		}
+	};
+	private final Set<Integer> loading = new HashSet<>();
+	// page number -> its last entry, where the next page's read starts; only touched from the pager thread
+	private final TreeMap<Integer, LibraryEntry> pageEnds = new TreeMap<>();
+	private Listener listener;
+	private volatile boolean closed;
+
+	/**
+	 * Counts the entries to page through. Call off the main thread.
+	 *
+	 * @param sortMode one of the LibraryCatalog SORT_ modes.
+	 * @param host only show entries saved from this host, or null for all.
+	 */
+	public static LibraryPager open(LibraryCatalog catalog, String sortMode, String host) {
+		return new LibraryPager(catalog, sortMode, host, catalog.count(host));
+	}
+
+	private LibraryPager(LibraryCatalog catalog, String sortMode, String host, int size) {
+		this.catalog = catalog;
+		this.sortMode = sortMode;
+		this.host = host;
+		this.size = size;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the entry if its page is in memory, else null (then {@link #request} it).
+	 */
+	public LibraryEntry peek(int position) {
+		List<LibraryEntry> page = pages.get(position / PAGE_SIZE);
+		if (page == null)
+			return null;
+		int i = position % PAGE_SIZE;
+		return i < page.size() ? page.get(i) : null;
+	}
+
+	/**
+	 * Loads the page holding a position, and the next one once the position is near the page's end, so
+	 * rows scrolling into view are usually ready.
+	 */
+	public void request(int position) {
+		int page = position / PAGE_SIZE;
+		requestPage(page);
+		if (position % PAGE_SIZE >= PAGE_SIZE * 3 / 4 && (page + 1) * PAGE_SIZE < size)
+			requestPage(page + 1);
+	}
+
+	private void requestPage(final int page) {
+		if (closed || pages.containsKey(page) || !loading.add(page))
+			return;
+		try {
+			executor.execute(() -> {
+				final List<LibraryEntry> entries = readPage(page);
+				mainHandler.post(() -> {
+					loading.remove(page);
+					if (closed || entries == null)
+						return;
+					pages.put(page, entries);
+					if (listener != null)
+						listener.onPageLoaded(page * PAGE_SIZE, entries.size());
+				});
+			});
+		} catch (Exception ignored) {
+			// executor already shut down
+		}
+	}
+
+	/**
+	 * @return the position of an entry in a resident page, or -1.
+	 */
+	public int positionOf(String folderName) {
+		for (Map.Entry<Integer, List<LibraryEntry>> me : pages.entrySet()) {
+			List<LibraryEntry> page = me.getValue();
+			for (int i = 0; i < page.size(); i++) {
+				if (page.get(i).folderName.equals(folderName))
+					return me.getKey() * PAGE_SIZE + i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Swaps an entry in a resident page for an updated copy, e.g. after a rename.
+	 *
+	 * @return its position, or -1 if its page is not in memory (it is then read afresh when needed).
+	 */
+	public int replace(LibraryEntry entry) {
+		for (Map.Entry<Integer, List<LibraryEntry>> me : pages.entrySet()) {
+			List<LibraryEntry> page = me.getValue();
+			for (int i = 0; i < page.size(); i++) {
+				if (page.get(i).folderName.equals(entry.folderName)) {
+					page.set(i, entry);
+					return me.getKey() * PAGE_SIZE + i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the entry for a folder, from the resident pages or else the catalog.
+	 */
+	public LibraryEntry find(String folderName) {
+		for (List<LibraryEntry> page : pages.values()) {
+			for (LibraryEntry e : page) {
+				if (e.folderName.equals(folderName))
+					return e;
+			}
+		}
+		try {
+			return catalog.find(folderName);
+		} catch (SQLiteException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads every folder name in display order, e.g. for "select all". The callback runs on the main thread.
+	 */
+	public void loadFolderNames(final FolderNamesCallback callback) {
+		try {
+			executor.execute(() -> {
+				List<String> names;
+				try {
+					names = closed ? null : catalog.folderNames(sortMode, host);
+				} catch (SQLiteException e) {
+					Log.w(TAG, "Failed to list folders: " + e.getMessage());
+					names = null;
+				}
+				final List<String> result = names != null ? names : new ArrayList<>();
+				mainHandler.post(() -> {
+					if (!closed)
+						callback.onFolderNames(result);
+				});
+			});
+		} catch (Exception ignored) {
+			// executor already shut down
+		}
+	}
+
+	/**
+	 * Reads one page with a single indexed query, starting from the end of the nearest page read before it.
+	 * Only a jump past pages never read (e.g. fast scrolling) skips rows, and only from that page's end.
+	 */
+	private List<LibraryEntry> readPage(int page) {
+		if (closed)
+			return null;
+		int start = page * PAGE_SIZE;
+		int count = Math.min(PAGE_SIZE, size - start);
+		if (count <= 0)
+			return Collections.emptyList();
+		try {
+			Map.Entry<Integer, LibraryEntry> anchor = pageEnds.floorEntry(page - 1);
+			LibraryEntry after = anchor != null ? anchor.getValue() : null;
+			int skip = anchor != null ? (page - 1 - anchor.getKey()) * PAGE_SIZE : start;
+			List<LibraryEntry> entries = catalog.entries(sortMode, host, after, skip, count);
+			if (!entries.isEmpty())
+				pageEnds.put(page, entries.get(entries.size() - 1));
+			LibraryAdapter.formatSubtitles(dateFormat, entries);
+			return entries;
+		} catch (SQLiteException e) {
+			Log.w(TAG, "Failed to read page " + page + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Stops loading. Pending page callbacks are dropped.
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		listener = null;
+		mainHandler.removeCallbacksAndMessages(null);
+		executor.shutdown();
+	}
+}
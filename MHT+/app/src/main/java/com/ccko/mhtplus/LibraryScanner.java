@@ -0,0 +1,103 @@
+package com.ccko.mhtplus;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.text.DateFormat;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * LibraryScanner: runs LibraryIndex refreshes on a background worker and posts the results back
+ * to the main thread in batches, so the first screenful can be shown before the scan finishes.
+ */
+public class LibraryScanner {
+
+	/**
+	 * Scan results. All callbacks run on the main thread and never after {@link #cancel()}.
+	 */
+	public interface Listener {
+		void onBatch(List<LibraryEntry> batch);
+
+		void onComplete(List<LibraryEntry> entries);
+	}
+
+	private final LibraryIndex index;
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+	// One worker and one queued scan: a newer request replaces a queued one instead of piling up
+	private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<>(1), r -> {
+				Thread t = new Thread(() -> {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					r.run();
+				}, "library-scan");
+				t.setDaemon(true);
+				return t;
+			}, new ThreadPoolExecutor.DiscardOldestPolicy());
+
+	private AtomicBoolean currentScan;
+
+	// Only touched from the single scan worker, so sharing one (non thread-safe) DateFormat is fine
+	private final DateFormat dateFormat = DateFormat.getDateTimeInstance();
+
+	public LibraryScanner(LibraryIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * Starts a new scan, cancelling any scan still in flight. Must be called on the main thread.
+	 */
+	public void scan(final Listener listener) {
+		cancel();
+		final AtomicBoolean cancelled = new AtomicBoolean(false);
+		currentScan = cancelled;
+
+		executor.execute(() -> {
+			if (cancelled.get())
+				return;
+			final List<LibraryEntry> all = index.refresh(new LibraryIndex.RefreshListener() {
+				@Override
+				public void onBatch(List<LibraryEntry> batch) {
+					LibraryAdapter.formatSubtitles(dateFormat, batch);
+					mainHandler.post(() -> {
+						if (!cancelled.get())
+							listener.onBatch(batch);
+					});
+				}
+
+				@Override
+				public boolean isCancelled() {
+					return cancelled.get();
+				}
+			});
+			if (all == null)
+				return;
+			LibraryAdapter.formatSubtitles(dateFormat, all);
+			mainHandler.post(() -> {
+				if (!cancelled.get())
+					listener.onComplete(all);
+			});
+		});
+	}
+
+	public void cancel() {
+		if (currentScan != null) {
+			currentScan.set(true);
+			currentScan = null;
+		}
+	}
+
+	/**
+	 * Cancels the running scan and stops the worker. Call from Activity.onDestroy().
+	 */
+	public void shutdown() {
+		cancel();
+		mainHandler.removeCallbacksAndMessages(null);
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,229 @@
+package com.ccko.mhtplus;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * LibraryTrash: deletes library entries in two steps. {@link #trash} moves each folder into a trash
+ * directory next to the library with one rename and drops it from the LibraryIndex, which is quick and
+ * can be undone with {@link #restore}. {@link #purge} then deletes the files for good; it is the slow
+ * part, so it runs in the background after the undo window has passed. Leftovers of a process that died
+ * in between are purged by {@link #purgeLeftoversAsync}; batches of this process are left to their owner.
+ */
+public class LibraryTrash {
+
+	private static final String TAG = "LibraryTrash";
+	private static final long PROGRESS_INTERVAL_MS = 200;
+
+	/**
+	 * Entries moved to the trash together, restored or purged together.
+	 */
+	public static final class Batch {
+		final File dir;
+		final List<LibraryEntry> entries;
+
+		Batch(File dir, List<LibraryEntry> entries) {
+			this.dir = dir;
+			this.entries = Collections.unmodifiableList(entries);
+		}
+
+		public List<LibraryEntry> getEntries() {
+			return entries;
+		}
+	}
+
+	/**
+	 * Progress and results of {@link #trash} and {@link #restore}. All callbacks run on the main thread.
+	 */
+	public interface Listener {
+		void onProgress(int done, int total);
+
+		/**
+		 * @param batch the entries that were moved; those that could not be are left out.
+		 */
+		void onTrashed(Batch batch, int failed);
+
+		void onRestored(List<LibraryEntry> entries, int failed);
+	}
+
+	private static LibraryTrash instance;
+
+	private final Context context;
+	private final File baseDir;
+	private final File trashDir;
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+	private final AtomicInteger batchCount = new AtomicInteger();
+	// Batches trashed by this process and not yet restored or purged; only touched on the executor
+	private final Set<File> openBatches = new HashSet<>();
+
+	// One worker: a restore queued behind its own trash step always sees the moved folders
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(() -> {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			r.run();
+		}, "library-trash");
+		t.setDaemon(true);
+		return t;
+	});
+
+	public static synchronized LibraryTrash get(Context context) {
+		if (instance == null)
+			instance = new LibraryTrash(context.getApplicationContext());
+		return instance;
+	}
+
+	private LibraryTrash(Context context) {
+		this.context = context;
+		this.baseDir = LibraryIndex.getBaseDir(context);
+		// A sibling of the library folder: same file system, so moving in and out is a rename
+		this.trashDir = new File(baseDir.getParentFile(), "mht-trash");
+	}
+
+	/**
+	 * Moves the entries' folders to the trash and removes them from the library index in one write.
+	 */
+	public void trash(final List<LibraryEntry> entries, final Listener listener) {
+		final List<LibraryEntry> snapshot = new ArrayList<>(entries);
+		executor.execute(() -> {
+			File dir = new File(trashDir, System.currentTimeMillis() + "-" + batchCount.incrementAndGet());
+			openBatches.add(dir);
+			List<LibraryEntry> moved = new ArrayList<>(snapshot.size());
+			List<String> movedNames = new ArrayList<>(snapshot.size());
+			int failed = 0;
+			long lastProgress = 0;
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				failed = snapshot.size();
+			} else {
+				for (int i = 0; i < snapshot.size(); i++) {
+					LibraryEntry e = snapshot.get(i);
+					File folder = new File(baseDir, e.folderName);
+					if (folder.isDirectory() && folder.renameTo(new File(dir, e.folderName))) {
+						if (e.savedPath != null && !e.savedPath.startsWith("content://"))
+							MhtArchive.evict(new File(e.savedPath));
+						moved.add(e);
+						movedNames.add(e.folderName);
+					} else {
+						failed++;
+					}
+					long now = SystemClock.uptimeMillis();
+					if (now - lastProgress >= PROGRESS_INTERVAL_MS) {
+						lastProgress = now;
+						final int done = i + 1;
+						mainHandler.post(() -> listener.onProgress(done, snapshot.size()));
+					}
+				}
+			}
+			LibraryIndex.get(context).removeAll(movedNames);
+			final Batch batch = new Batch(dir, moved);
+			final int failures = failed;
+			mainHandler.post(() -> listener.onTrashed(batch, failures));
+		});
+	}
+
+	/**
+	 * Moves a batch back into the library and re-adds it to the index.
+	 */
+	public void restore(final Batch batch, final Listener listener) {
+		executor.execute(() -> {
+			List<LibraryEntry> restored = new ArrayList<>(batch.entries.size());
+			List<File> folders = new ArrayList<>(batch.entries.size());
+			int failed = 0;
+			for (LibraryEntry e : batch.entries) {
+				File target = new File(baseDir, e.folderName);
+				if (!target.exists() && new File(batch.dir, e.folderName).renameTo(target)) {
+					restored.add(e);
+					folders.add(target);
+				} else {
+					failed++;
+				}
+			}
+			LibraryIndex.get(context).updateAll(folders);
+			// Whatever could not be moved back goes for good
+			if (failed > 0) {
+				purgeNow(batch);
+			} else {
+				batch.dir.delete();
+				openBatches.remove(batch.dir);
+			}
+			final int failures = failed;
+			mainHandler.post(() -> listener.onRestored(restored, failures));
+		});
+	}
+
+	/**
+	 * Deletes a batch's files in the background and forgets the entries in the other indexes.
+	 */
+	public void purge(final Batch batch) {
+		executor.execute(() -> purgeNow(batch));
+	}
+
+	/**
+	 * Deletes trash left over by a previous run, e.g. when the app was closed during an undo window. Batches
+	 * trashed by this process are skipped: another library screen may still offer to undo them.
+	 */
+	public void purgeLeftoversAsync() {
+		executor.execute(() -> {
+			File[] batches = trashDir.listFiles();
+			if (batches == null)
+				return;
+			for (File dir : batches) {
+				if (openBatches.contains(dir))
+					continue;
+				List<LibraryEntry> entries = new ArrayList<>();
+				File[] folders = dir.listFiles();
+				if (folders != null) {
+					for (File f : folders)
+						entries.add(new LibraryEntry(f.getName(), null, null, 0, null));
+				}
+				purgeNow(new Batch(dir, entries));
+			}
+		});
+	}
+
+	private void purgeNow(Batch batch) {
+		openBatches.remove(batch.dir);
+		List<String> names = new ArrayList<>(batch.entries.size());
+		for (LibraryEntry e : batch.entries) {
+			// Skip entries that went back into the library
+			if (new File(batch.dir, e.folderName).exists())
+				names.add(e.folderName);
+		}
+		if (!deleteRecursively(batch.dir))
+			Log.w(TAG, "Could not fully delete " + batch.dir);
+		if (names.isEmpty())
+			return;
+		SearchIndex.get(context).removeAll(names);
+		ThumbnailLoader thumbnails = ThumbnailLoader.get(context);
+		for (String name : names)
+			thumbnails.remove(name);
+	}
+
+	private static boolean deleteRecursively(File f) {
+		if (f == null || !f.exists())
+			return true;
+		if (f.isDirectory()) {
+			File[] children = f.listFiles();
+			if (children != null) {
+				for (File c : children) {
+					if (!deleteRecursively(c))
+						return false;
+				}
+			}
+		}
+		return f.delete();
+	}
+}
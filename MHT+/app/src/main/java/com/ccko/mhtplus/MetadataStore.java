@@ -0,0 +1,312 @@
+package com.ccko.mhtplus;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * MetadataStore: crash-safe writes of the per-folder meta.json files. Each write is first appended to a
+ * journal ("meta.journal" in the app's files dir); meta.json is then replaced by renaming a temp file over
+ * it, so a crash leaves either the old or the new file, never a torn one. Once the journal is synced,
+ * {@link #recover} (run before the library is first scanned) can restore any meta.json that did not make
+ * it to disk.
+ * <p>
+ * {@link #write} syncs the journal before returning. Batches {@link #stage} their writes and {@link #sync}
+ * once. The meta.json files themselves are synced in the background when a full journal is rotated out.
+ */
+public class MetadataStore {
+
+	private static final String TAG = "MetadataStore";
+	public static final String META_FILE = "meta.json";
+	private static final String JOURNAL_FILE = "meta.journal";
+	private static final String OLD_JOURNAL_FILE = "meta.journal.old";
+	private static final int JOURNAL_MAGIC = 0x4D484A4C; // "MHJL"
+	private static final int JOURNAL_VERSION = 1;
+	private static final int ROTATE_RECORDS = 256;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static MetadataStore instance;
+
+	private final File journalFile;
+	private final File oldJournalFile;
+	private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(() -> {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			r.run();
+		}, "metadata-compact");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private FileOutputStream journalOut;
+	private DataOutputStream journal;
+	private int journalRecords;
+	private boolean recovered;
+
+	public static synchronized MetadataStore get(Context context) {
+		if (instance == null)
+			instance = new MetadataStore(context.getApplicationContext());
+		return instance;
+	}
+
+	private MetadataStore(Context context) {
+		this.journalFile = new File(context.getFilesDir(), JOURNAL_FILE);
+		this.oldJournalFile = new File(context.getFilesDir(), OLD_JOURNAL_FILE);
+	}
+
+	/**
+	 * Replaces a folder's meta.json; durable once this returns.
+	 */
+	public synchronized void write(File folder, JSONObject meta) throws IOException {
+		stage(folder, meta);
+		sync();
+	}
+
+	/**
+	 * Replaces a folder's meta.json atomically, but only makes it durable with the next {@link #sync}.
+	 */
+	public synchronized void stage(File folder, JSONObject meta) throws IOException {
+		byte[] json = meta.toString().getBytes(UTF_8);
+		appendRecord(folder, json);
+		replace(new File(folder, META_FILE), json, false);
+	}
+
+	/**
+	 * Makes every staged write durable with a single sync of the journal.
+	 */
+	public synchronized void sync() throws IOException {
+		if (journal == null)
+			return;
+		journal.flush();
+		journalOut.getFD().sync();
+		if (journalRecords >= ROTATE_RECORDS)
+			rotate();
+	}
+
+	/**
+	 * @return a folder's parsed meta.json, or null if it is missing or unreadable.
+	 */
+	public static JSONObject read(File folder) {
+		byte[] data = readBytes(new File(folder, META_FILE));
+		if (data == null)
+			return null;
+		try {
+			return new JSONObject(new String(data, UTF_8));
+		} catch (JSONException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Rewrites every meta.json that differs from its latest synced journal record, e.g. after a crash
+	 * between a write and the disk catching up, then starts a fresh journal. Folders that have since been
+	 * renamed or deleted are left alone. Runs once per process; later calls return at once.
+	 */
+	public synchronized void recover() {
+		if (recovered)
+			return;
+		recovered = true;
+		if (journal != null) {
+			// Staged but not yet synced writes are covered below as well
+			try {
+				journal.flush();
+			} catch (IOException ignored) {
+			}
+		}
+		Map<String, byte[]> latest = new LinkedHashMap<>();
+		readJournal(oldJournalFile, latest);
+		readJournal(journalFile, latest);
+		if (latest.isEmpty()) {
+			oldJournalFile.delete();
+			return;
+		}
+		int restored = 0;
+		for (Map.Entry<String, byte[]> me : latest.entrySet()) {
+			File folder = new File(me.getKey());
+			if (!folder.isDirectory())
+				continue;
+			File meta = new File(folder, META_FILE);
+			try {
+				if (!Arrays.equals(readBytes(meta), me.getValue())) {
+					replace(meta, me.getValue(), true);
+					restored++;
+				} else {
+					syncFile(meta);
+				}
+			} catch (IOException e) {
+				Log.w(TAG, "Could not restore " + meta + ": " + e.getMessage());
+			}
+		}
+		if (restored > 0)
+			Log.i(TAG, "Restored " + restored + " metadata file(s) from the journal");
+		closeJournal();
+		journalFile.delete();
+		oldJournalFile.delete();
+	}
+
+	// --- Journal ---
+
+	/**
+	 * Record: payload length, payload (folder path, '\n', JSON, all UTF-8), CRC32 of the payload. A torn
+	 * record at the end fails its length or CRC check and ends the replay.
+	 */
+	private void appendRecord(File folder, byte[] json) throws IOException {
+		if (journal == null) {
+			boolean fresh = !journalFile.exists() || journalFile.length() == 0;
+			journalOut = new FileOutputStream(journalFile, true);
+			journal = new DataOutputStream(new BufferedOutputStream(journalOut));
+			if (fresh) {
+				journal.writeInt(JOURNAL_MAGIC);
+				journal.writeInt(JOURNAL_VERSION);
+			}
+		}
+		byte[] path = (folder.getAbsolutePath() + "\n").getBytes(UTF_8);
+		CRC32 crc = new CRC32();
+		crc.update(path);
+		crc.update(json);
+		journal.writeInt(path.length + json.length);
+		journal.write(path);
+		journal.write(json);
+		journal.writeInt((int) crc.getValue());
+		journalRecords++;
+	}
+
+	private static void readJournal(File file, Map<String, byte[]> latest) {
+		if (!file.exists())
+			return;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != JOURNAL_MAGIC || in.readInt() != JOURNAL_VERSION)
+				return;
+			while (true) {
+				int length = in.readInt();
+				if (length <= 0 || length > file.length())
+					break;
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+				CRC32 crc = new CRC32();
+				crc.update(payload);
+				if (in.readInt() != (int) crc.getValue())
+					break;
+				int nl = 0;
+				while (nl < length && payload[nl] != '\n')
+					nl++;
+				if (nl == length)
+					break;
+				String folder = new String(payload, 0, nl, UTF_8);
+				latest.remove(folder); // keeps the map in write order
+				latest.put(folder, Arrays.copyOfRange(payload, nl + 1, length));
+			}
+		} catch (EOFException e) {
+			// end of journal, possibly a torn last record
+		} catch (IOException e) {
+			Log.w(TAG, "Stopped reading " + file.getName() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Swaps in an empty journal and syncs the files the full one covered in the background; the old journal
+	 * is only deleted after that, so {@link #recover} can still use it if the process dies meanwhile.
+	 */
+	private void rotate() {
+		if (oldJournalFile.exists())
+			return; // previous rotation still syncing; try again on a later sync
+		closeJournal();
+		if (!journalFile.renameTo(oldJournalFile))
+			return;
+		try {
+			compactor.execute(() -> {
+				Map<String, byte[]> covered = new LinkedHashMap<>();
+				readJournal(oldJournalFile, covered);
+				for (String folder : covered.keySet()) {
+					try {
+						syncFile(new File(folder, META_FILE));
+					} catch (IOException ignored) {
+						// renamed or deleted since; nothing left to make durable
+					}
+				}
+				oldJournalFile.delete();
+			});
+		} catch (Exception ignored) {
+			// executor already shut down
+		}
+	}
+
+	private void closeJournal() {
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException ignored) {
+			}
+		}
+		journal = null;
+		journalOut = null;
+		journalRecords = 0;
+	}
+
+	// --- Files ---
+
+	/**
+	 * Writes a temp file next to the target and renames it over the target.
+	 */
+	private static void replace(File target, byte[] data, boolean durable) throws IOException {
+		File tmp = new File(target.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(tmp)) {
+			out.write(data);
+			if (durable)
+				out.getFD().sync();
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+		if (!tmp.renameTo(target)) {
+			tmp.delete();
+			throw new IOException("Cannot rename " + tmp);
+		}
+	}
+
+	private static void syncFile(File file) throws IOException {
+		if (!file.exists())
+			return;
+		// Append mode writes nothing, it only gives us a descriptor to sync
+		try (FileOutputStream out = new FileOutputStream(file, true)) {
+			out.getFD().sync();
+		}
+	}
+
+	private static byte[] readBytes(File file) {
+		if (!file.exists())
+			return null;
+		try (InputStream in = new FileInputStream(file)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(64, file.length()));
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) > 0)
+				out.write(buf, 0, n);
+			return out.toByteArray();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package com.ccko.mhtplus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MhtArchive: random-access view of a local MHT archive through a read-only memory mapping.
+ *
+ * The file is mapped once; the part index is built from the mapping on first use and every part is a
+ * slice of the same mapping, so resource serving, search indexing and thumbnails share one copy of the
+ * bytes (the page cache) instead of each streaming the file through their own buffers. Recently used
+ * archives are kept in a small cache keyed by path, size and modification time.
+ */
+public final class MhtArchive {
+
+	// Mappings are cheap to keep (they are backed by the page cache), but each holds a file's address range
+	private static final int CACHE_SIZE = 4;
+
+	private static final Map<String, MhtArchive> cache = new LinkedHashMap<String, MhtArchive>(CACHE_SIZE, 0.75f,
+			true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, MhtArchive> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private final ByteBuffer mapping; // read-only; only ever accessed through duplicates
+	private final long lastModified;
+	private List<MhtParser.Part> parts;
+
+	private MhtArchive(ByteBuffer mapping, long lastModified) {
+		this.mapping = mapping;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Returns the mapped archive for a local file, reusing a cached mapping if the file has not changed.
+	 */
+	public static MhtArchive get(File file) throws IOException {
+		String key = file.getAbsolutePath();
+		long modified = file.lastModified();
+		long length = file.length();
+		synchronized (cache) {
+			MhtArchive cached = cache.get(key);
+			if (cached != null && cached.lastModified == modified && cached.size() == length)
+				return cached;
+		}
+		MhtArchive archive;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			// The mapping stays valid after the file is closed
+			archive = new MhtArchive(mapChannel(raf.getChannel()), modified);
+		}
+		synchronized (cache) {
+			cache.put(key, archive);
+		}
+		return archive;
+	}
+
+	/**
+	 * Maps an already open channel, e.g. one backed by a content provider's file descriptor. Not cached.
+	 */
+	public static MhtArchive map(FileChannel channel) throws IOException {
+		return new MhtArchive(mapChannel(channel), 0);
+	}
+
+	private static ByteBuffer mapChannel(FileChannel channel) throws IOException {
+		long size = channel.size();
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("Archive too large to map: " + size);
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		return buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Drops the cached mapping of a file, e.g. after it has been deleted or rewritten.
+	 */
+	public static void evict(File file) {
+		synchronized (cache) {
+			cache.remove(file.getAbsolutePath());
+		}
+	}
+
+	public long size() {
+		return mapping.capacity();
+	}
+
+	/**
+	 * @return all leaf parts in archive order. Built on first call.
+	 */
+	public synchronized List<MhtParser.Part> parts() throws IOException {
+		if (parts == null)
+			parts = Collections.unmodifiableList(MhtParser.index(openStream()));
+		return parts;
+	}
+
+	/**
+	 * @return the page itself: the first HTML part, or null if there is none.
+	 */
+	public MhtParser.Part root() throws IOException {
+		for (MhtParser.Part p : parts()) {
+			if (p.isHtml())
+				return p;
+		}
+		return null;
+	}
+
+	/**
+	 * The whole archive as a stream over the mapping.
+	 */
+	public InputStream openStream() {
+		return new BufferInputStream(mapping.duplicate());
+	}
+
+	/**
+	 * The encoded bytes of a part as a read-only slice of the mapping; nothing is copied.
+	 */
+	public ByteBuffer slice(MhtParser.Part part) {
+		ByteBuffer b = mapping.duplicate();
+		int start = (int) Math.min(part.offset, b.capacity());
+		int end = (int) Math.min(part.offset + Math.max(0, part.length), b.capacity());
+		b.limit(end);
+		b.position(start);
+		return b.slice();
+	}
+
+	/**
+	 * The decoded body of a part.
+	 */
+	public InputStream openPart(MhtParser.Part part) {
+		return MhtParser.decode(new BufferInputStream(slice(part)), part.transferEncoding);
+	}
+
+	/**
+	 * Reads a buffer from its position to its limit.
+	 */
+	private static final class BufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			int n = Math.min(len, buffer.remaining());
+			if (n <= 0)
+				return -1;
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public long skip(long n) {
+			int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,434 @@
+package com.ccko.mhtplus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * MhtContainer: compact on-disk form of an MHT archive ("&lt;name&gt;.mhtc"). Each part is stored as its
+ * decoded bytes, so there is no base64 or quoted-printable overhead on disk or on open. Text parts can
+ * also be deflated. An index of the parts follows the blobs. Opening a container only reads the index, and
+ * parts are then served straight from their blobs. {@link #writeMht} turns a container back into a
+ * regular MHT file for export and sharing.
+ *
+ * Layout: magic, version, index offset, size of the original MHT, the part blobs, then the index.
+ */
+public final class MhtContainer implements Closeable {
+
+	public static final String SUFFIX = ".mhtc";
+
+	private static final int MAGIC = 0x4D485443; // "MHTC"
+	private static final int VERSION = 1;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// Transfer encodings of stored parts; MhtParser.decode() passes both through untouched
+	private static final String STORED = "binary";
+	private static final String DEFLATED = "x-deflate";
+
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+			.toCharArray();
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+	private final FileInputStream stream;
+	private final FileChannel channel;
+	private final long originalSize;
+	private final List<MhtParser.Part> parts;
+
+	private MhtContainer(FileInputStream stream, long originalSize, List<MhtParser.Part> parts) {
+		this.stream = stream;
+		this.channel = stream.getChannel();
+		this.originalSize = originalSize;
+		this.parts = Collections.unmodifiableList(parts);
+	}
+
+	public static boolean isContainer(File file) {
+		return file.getName().toLowerCase(Locale.US).endsWith(SUFFIX);
+	}
+
+	// --- Writing ---
+
+	/**
+	 * Transcodes an MHT archive into a container. The input stream is not closed.
+	 *
+	 * @param deflateText also deflate text parts (images and the like are compressed already)
+	 * @return false, with nothing left at out, if the input has no HTML part and so is not a page archive.
+	 */
+	public static boolean transcode(InputStream mht, File out, final boolean deflateText) throws IOException {
+		final CountingInputStream in = new CountingInputStream(mht);
+		final List<MhtParser.Part> written = new ArrayList<>();
+		final boolean[] hasHtml = new boolean[1];
+		try (FileOutputStream fos = new FileOutputStream(out)) {
+			final CountingOutputStream body = new CountingOutputStream(new BufferedOutputStream(fos, BUFFER_SIZE));
+			DataOutputStream data = new DataOutputStream(body);
+			data.writeInt(MAGIC);
+			data.writeInt(VERSION);
+			data.writeLong(0); // index offset, filled in below
+			data.writeLong(0); // original size, filled in below
+
+			final byte[] chunk = new byte[BUFFER_SIZE];
+			MhtParser.parse(in, (part, decoded) -> {
+				boolean deflate = deflateText && part.isText();
+				long start = body.count;
+				Deflater deflater = null;
+				OutputStream target = body;
+				if (deflate) {
+					deflater = new Deflater(Deflater.BEST_SPEED);
+					target = new DeflaterOutputStream(body, deflater, 16 * 1024);
+				}
+				int n;
+				while ((n = decoded.read(chunk, 0, chunk.length)) > 0)
+					target.write(chunk, 0, n);
+				if (deflate) {
+					((DeflaterOutputStream) target).finish(); // leaves body open
+					deflater.end();
+				}
+				written.add(new MhtParser.Part(written.size(), part.contentType, part.charset,
+						deflate ? DEFLATED : STORED, part.contentLocation, part.contentId, start, body.count - start));
+				hasHtml[0] |= part.isHtml();
+				return true;
+			});
+
+			long indexOffset = body.count;
+			data.writeInt(written.size());
+			for (MhtParser.Part p : written) {
+				data.writeUTF(p.contentType);
+				writeNullableString(data, p.charset);
+				data.writeUTF(p.transferEncoding);
+				writeNullableString(data, p.contentLocation);
+				writeNullableString(data, p.contentId);
+				data.writeLong(p.offset);
+				data.writeLong(p.getLength());
+			}
+			data.flush();
+
+			ByteBuffer header = ByteBuffer.allocate(16);
+			header.putLong(indexOffset).putLong(in.count).flip();
+			while (header.hasRemaining())
+				fos.getChannel().write(header, 8 + header.position());
+		} catch (IOException | RuntimeException e) {
+			out.delete();
+			throw e;
+		}
+		if (!hasHtml[0]) {
+			out.delete();
+			return false;
+		}
+		return true;
+	}
+
+	// --- Reading ---
+
+	/**
+	 * Opens a container and reads its part index. Close it when done.
+	 */
+	public static MhtContainer open(File file) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			FileChannel ch = fis.getChannel();
+			DataInputStream header = new DataInputStream(MhtParser.openChannel(ch, 0));
+			if (header.readInt() != MAGIC || header.readInt() != VERSION)
+				throw new IOException("Not an archive container: " + file);
+			long indexOffset = header.readLong();
+			long originalSize = header.readLong();
+
+			DataInputStream index = new DataInputStream(
+					new BufferedInputStream(MhtParser.openChannel(ch, indexOffset), 16 * 1024));
+			int count = index.readInt();
+			List<MhtParser.Part> parts = new ArrayList<>(Math.min(count, 1024));
+			for (int i = 0; i < count; i++) {
+				String contentType = index.readUTF();
+				String charset = readNullableString(index);
+				String transferEncoding = index.readUTF();
+				String location = readNullableString(index);
+				String contentId = readNullableString(index);
+				long offset = index.readLong();
+				long length = index.readLong();
+				parts.add(new MhtParser.Part(i, contentType, charset, transferEncoding, location, contentId, offset,
+						length));
+			}
+			return new MhtContainer(fis, originalSize, parts);
+		} catch (IOException | RuntimeException e) {
+			fis.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the size of the MHT file the container was made from, or -1 if it cannot be read.
+	 */
+	public static long originalSize(File file) {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return -1;
+			in.readLong();
+			return in.readLong();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	public long originalSize() {
+		return originalSize;
+	}
+
+	/**
+	 * @return all parts in archive order.
+	 */
+	public List<MhtParser.Part> parts() {
+		return parts;
+	}
+
+	/**
+	 * @return the page itself: the first HTML part, or null if there is none.
+	 */
+	public MhtParser.Part root() {
+		for (MhtParser.Part p : parts) {
+			if (p.isHtml())
+				return p;
+		}
+		return null;
+	}
+
+	/**
+	 * The decoded body of a part, read with positional reads so several parts can be open at once.
+	 */
+	public InputStream openPart(MhtParser.Part part) {
+		InputStream raw = MhtParser.openPart(channel, part);
+		return DEFLATED.equals(part.transferEncoding) ? new InflaterInputStream(raw) : raw;
+	}
+
+	@Override
+	public void close() throws IOException {
+		stream.close();
+	}
+
+	// --- Export ---
+
+	/**
+	 * Writes the archive out as a regular MHT file: text parts quoted-printable, everything else base64.
+	 * The stream is flushed but not closed.
+	 */
+	public void writeMht(OutputStream os, String subject) throws IOException {
+		OutputStream out = new BufferedOutputStream(os, BUFFER_SIZE);
+		String boundary = "----MultipartBoundary--" + Long.toHexString(System.currentTimeMillis()) + "----";
+		MhtParser.Part root = root();
+
+		writeLine(out, "From: <Saved by MHT+>");
+		if (root != null && root.contentLocation != null)
+			writeLine(out, "Snapshot-Content-Location: " + root.contentLocation);
+		writeLine(out, "Subject: " + encodeHeaderWord(subject != null ? subject : ""));
+		writeLine(out, "Date: " + new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss Z", Locale.US).format(new Date()));
+		writeLine(out, "MIME-Version: 1.0");
+		writeLine(out, "Content-Type: multipart/related;");
+		writeLine(out, "\ttype=\"text/html\";");
+		writeLine(out, "\tboundary=\"" + boundary + "\"");
+		writeLine(out, "");
+
+		for (MhtParser.Part p : parts) {
+			boolean text = p.isText();
+			writeLine(out, "--" + boundary);
+			String type = p.contentType.isEmpty() ? "application/octet-stream" : p.contentType;
+			writeLine(out, "Content-Type: " + type + (p.charset != null ? "; charset=\"" + p.charset + "\"" : ""));
+			if (p.contentId != null)
+				writeLine(out, "Content-ID: <" + p.contentId + ">");
+			writeLine(out, "Content-Transfer-Encoding: " + (text ? "quoted-printable" : "base64"));
+			if (p.contentLocation != null)
+				writeLine(out, "Content-Location: " + p.contentLocation);
+			writeLine(out, "");
+			try (InputStream body = openPart(p)) {
+				// The line break in front of the next delimiter belongs to the delimiter, not the body
+				if (text) {
+					writeQuotedPrintable(body, out);
+					out.write(CRLF);
+				} else {
+					writeBase64(body, out);
+				}
+			}
+		}
+		writeLine(out, "--" + boundary + "--");
+		out.flush();
+	}
+
+	private static void writeLine(OutputStream out, String line) throws IOException {
+		out.write(line.getBytes(US_ASCII));
+		out.write(CRLF);
+	}
+
+	/**
+	 * RFC 2047 encoded word for non-ASCII header values.
+	 */
+	private static String encodeHeaderWord(String value) {
+		boolean ascii = true;
+		for (int i = 0; i < value.length() && ascii; i++)
+			ascii = value.charAt(i) >= 0x20 && value.charAt(i) < 0x7F;
+		if (ascii)
+			return value;
+		StringBuilder sb = new StringBuilder("=?utf-8?B?");
+		byte[] bytes = value.getBytes(Charset.forName("UTF-8"));
+		for (int i = 0; i < bytes.length; i += 3)
+			appendBase64(sb, bytes, i, Math.min(3, bytes.length - i));
+		return sb.append("?=").toString();
+	}
+
+	/**
+	 * Base64 in lines of 76 characters.
+	 */
+	private static void writeBase64(InputStream in, OutputStream out) throws IOException {
+		byte[] line = new byte[57]; // encodes to 76 characters
+		StringBuilder sb = new StringBuilder(80);
+		int filled;
+		while ((filled = readFully(in, line)) > 0) {
+			sb.setLength(0);
+			for (int i = 0; i < filled; i += 3)
+				appendBase64(sb, line, i, Math.min(3, filled - i));
+			writeLine(out, sb.toString());
+			if (filled < line.length)
+				break;
+		}
+	}
+
+	private static void appendBase64(StringBuilder sb, byte[] b, int off, int len) {
+		int v = (b[off] & 0xFF) << 16 | (len > 1 ? (b[off + 1] & 0xFF) << 8 : 0) | (len > 2 ? b[off + 2] & 0xFF : 0);
+		sb.append(BASE64[(v >> 18) & 0x3F]).append(BASE64[(v >> 12) & 0x3F]);
+		sb.append(len > 1 ? BASE64[(v >> 6) & 0x3F] : '=').append(len > 2 ? BASE64[v & 0x3F] : '=');
+	}
+
+	private static int readFully(InputStream in, byte[] b) throws IOException {
+		int filled = 0;
+		int n;
+		while (filled < b.length && (n = in.read(b, filled, b.length - filled)) > 0)
+			filled += n;
+		return filled;
+	}
+
+	/**
+	 * Quoted-printable with CRLF hard line breaks and soft breaks before 76 characters.
+	 */
+	private static void writeQuotedPrintable(InputStream body, OutputStream out) throws IOException {
+		PushbackInputStream in = new PushbackInputStream(new BufferedInputStream(body, 16 * 1024), 1);
+		int lineLength = 0;
+		int b;
+		while ((b = in.read()) >= 0) {
+			if (b == '\n' || (b == '\r' && peek(in) == '\n')) {
+				if (b == '\r')
+					in.read();
+				out.write(CRLF);
+				lineLength = 0;
+				continue;
+			}
+			// Whitespace before a line break (or at the very end) must be encoded to survive transport
+			boolean literal = (b >= 33 && b <= 126 && b != '=')
+					|| ((b == ' ' || b == '\t') && !isLineEnd(peek(in)));
+			int width = literal ? 1 : 3;
+			if (lineLength + width > 75) {
+				out.write('=');
+				out.write(CRLF);
+				lineLength = 0;
+			}
+			if (literal) {
+				out.write(b);
+			} else {
+				out.write('=');
+				out.write(HEX[b >> 4]);
+				out.write(HEX[b & 0xF]);
+			}
+			lineLength += width;
+		}
+	}
+
+	private static int peek(PushbackInputStream in) throws IOException {
+		int b = in.read();
+		if (b >= 0)
+			in.unread(b);
+		return b;
+	}
+
+	private static boolean isLineEnd(int b) {
+		return b < 0 || b == '\r' || b == '\n';
+	}
+
+	private static void writeNullableString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null)
+			out.writeUTF(s);
+	}
+
+	private static String readNullableString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static final class CountingInputStream extends java.io.FilterInputStream {
+		long count;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0)
+				count++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n > 0)
+				count += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+
+	private static final class CountingOutputStream extends FilterOutputStream {
+		long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,421 @@
+package com.ccko.mhtplus;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * MhtImporter: adds picked documents to the library. MHT documents are linked in place (metadata only);
+ * anything else is copied into its own library folder, hashed on the way through so identical bytes are
+ * only stored once. Blocking; run it off the main thread (see {@link ImportService}).
+ *
+ * {@link #importUri} only writes the folder and its meta.json, and may be called from several threads at
+ * once. The metadata is made durable and the library and search indexes are updated for a whole
+ * batch by one {@link #commit} call.
+ */
+public class MhtImporter {
+
+	private static final String TAG = "MhtImporter";
+
+	/**
+	 * Copy progress, called on the importing thread at most every {@link #PROGRESS_INTERVAL_MS}.
+	 */
+	public interface ProgressListener {
+		/**
+		 * @param total size of the document, or -1 if the provider does not know it.
+		 */
+		void onProgress(long copied, long total);
+	}
+
+	public static final class Result {
+		public final Uri source;
+		public final String folderName;
+		public final String path; // local file path, or the content:// uri for linked documents
+		public final String displayName;
+		public final boolean duplicate; // true if an existing entry was reused
+		final File pageDir; // folder to commit, null if nothing new was written
+		final String sha256; // digest of copied content, null for linked documents
+
+		Result(Uri source, String folderName, String path, String displayName, boolean duplicate, File pageDir,
+				String sha256) {
+			this.source = source;
+			this.folderName = folderName;
+			this.path = path;
+			this.displayName = displayName;
+			this.duplicate = duplicate;
+			this.pageDir = pageDir;
+			this.sha256 = sha256;
+		}
+	}
+
+	// One large direct buffer per copying thread: provider reads and file writes go through it without extra
+	// copies
+	private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+	private static final long PROGRESS_INTERVAL_MS = 200L;
+	private static final int MAX_FILE_NAME = 80;
+
+	private final Context context;
+	private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+		}
+	};
+	// Digests copied by this importer but not committed yet, so a batch holding the same file twice keeps one
+	private final Map<String, Result> uncommitted = new HashMap<>();
+
+	public MhtImporter(Context context) {
+		this.context = context.getApplicationContext();
+	}
+
+	/**
+	 * Links or copies one document into the library folder. Thread-safe; the entry shows up in the library
+	 * and search once the result has been passed to {@link #commit}.
+	 */
+	public Result importUri(Uri uri, ProgressListener listener) throws IOException {
+		return importUri(uri, queryDisplayName(uri), listener);
+	}
+
+	/**
+	 * Same as {@link #importUri(Uri, ProgressListener)} with the display name already looked up.
+	 */
+	public Result importUri(Uri uri, String displayName, ProgressListener listener) throws IOException {
+		if (isMhtUri(uri, displayName))
+			return registerExternal(uri, displayName);
+		return copyIntoLibrary(uri, displayName, listener);
+	}
+
+	boolean isMhtUri(Uri uri, String displayName) {
+		// MIME check
+		try {
+			String type = context.getContentResolver().getType(uri);
+			if (type != null && type.equalsIgnoreCase("multipart/related"))
+				return true;
+		} catch (Exception ignored) {
+		}
+		// Display name extension check
+		return isMhtName(displayName);
+	}
+
+	private static boolean isMhtName(String name) {
+		if (name == null)
+			return false;
+		String lower = name.toLowerCase(Locale.US);
+		return lower.endsWith(".mht") || lower.endsWith(".mhtml");
+	}
+
+	/**
+	 * The copy keeps the document's own name, so batch imports are told apart in the library.
+	 */
+	private static String libraryFileName(String displayName) {
+		String name = displayName != null ? displayName.trim().replaceAll("[^A-Za-z0-9._-]", "_") : "";
+		if (name.length() > MAX_FILE_NAME)
+			name = name.substring(name.length() - MAX_FILE_NAME);
+		if (name.isEmpty() || name.matches("[_.]+"))
+			name = "page.mht";
+		return name;
+	}
+
+	String queryDisplayName(Uri uri) {
+		try (Cursor c = context.getContentResolver().query(uri, new String[] { OpenableColumns.DISPLAY_NAME },
+				null, null, null)) {
+			if (c != null && c.moveToFirst()) {
+				String n = c.getString(0);
+				if (n != null && !n.trim().isEmpty())
+					return n;
+			}
+		} catch (Exception ignored) {
+		}
+		return null;
+	}
+
+	private Result registerExternal(Uri uri, String displayName) throws IOException {
+		String safeName = displayName != null ? displayName.replaceAll("[^A-Za-z0-9._-]", "_") : "external";
+
+		// The uri is not copied, so key the folder on it: picking the same document again reuses the
+		// entry, and two documents that share a display name no longer collide
+		String folder = "link-" + safeName + "-" + ContentHash.hashOf(uri.toString()).substring(0, 8);
+		File pageDir = new File(LibraryIndex.getBaseDir(context), folder);
+		boolean existed = new File(pageDir, "meta.json").exists();
+		pageDir.mkdirs();
+
+		// Store uri string as both "uri" and "path" (path may be content://)
+		writeMetadataFile(pageDir, uri.toString(), uri.toString(), displayName != null ? displayName : safeName,
+				null, -1);
+		return new Result(uri, folder, uri.toString(), displayName, existed, pageDir, null);
+	}
+
+	private Result copyIntoLibrary(Uri uri, String displayName, ProgressListener listener) throws IOException {
+		File pageDir = newImportDir();
+		File outFile = new File(pageDir, libraryFileName(displayName));
+
+		String sha256;
+		try {
+			sha256 = copyAndHash(uri, outFile, listener);
+		} catch (IOException e) {
+			discard(outFile, pageDir);
+			throw e;
+		}
+
+		String folder = pageDir.getName();
+		// Duplicates are dropped before the copy is transcoded or compressed, which costs far more than the copy
+		synchronized (uncommitted) {
+			// Same bytes imported before, or earlier in this batch: drop the copy and reuse that entry
+			Result pending;
+			while ((pending = uncommitted.get(sha256)) != null && pending.path == null) {
+				// The other copy is still being stored; its path is known once it is done
+				try {
+					uncommitted.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					discard(outFile, pageDir);
+					throw new InterruptedIOException("Import interrupted");
+				}
+			}
+			if (pending != null) {
+				discard(outFile, pageDir);
+				return new Result(uri, pending.folderName, pending.path, displayName, true, null, null);
+			}
+			LibraryEntry existing = LibraryIndex.get(context).findByHash(sha256);
+			if (existing != null && existing.savedPath != null && new File(existing.savedPath).exists()) {
+				discard(outFile, pageDir);
+				return new Result(uri, existing.folderName, existing.savedPath, displayName, true, null, null);
+			}
+			// Reserved without a path while it is stored
+			uncommitted.put(sha256, new Result(uri, folder, null, displayName, false, pageDir, sha256));
+		}
+
+		// Transcoded to a container (or compressed) before anything points at the file
+		long originalSize = outFile.length();
+		outFile = ArchiveStorage.store(context, outFile);
+		Result result = new Result(uri, folder, outFile.getAbsolutePath(), displayName, false, pageDir, sha256);
+		synchronized (uncommitted) {
+			uncommitted.put(sha256, result);
+			uncommitted.notifyAll();
+		}
+
+		try {
+			writeMetadataFile(pageDir, uri.toString(), outFile.getAbsolutePath(),
+					displayName != null ? displayName : outFile.getName(), sha256, originalSize);
+		} catch (IOException e) {
+			synchronized (uncommitted) {
+				uncommitted.remove(sha256);
+				uncommitted.notifyAll();
+			}
+			discard(outFile, pageDir);
+			throw e;
+		}
+		return result;
+	}
+
+	private static void discard(File outFile, File pageDir) {
+		outFile.delete();
+		pageDir.delete();
+	}
+
+	/**
+	 * Records a batch of imports in the library and search indexes, each written once. The library catalog
+	 * keeps the content hashes that later imports check for duplicates.
+	 */
+	public void commit(List<Result> results) {
+		List<File> folders = new ArrayList<>();
+		List<String> digests = new ArrayList<>();
+		for (Result r : results) {
+			if (r.pageDir == null)
+				continue;
+			folders.add(r.pageDir);
+			if (r.sha256 != null)
+				digests.add(r.sha256);
+		}
+		if (folders.isEmpty())
+			return;
+
+		// One sync for the whole batch's meta.json writes, before any index points at them
+		try {
+			MetadataStore.get(context).sync();
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to sync imported metadata: " + e.getMessage());
+		}
+
+		LibraryIndex library = LibraryIndex.get(context);
+		library.updateAll(folders);
+		// From now on the catalog finds them
+		synchronized (uncommitted) {
+			uncommitted.keySet().removeAll(digests);
+		}
+
+		List<LibraryEntry> entries = new ArrayList<>(folders.size());
+		for (File f : folders) {
+			LibraryEntry e = library.find(f.getName());
+			if (e != null)
+				entries.add(e);
+		}
+		SearchIndex.get(context).indexArchivesAsync(entries);
+	}
+
+	/**
+	 * Lists the MHT documents anywhere below a tree picked with ACTION_OPEN_DOCUMENT_TREE.
+	 *
+	 * @return document uris, usable with the permission granted on the tree.
+	 */
+	public List<Uri> listTree(Uri treeUri) {
+		List<Uri> out = new ArrayList<>();
+		List<String> dirs = new ArrayList<>();
+		dirs.add(DocumentsContract.getTreeDocumentId(treeUri));
+		String[] projection = { DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+				DocumentsContract.Document.COLUMN_DISPLAY_NAME, DocumentsContract.Document.COLUMN_MIME_TYPE };
+		ContentResolver resolver = context.getContentResolver();
+		while (!dirs.isEmpty()) {
+			Uri children = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, dirs.remove(dirs.size() - 1));
+			try (Cursor c = resolver.query(children, projection, null, null, null)) {
+				while (c != null && c.moveToNext()) {
+					String id = c.getString(0);
+					String name = c.getString(1);
+					String mime = c.getString(2);
+					if (DocumentsContract.Document.MIME_TYPE_DIR.equals(mime))
+						dirs.add(id);
+					else if (isMhtName(name) || "multipart/related".equalsIgnoreCase(mime))
+						out.add(DocumentsContract.buildDocumentUriUsingTree(treeUri, id));
+				}
+			} catch (Exception ignored) {
+				// Unreadable sub-folder: import what the rest of the tree has
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * A fresh "imported-&lt;timestamp&gt;" folder; imports finishing within the same second get a suffix.
+	 */
+	private File newImportDir() throws IOException {
+		File baseDir = LibraryIndex.getBaseDir(context);
+		String base = "imported-" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+		synchronized (MhtImporter.class) {
+			File dir = new File(baseDir, base);
+			for (int n = 2; dir.exists(); n++)
+				dir = new File(baseDir, base + "-" + n);
+			if (!dir.mkdirs())
+				throw new IOException("Cannot create " + dir);
+			return dir;
+		}
+	}
+
+	/**
+	 * Streams the document into outFile through the direct buffer, hashing it on the way.
+	 *
+	 * @return the lower-case hex SHA-256 of the content.
+	 */
+	private String copyAndHash(Uri uri, File outFile, ProgressListener listener) throws IOException {
+		ContentResolver resolver = context.getContentResolver();
+		ParcelFileDescriptor pfd = null;
+		InputStream in = null;
+		try {
+			ReadableByteChannel src;
+			long total = -1;
+			try {
+				pfd = resolver.openFileDescriptor(uri, "r");
+			} catch (Exception ignored) {
+			}
+			if (pfd != null) {
+				FileInputStream fis = new FileInputStream(pfd.getFileDescriptor());
+				in = fis;
+				src = fis.getChannel();
+				total = pfd.getStatSize();
+			} else {
+				in = resolver.openInputStream(uri);
+				if (in == null)
+					throw new FileNotFoundException(uri.toString());
+				src = Channels.newChannel(in);
+			}
+
+			MessageDigest digest = ContentHash.newDigest();
+			ByteBuffer buf = buffers.get();
+			long copied = 0;
+			long lastReport = 0;
+			try (FileOutputStream fos = new FileOutputStream(outFile)) {
+				FileChannel dst = fos.getChannel();
+				buf.clear();
+				while (src.read(buf) >= 0) {
+					buf.flip();
+					ByteBuffer forDigest = buf.duplicate();
+					digest.update(forDigest);
+					copied += buf.remaining();
+					while (buf.hasRemaining())
+						dst.write(buf);
+					buf.clear();
+
+					long now = System.currentTimeMillis();
+					if (listener != null && now - lastReport >= PROGRESS_INTERVAL_MS) {
+						lastReport = now;
+						listener.onProgress(copied, total);
+					}
+				}
+			}
+			if (listener != null)
+				listener.onProgress(copied, total);
+			return ContentHash.toHex(digest.digest());
+		} finally {
+			try {
+				if (in != null)
+					in.close();
+			} catch (Exception ignored) {
+			}
+			try {
+				if (pfd != null)
+					pfd.close();
+			} catch (Exception ignored) {
+			}
+		}
+	}
+
+	/**
+	 * Stages meta.json for a library folder; {@link #commit} makes it durable. The folder is not added to
+	 * any index.
+	 *
+	 * @param originalSize size of the MHT before it was stored, or -1 if the file is not kept.
+	 */
+	private void writeMetadataFile(File pageDir, String uri, String path, String title, String sha256,
+			long originalSize) throws IOException {
+		try {
+			JSONObject obj = new JSONObject();
+			obj.put("uri", uri);
+			obj.put("path", path);
+			obj.put("title", title != null ? title : "Untitled");
+			obj.put("timestamp", System.currentTimeMillis());
+			if (sha256 != null)
+				obj.put("sha256", sha256);
+			if (originalSize >= 0)
+				obj.put(LibraryIndex.KEY_ORIGINAL_SIZE, originalSize);
+			MetadataStore.get(context).stage(pageDir, obj);
+		} catch (org.json.JSONException e) {
+			throw new IOException(e);
+		}
+	}
+}
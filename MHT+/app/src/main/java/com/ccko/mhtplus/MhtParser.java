@@ -0,0 +1,797 @@
+package com.ccko.mhtplus;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * MhtParser: streaming reader for MHTML (multipart/related) archives.
+ *
+ * The archive is read once, front to back, with fixed-size buffers: lines are handled in segments of at
+ * most {@link #SEGMENT_SIZE} bytes and part bodies are never buffered, so memory use does not depend on
+ * the size of the archive. Each part is reported with its headers and the offset of its encoded body;
+ * the body itself is only decoded if the handler reads it. Nested multiparts (multipart/alternative etc.)
+ * are flattened into their leaf parts.
+ *
+ * Pure Java on purpose: no Android classes, so it can run on a plain JVM.
+ */
+public final class MhtParser {
+
+	/**
+	 * One leaf part of the archive.
+	 */
+	public static final class Part {
+		public final int index;
+		public final String contentType; // lower-cased mime type, "" if missing
+		public final String charset; // null if not declared
+		public final String transferEncoding; // lower-cased, "" if missing
+		public final String contentLocation;
+		public final String contentId; // without the surrounding <>
+		public final long offset; // first byte of the encoded body in the archive
+		long length = -1; // encoded body length; known once the parser has moved past the body
+
+		Part(int index, Headers h, long offset) {
+			this.index = index;
+			this.contentType = h.contentType;
+			this.charset = h.charset;
+			this.transferEncoding = h.transferEncoding;
+			this.contentLocation = h.contentLocation;
+			this.contentId = h.contentId;
+			this.offset = offset;
+		}
+
+		/**
+		 * A part stored outside an MHT file, e.g. in an {@link MhtContainer}.
+		 */
+		Part(int index, String contentType, String charset, String transferEncoding, String contentLocation,
+				String contentId, long offset, long length) {
+			this.index = index;
+			this.contentType = contentType;
+			this.charset = charset;
+			this.transferEncoding = transferEncoding;
+			this.contentLocation = contentLocation;
+			this.contentId = contentId;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * @return the encoded body length in bytes, or -1 while the body has not been read past yet.
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		public boolean isHtml() {
+			return contentType.equals("text/html") || contentType.equals("application/xhtml+xml");
+		}
+
+		public boolean isText() {
+			return isHtml() || contentType.equals("text/plain");
+		}
+
+		/**
+		 * @return the declared charset, or UTF-8 if it is missing or unknown.
+		 */
+		public Charset textCharset() {
+			try {
+				if (charset != null)
+					return Charset.forName(charset);
+			} catch (Exception ignored) {
+			}
+			return Charset.forName("UTF-8");
+		}
+	}
+
+	/**
+	 * Receives parts in archive order.
+	 */
+	public interface PartHandler {
+		/**
+		 * @param body the decoded body. It is only valid during this call, and whatever is not read is skipped.
+		 * @return false to stop parsing.
+		 */
+		boolean onPart(Part part, InputStream body) throws IOException;
+	}
+
+	// Lines longer than this are handled in pieces; delimiter lines are far shorter (RFC 2046 caps them at 76)
+	static final int SEGMENT_SIZE = 8 * 1024;
+	private static final int MAX_HEADER_CHARS = 16 * 1024;
+	private static final int MAX_NESTING = 8;
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	private final InputStream in;
+	private final byte[] buf = new byte[64 * 1024];
+	private int pos;
+	private int limit;
+	private long position; // archive offset of buf[pos]
+
+	// Current line segment
+	private final byte[] segment = new byte[SEGMENT_SIZE];
+	private int segmentLength;
+	private long segmentStart;
+	private boolean segmentStartsLine;
+	private boolean atLineStart = true;
+
+	// "--" + boundary of every open multipart, innermost last
+	private final List<byte[]> delimiters = new ArrayList<>();
+	private int hitDelimiter = -1; // delimiter that ended the last body, -1 at end of stream
+	private boolean hitClosing;
+	private int partCount;
+	private boolean stopped;
+
+	private MhtParser(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Parses the whole archive, handing each leaf part to the handler. The stream is not closed.
+	 */
+	public static void parse(InputStream in, PartHandler handler) throws IOException {
+		new MhtParser(in).run(handler);
+	}
+
+	/**
+	 * Builds the part index of an archive without decoding any body.
+	 */
+	public static List<Part> index(InputStream in) throws IOException {
+		final List<Part> parts = new ArrayList<>();
+		parse(in, (part, body) -> {
+			parts.add(part);
+			return true;
+		});
+		return parts;
+	}
+
+	/**
+	 * Opens the decoded body of an indexed part straight from the archive file.
+	 */
+	public static InputStream openPart(File archive, Part part) throws IOException {
+		FileInputStream fis = new FileInputStream(archive);
+		try {
+			fis.getChannel().position(part.offset);
+		} catch (IOException e) {
+			fis.close();
+			throw e;
+		}
+		return decode(new BoundedInputStream(fis, Math.max(0, part.length)), part.transferEncoding);
+	}
+
+	/**
+	 * Opens the decoded body of an indexed part with positional reads on the channel. The channel position is
+	 * left alone, so several parts can be read at once, also while the archive is still being parsed.
+	 */
+	public static InputStream openPart(FileChannel channel, Part part) {
+		return decode(new ChannelInputStream(channel, part.offset, Math.max(0, part.length)), part.transferEncoding);
+	}
+
+	/**
+	 * Reads a channel from the given offset on, without touching its position.
+	 */
+	public static InputStream openChannel(FileChannel channel, long offset) {
+		return new ChannelInputStream(channel, offset, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Wraps an encoded body in a lazy decoder for its Content-Transfer-Encoding.
+	 */
+	public static InputStream decode(InputStream raw, String transferEncoding) {
+		if ("base64".equals(transferEncoding))
+			return new Base64InputStream(raw);
+		if ("quoted-printable".equals(transferEncoding))
+			return new QuotedPrintableInputStream(raw);
+		return raw; // 7bit, 8bit, binary
+	}
+
+	private void run(PartHandler handler) throws IOException {
+		Headers top = readHeaders();
+		if (top.boundary == null) {
+			// Single-part document (e.g. a plain .html saved with an .mht name)
+			emitPart(top, handler);
+			return;
+		}
+		parseMultipart(top.boundary, handler);
+	}
+
+	/**
+	 * Reads a multipart body up to its closing delimiter, an enclosing delimiter, or the end of the stream.
+	 */
+	private void parseMultipart(String boundary, PartHandler handler) throws IOException {
+		int level = delimiters.size();
+		delimiters.add(("--" + boundary).getBytes(LATIN1));
+		try {
+			skipBody(); // preamble
+			while (!stopped && hitDelimiter == level && !hitClosing) {
+				Headers h = readHeaders();
+				if (h.boundary != null && delimiters.size() < MAX_NESTING) {
+					parseMultipart(h.boundary, handler);
+					// The nested multipart was closed properly; skip its epilogue up to our next delimiter
+					if (!stopped && hitDelimiter == level + 1)
+						skipBody();
+				} else {
+					emitPart(h, handler);
+				}
+			}
+		} finally {
+			delimiters.remove(level);
+		}
+	}
+
+	private void emitPart(Headers h, PartHandler handler) throws IOException {
+		Part part = new Part(partCount++, h, position);
+		BodyInputStream raw = new BodyInputStream();
+		if (!handler.onPart(part, decode(raw, part.transferEncoding))) {
+			stopped = true;
+			return;
+		}
+		raw.drain();
+		part.length = raw.end - part.offset;
+	}
+
+	private void skipBody() throws IOException {
+		new BodyInputStream().drain();
+	}
+
+	// --- Line segments ---
+
+	private boolean fill() throws IOException {
+		int n = in.read(buf, 0, buf.length);
+		pos = 0;
+		limit = Math.max(n, 0);
+		return n > 0;
+	}
+
+	/**
+	 * Reads the next line, or the next SEGMENT_SIZE bytes of an over-long line, into {@link #segment}.
+	 *
+	 * @return false at end of stream.
+	 */
+	private boolean readSegment() throws IOException {
+		segmentStart = position;
+		segmentStartsLine = atLineStart;
+		int n = 0;
+		boolean newline = false;
+		while (n < SEGMENT_SIZE && !newline) {
+			if (pos >= limit && !fill())
+				break;
+			int end = pos;
+			int max = Math.min(limit, pos + SEGMENT_SIZE - n);
+			while (end < max) {
+				if (buf[end++] == '\n') {
+					newline = true;
+					break;
+				}
+			}
+			int count = end - pos;
+			System.arraycopy(buf, pos, segment, n, count);
+			n += count;
+			pos += count;
+			position += count;
+		}
+		segmentLength = n;
+		atLineStart = newline;
+		return n > 0;
+	}
+
+	/**
+	 * Checks whether the current segment is a delimiter line of any open multipart.
+	 *
+	 * @return the delimiter level, or -1.
+	 */
+	private int matchDelimiter() {
+		if (!segmentStartsLine || segmentLength < 2 || segment[0] != '-' || segment[1] != '-')
+			return -1;
+		for (int level = delimiters.size() - 1; level >= 0; level--) {
+			byte[] d = delimiters.get(level);
+			if (segmentLength < d.length || !regionEquals(segment, d))
+				continue;
+			int rest = d.length;
+			boolean closing = false;
+			if (rest + 1 < segmentLength && segment[rest] == '-' && segment[rest + 1] == '-') {
+				closing = true;
+				rest += 2;
+			}
+			// Only transport padding may follow the delimiter
+			while (rest < segmentLength && isWhitespace(segment[rest]))
+				rest++;
+			if (rest == segmentLength) {
+				hitClosing = closing;
+				return level;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean regionEquals(byte[] data, byte[] prefix) {
+		for (int i = 0; i < prefix.length; i++) {
+			if (data[i] != prefix[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+	// --- Headers ---
+
+	/**
+	 * The part headers we care about.
+	 */
+	static final class Headers {
+		String contentType = "";
+		String charset;
+		String transferEncoding = "";
+		String contentLocation;
+		String contentId;
+		String boundary;
+
+		void apply(String header) {
+			int colon = header.indexOf(':');
+			if (colon <= 0)
+				return;
+			String name = header.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+			String value = header.substring(colon + 1).trim();
+			switch (name) {
+			case "content-type":
+				int semi = value.indexOf(';');
+				contentType = (semi < 0 ? value : value.substring(0, semi)).trim().toLowerCase(Locale.ROOT);
+				charset = param(value, "charset");
+				boundary = contentType.startsWith("multipart/") ? param(value, "boundary") : null;
+				break;
+			case "content-transfer-encoding":
+				transferEncoding = value.toLowerCase(Locale.ROOT);
+				break;
+			case "content-location":
+				contentLocation = value;
+				break;
+			case "content-id":
+				contentId = value.startsWith("<") && value.endsWith(">") ? value.substring(1, value.length() - 1)
+						: value;
+				break;
+			default:
+				break;
+			}
+		}
+
+		static String param(String value, String name) {
+			String lower = value.toLowerCase(Locale.ROOT);
+			int idx = lower.indexOf(name + "=");
+			while (idx > 0 && Character.isLetterOrDigit(lower.charAt(idx - 1)))
+				idx = lower.indexOf(name + "=", idx + 1);
+			if (idx < 0)
+				return null;
+			int start = idx + name.length() + 1;
+			if (start < value.length() && value.charAt(start) == '"') {
+				int end = value.indexOf('"', start + 1);
+				return end < 0 ? value.substring(start + 1) : value.substring(start + 1, end);
+			}
+			int end = value.indexOf(';', start);
+			return (end < 0 ? value.substring(start) : value.substring(start, end)).trim();
+		}
+	}
+
+	/**
+	 * Reads headers up to and including the blank line that ends them. Folded lines are unfolded and
+	 * over-long headers are truncated.
+	 */
+	private Headers readHeaders() throws IOException {
+		Headers h = new Headers();
+		StringBuilder current = null;
+		while (readSegment()) {
+			if (!segmentStartsLine) {
+				// Continuation of an over-long line
+				if (current != null && current.length() < MAX_HEADER_CHARS)
+					current.append(new String(segment, 0, segmentLength, LATIN1).trim());
+				continue;
+			}
+			String line = new String(segment, 0, segmentLength, LATIN1);
+			if (line.trim().isEmpty())
+				break;
+			if ((line.charAt(0) == ' ' || line.charAt(0) == '\t') && current != null) {
+				if (current.length() < MAX_HEADER_CHARS)
+					current.append(' ').append(line.trim()); // folded header
+			} else {
+				if (current != null)
+					h.apply(current.toString());
+				current = new StringBuilder(line.trim());
+			}
+		}
+		if (current != null)
+			h.apply(current.toString());
+		return h;
+	}
+
+	// --- Bodies ---
+
+	/**
+	 * The encoded bytes of one body, up to the next delimiter line. The line break in front of a delimiter
+	 * belongs to the delimiter, so each line break is held back until the following line is known.
+	 */
+	private final class BodyInputStream extends InputStream {
+		private final byte[] eol = new byte[2]; // line break waiting to be served
+		private int eolPos;
+		private int eolLength;
+		private final byte[] heldEol = new byte[2]; // line break held back from the current segment
+		private int heldEolLength;
+		private int segPos;
+		private int segEnd;
+		private boolean finished;
+		long end = -1;
+
+		/**
+		 * Moves to the next segment.
+		 *
+		 * @return false once the body has ended.
+		 */
+		private boolean advance() throws IOException {
+			if (finished)
+				return false;
+			if (!readSegment()) {
+				// End of stream: nothing follows, so the held line break is part of the body
+				finished = true;
+				hitDelimiter = -1;
+				end = position;
+				stage(heldEol, heldEolLength);
+				heldEolLength = 0;
+				segPos = segEnd = 0;
+				return eolLength > 0;
+			}
+			int level = matchDelimiter();
+			if (level >= 0) {
+				finished = true;
+				hitDelimiter = level;
+				end = segmentStart - heldEolLength;
+				heldEolLength = 0;
+				segPos = segEnd = 0;
+				return false;
+			}
+			stage(heldEol, heldEolLength);
+			int contentEnd = segmentLength;
+			if (atLineStart) {
+				contentEnd--;
+				if (contentEnd > 0 && segment[contentEnd - 1] == '\r')
+					contentEnd--;
+			}
+			heldEolLength = segmentLength - contentEnd;
+			System.arraycopy(segment, contentEnd, heldEol, 0, heldEolLength);
+			segPos = 0;
+			segEnd = contentEnd;
+			return true;
+		}
+
+		private void stage(byte[] src, int length) {
+			System.arraycopy(src, 0, eol, 0, length);
+			eolPos = 0;
+			eolLength = length;
+		}
+
+		void drain() throws IOException {
+			while (advance()) {
+				// skip
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) <= 0 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			int n = 0;
+			while (n < len) {
+				if (eolPos < eolLength) {
+					b[off + n++] = eol[eolPos++];
+				} else if (segPos < segEnd) {
+					int count = Math.min(len - n, segEnd - segPos);
+					System.arraycopy(segment, segPos, b, off + n, count);
+					segPos += count;
+					n += count;
+				} else if (n > 0 || !advance()) {
+					break;
+				}
+			}
+			return n == 0 ? -1 : n;
+		}
+	}
+
+	/**
+	 * Limits a stream to the given number of bytes.
+	 */
+	static final class BoundedInputStream extends FilterInputStream {
+		private long remaining;
+
+		BoundedInputStream(InputStream in, long length) {
+			super(in);
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int b = in.read();
+			if (b >= 0)
+				remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int n = in.read(b, off, (int) Math.min(len, remaining));
+			if (n > 0)
+				remaining -= n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	private static final class ChannelInputStream extends InputStream {
+		private final FileChannel channel;
+		private long position;
+		private long remaining;
+
+		ChannelInputStream(FileChannel channel, long offset, long length) {
+			this.channel = channel;
+			this.position = offset;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) <= 0 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (remaining <= 0)
+				return -1;
+			int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+			if (n <= 0)
+				return -1;
+			position += n;
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) {
+			long skipped = Math.max(0, Math.min(n, remaining));
+			position += skipped;
+			remaining -= skipped;
+			return skipped;
+		}
+	}
+
+	/**
+	 * Base class for the transfer decoders: keeps a small buffer of encoded input.
+	 */
+	private abstract static class DecodingInputStream extends FilterInputStream {
+		private final byte[] input = new byte[8 * 1024];
+		int inPos;
+		int inLimit;
+		private boolean eof;
+
+		DecodingInputStream(InputStream in) {
+			super(in);
+		}
+
+		/**
+		 * Makes sure at least {@code count} encoded bytes are buffered, unless the input ends first.
+		 */
+		boolean require(int count) throws IOException {
+			if (inLimit - inPos >= count)
+				return true;
+			if (inPos > 0) {
+				System.arraycopy(input, inPos, input, 0, inLimit - inPos);
+				inLimit -= inPos;
+				inPos = 0;
+			}
+			while (!eof && inLimit < count) {
+				int n = in.read(input, inLimit, input.length - inLimit);
+				if (n < 0)
+					eof = true;
+				else
+					inLimit += n;
+			}
+			return inLimit - inPos >= count;
+		}
+
+		byte at(int offset) {
+			return input[inPos + offset];
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) <= 0 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			byte[] scratch = new byte[(int) Math.min(n, 4096)];
+			long skipped = 0;
+			while (skipped < n) {
+				int r = read(scratch, 0, (int) Math.min(scratch.length, n - skipped));
+				if (r < 0)
+					break;
+				skipped += r;
+			}
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return 0;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	static final class QuotedPrintableInputStream extends DecodingInputStream {
+
+		QuotedPrintableInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			int n = 0;
+			while (n < len && require(1)) {
+				byte c = at(0);
+				if (c != '=') {
+					b[off + n++] = c;
+					inPos++;
+					continue;
+				}
+				boolean three = require(3);
+				if (require(2) && at(1) == '\n') {
+					inPos += 2; // soft line break
+					continue;
+				}
+				if (three && at(1) == '\r' && at(2) == '\n') {
+					inPos += 3; // soft line break
+					continue;
+				}
+				if (three) {
+					int hi = Character.digit((char) at(1), 16);
+					int lo = Character.digit((char) at(2), 16);
+					if (hi >= 0 && lo >= 0) {
+						b[off + n++] = (byte) ((hi << 4) | lo);
+						inPos += 3;
+						continue;
+					}
+				}
+				b[off + n++] = '='; // malformed escape, keep it literally
+				inPos++;
+			}
+			return n == 0 ? -1 : n;
+		}
+	}
+
+	static final class Base64InputStream extends DecodingInputStream {
+		private final byte[] out = new byte[3];
+		private int outPos;
+		private int outLength;
+		private boolean done;
+
+		Base64InputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			int n = 0;
+			while (n < len) {
+				if (outPos < outLength) {
+					b[off + n++] = out[outPos++];
+				} else if (!decodeQuantum()) {
+					break;
+				}
+			}
+			return n == 0 ? -1 : n;
+		}
+
+		/**
+		 * Decodes the next four base64 characters, skipping line breaks and anything outside the alphabet.
+		 */
+		private boolean decodeQuantum() throws IOException {
+			if (done)
+				return false;
+			int bits = 0;
+			int count = 0;
+			while (count < 4 && require(1)) {
+				byte c = at(0);
+				inPos++;
+				if (c == '=') {
+					done = true; // padding: the data ends in this quantum
+					break;
+				}
+				int v = value(c);
+				if (v < 0)
+					continue;
+				bits = (bits << 6) | v;
+				count++;
+			}
+			if (count < 4)
+				done = true;
+			outPos = 0;
+			switch (count) {
+			case 4:
+				out[0] = (byte) (bits >> 16);
+				out[1] = (byte) (bits >> 8);
+				out[2] = (byte) bits;
+				outLength = 3;
+				break;
+			case 3:
+				out[0] = (byte) (bits >> 10);
+				out[1] = (byte) (bits >> 2);
+				outLength = 2;
+				break;
+			case 2:
+				out[0] = (byte) (bits >> 4);
+				outLength = 1;
+				break;
+			default:
+				outLength = 0;
+				break;
+			}
+			return outLength > 0;
+		}
+
+		private static int value(byte c) {
+			if (c >= 'A' && c <= 'Z')
+				return c - 'A';
+			if (c >= 'a' && c <= 'z')
+				return c - 'a' + 26;
+			if (c >= '0' && c <= '9')
+				return c - '0' + 52;
+			if (c == '+' || c == '-')
+				return 62;
+			if (c == '/' || c == '_')
+				return 63;
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,360 @@
+package com.ccko.mhtplus;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import android.webkit.WebResourceResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * MhtResourceServer: serves the parts of an MHT archive to a WebView through shouldInterceptRequest, so an
+ * archive can be shown without first copying it anywhere.
+ *
+ * The archive is indexed on a background thread with {@link MhtParser}. A request for a part the indexer
+ * has not reached yet waits for it, so the root page is shown as soon as its own part has been read.
+ * Local files and seekable content:// sources are memory-mapped through {@link MhtArchive} and served in
+ * place; anything else (pipes, cloud providers, compressed library copies) is spooled to a cache file as
+ * it is indexed, and parts are served from the spool. Library containers ({@link MhtContainer}) carry their
+ * own index, so nothing is parsed and the root is ready at once.
+ */
+public class MhtResourceServer {
+
+	/**
+	 * Called on the main thread with the URL to load, or null if the archive has no HTML part.
+	 */
+	public interface RootListener {
+		void onRootReady(String rootUrl);
+	}
+
+	private static final String TAG = "MhtResourceServer";
+
+	// Used when the root part has no Content-Location of its own
+	private static final String FALLBACK_ROOT = "https://archive.mhtplus.invalid/index.html";
+	private static final long WAIT_TIMEOUT_MS = 30_000L;
+
+	private final Context context;
+	private final Uri uri; // null for local files
+	private final File file;
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+	private final ExecutorService indexExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "mht-resource-index");
+		t.setDaemon(true);
+		return t;
+	});
+
+	// Content-Location (or "cid:" + Content-ID) -> part, only for parts whose body has been read past
+	private final Map<String, MhtParser.Part> parts = new HashMap<>();
+	private MhtParser.Part pending; // last reported part; its length is known once the next one starts
+	private boolean indexingDone;
+	private volatile boolean closed;
+	private String rootUrl;
+
+	// Source: a container, a mapping of the original file when possible, then positional reads, otherwise a
+	// spool file
+	private MhtContainer container;
+	private MhtArchive archive;
+	private ParcelFileDescriptor pfd;
+	private FileInputStream pfdStream;
+	private FileChannel channel;
+	private File spoolFile;
+
+	public MhtResourceServer(Context context, Uri uri) {
+		this.context = context.getApplicationContext();
+		this.uri = uri;
+		this.file = null;
+	}
+
+	public MhtResourceServer(Context context, File file) {
+		this.context = context.getApplicationContext();
+		this.uri = null;
+		this.file = file;
+	}
+
+	/**
+	 * Starts indexing; the listener is told which URL to load once the root HTML part is available.
+	 */
+	public void start(final RootListener listener) {
+		indexExecutor.execute(() -> {
+			boolean[] delivered = new boolean[1];
+			if (file != null && MhtContainer.isContainer(file)) {
+				openContainer();
+				deliverRootIfReady(listener, delivered);
+				if (!delivered[0])
+					postRoot(listener, null);
+				return;
+			}
+			try (InputStream source = openSource()) {
+				MhtParser.parse(source, (part, body) -> {
+					synchronized (this) {
+						publish(pending);
+						pending = part;
+						notifyAll();
+					}
+					deliverRootIfReady(listener, delivered);
+					return !closed;
+				});
+			} catch (Exception e) {
+				if (!closed)
+					Log.w(TAG, "Indexing failed: " + e.getMessage());
+			} finally {
+				synchronized (this) {
+					publish(pending);
+					pending = null;
+					indexingDone = true;
+					notifyAll();
+				}
+				deliverRootIfReady(listener, delivered);
+				if (!delivered[0])
+					postRoot(listener, null);
+			}
+		});
+	}
+
+	private void openContainer() {
+		try {
+			MhtContainer c = MhtContainer.open(file);
+			synchronized (this) {
+				container = c;
+				for (MhtParser.Part part : c.parts())
+					publish(part);
+			}
+			if (closed)
+				closeQuietly(c);
+		} catch (Exception e) {
+			Log.w(TAG, "Cannot open container: " + e.getMessage());
+		} finally {
+			synchronized (this) {
+				indexingDone = true;
+				notifyAll();
+			}
+		}
+	}
+
+	private void deliverRootIfReady(RootListener listener, boolean[] delivered) {
+		if (delivered[0])
+			return;
+		String url;
+		synchronized (this) {
+			url = rootUrl;
+		}
+		if (url != null) {
+			delivered[0] = true;
+			postRoot(listener, url);
+		}
+	}
+
+	private void postRoot(final RootListener listener, final String url) {
+		mainHandler.post(() -> {
+			if (!closed)
+				listener.onRootReady(url);
+		});
+	}
+
+	/**
+	 * Makes a fully read part available to requests. The first HTML part becomes the root page.
+	 */
+	private void publish(MhtParser.Part part) {
+		if (part == null)
+			return;
+		if (part.contentLocation != null)
+			parts.put(stripFragment(part.contentLocation), part);
+		if (part.contentId != null)
+			parts.put("cid:" + part.contentId, part);
+		if (rootUrl == null && part.isHtml()) {
+			rootUrl = part.contentLocation != null ? stripFragment(part.contentLocation) : FALLBACK_ROOT;
+			parts.put(rootUrl, part);
+		}
+	}
+
+	private InputStream openSource() throws IOException {
+		if (file != null && !ArchiveStorage.isCompressed(file)) {
+			archive = MhtArchive.get(file);
+			return archive.openStream();
+		}
+		if (file != null) {
+			// Decompressed as the indexer reads it; the spool only lives while the archive is shown
+			spoolFile = File.createTempFile("stream-", ".mht", context.getCacheDir());
+			return new TeeInputStream(ArchiveStorage.openStream(file), new FileOutputStream(spoolFile));
+		}
+		try {
+			pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+		} catch (Exception e) {
+			pfd = null;
+		}
+		if (pfd != null && pfd.getStatSize() >= 0) {
+			// Regular file behind the descriptor: map it, or fall back to positional reads; no copy needed
+			pfdStream = new FileInputStream(pfd.getFileDescriptor());
+			channel = pfdStream.getChannel();
+			try {
+				archive = MhtArchive.map(channel);
+				return archive.openStream();
+			} catch (IOException e) {
+				return MhtParser.openChannel(channel, 0);
+			}
+		}
+		closeQuietly(pfd);
+		pfd = null;
+
+		// Not seekable: keep what the indexer reads so parts can be served from it
+		InputStream in = context.getContentResolver().openInputStream(uri);
+		if (in == null)
+			throw new IOException("Cannot open " + uri);
+		spoolFile = File.createTempFile("stream-", ".mht", context.getCacheDir());
+		return new TeeInputStream(in, new FileOutputStream(spoolFile));
+	}
+
+	/**
+	 * Answers a WebView request. Call from WebViewClient.shouldInterceptRequest (a background thread).
+	 *
+	 * @return the part, a 404 for sub-resources the archive does not contain, or null to let the WebView
+	 *         handle main-frame navigations that leave the archive.
+	 */
+	public WebResourceResponse intercept(String url, boolean mainFrame) {
+		if (closed || url == null)
+			return null;
+		MhtParser.Part part = awaitPart(stripFragment(url));
+		if (part == null)
+			return mainFrame ? null : notFound();
+		try {
+			InputStream body;
+			if (container != null)
+				body = container.openPart(part);
+			else if (archive != null)
+				body = archive.openPart(part);
+			else if (channel != null)
+				body = MhtParser.openPart(channel, part);
+			else
+				body = MhtParser.openPart(spoolFile, part);
+			String mime = part.contentType.isEmpty() ? "application/octet-stream" : part.contentType;
+			return new WebResourceResponse(mime, part.charset, body);
+		} catch (Exception e) {
+			Log.w(TAG, "Cannot serve " + url + ": " + e.getMessage());
+			return notFound();
+		}
+	}
+
+	/**
+	 * Waits until the part is indexed or indexing has finished without it.
+	 */
+	private synchronized MhtParser.Part awaitPart(String key) {
+		long deadline = System.currentTimeMillis() + WAIT_TIMEOUT_MS;
+		while (!closed) {
+			MhtParser.Part part = parts.get(key);
+			if (part != null || indexingDone)
+				return part;
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				return null;
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private static WebResourceResponse notFound() {
+		return new WebResourceResponse("text/plain", "utf-8", 404, "Not Found", null,
+				new ByteArrayInputStream(new byte[0]));
+	}
+
+	private static String stripFragment(String url) {
+		int hash = url.indexOf('#');
+		return hash < 0 ? url : url.substring(0, hash);
+	}
+
+	/**
+	 * Stops indexing and releases the source. Responses already handed out fail on their next read.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		mainHandler.removeCallbacksAndMessages(null);
+		indexExecutor.shutdownNow();
+		synchronized (this) {
+			closeQuietly(container);
+		}
+		closeQuietly(pfdStream);
+		closeQuietly(pfd);
+		if (spoolFile != null)
+			spoolFile.delete();
+	}
+
+	private static void closeQuietly(java.io.Closeable c) {
+		try {
+			if (c != null)
+				c.close();
+		} catch (Exception ignored) {
+		}
+	}
+
+	/**
+	 * Copies everything read from the source into a spool file.
+	 */
+	private static final class TeeInputStream extends FilterInputStream {
+		private final OutputStream copy;
+
+		TeeInputStream(InputStream in, OutputStream copy) {
+			super(in);
+			this.copy = copy;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0)
+				copy.write(b);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n > 0)
+				copy.write(b, off, n);
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			byte[] scratch = new byte[(int) Math.min(n, 8192)];
+			long skipped = 0;
+			while (skipped < n) {
+				int r = read(scratch, 0, (int) Math.min(scratch.length, n - skipped));
+				if (r < 0)
+					break;
+				skipped += r;
+			}
+			return skipped;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				in.close();
+			} finally {
+				copy.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package com.ccko.mhtplus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * MhtTextExtractor: pulls the readable text out of the text/html and text/plain parts of an MHT archive.
+ * The archive is read once through {@link MhtParser}; only one decoded text part is held in memory at a
+ * time and each part is capped, so huge archives (mostly images) cost no more than their text.
+ */
+final class MhtTextExtractor {
+
+	/**
+	 * Receives the plain text of each text part, in archive order.
+	 */
+	interface TextSink {
+		void onText(String text);
+	}
+
+	// Decoded bytes kept per text part; anything beyond is ignored for indexing
+	private static final int MAX_PART_BYTES = 4 * 1024 * 1024;
+
+	private MhtTextExtractor() {
+	}
+
+	static void extract(InputStream in, final TextSink sink) throws IOException {
+		final byte[] chunk = new byte[16 * 1024];
+		MhtParser.parse(in, (part, body) -> {
+			if (part.isText())
+				emitText(part, body, chunk, sink);
+			// Other parts are left unread, so the parser skips them without decoding
+			return true;
+		});
+	}
+
+	/**
+	 * Same as {@link #extract(InputStream, TextSink)}, but reads the text parts straight out of the mapping
+	 * and never touches the other parts.
+	 */
+	static void extract(MhtArchive archive, TextSink sink) throws IOException {
+		byte[] chunk = new byte[16 * 1024];
+		for (MhtParser.Part part : archive.parts()) {
+			if (!part.isText())
+				continue;
+			try (InputStream body = archive.openPart(part)) {
+				emitText(part, body, chunk, sink);
+			}
+		}
+	}
+
+	/**
+	 * Same as {@link #extract(MhtArchive, TextSink)} for a container.
+	 */
+	static void extract(MhtContainer container, TextSink sink) throws IOException {
+		byte[] chunk = new byte[16 * 1024];
+		for (MhtParser.Part part : container.parts()) {
+			if (!part.isText())
+				continue;
+			try (InputStream body = container.openPart(part)) {
+				emitText(part, body, chunk, sink);
+			}
+		}
+	}
+
+	private static void emitText(MhtParser.Part part, InputStream body, byte[] chunk, TextSink sink)
+			throws IOException {
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		int r;
+		while (text.size() < MAX_PART_BYTES && (r = body.read(chunk, 0, chunk.length)) > 0)
+			text.write(chunk, 0, r);
+		if (text.size() > 0) {
+			String decoded = new String(text.toByteArray(), part.textCharset());
+			sink.onText(part.isHtml() ? stripHtml(decoded) : decoded);
+		}
+	}
+
+	// --- HTML to text ---
+
+	/**
+	 * Drops tags, comments, script and style contents, and decodes the common character entities.
+	 */
+	static String stripHtml(String html) {
+		StringBuilder out = new StringBuilder(html.length() / 2);
+		int i = 0;
+		int n = html.length();
+		while (i < n) {
+			char c = html.charAt(i);
+			if (c == '<') {
+				if (html.startsWith("<!--", i)) {
+					int end = html.indexOf("-->", i + 4);
+					i = end < 0 ? n : end + 3;
+					continue;
+				}
+				boolean script = startsWithIgnoreCase(html, "<script", i);
+				if (script || startsWithIgnoreCase(html, "<style", i)) {
+					int end = indexOfIgnoreCase(html, script ? "</script" : "</style", i);
+					int gt = end < 0 ? -1 : html.indexOf('>', end);
+					i = gt < 0 ? n : gt + 1;
+					out.append(' ');
+					continue;
+				}
+				int gt = html.indexOf('>', i);
+				i = gt < 0 ? n : gt + 1;
+				out.append(' ');
+				continue;
+			}
+			if (c == '&') {
+				int semi = html.indexOf(';', i);
+				if (semi > i && semi - i <= 10) {
+					int decoded = decodeEntity(html.substring(i + 1, semi).toLowerCase(Locale.ROOT));
+					if (decoded >= 0 && Character.isValidCodePoint(decoded)) {
+						out.appendCodePoint(decoded);
+						i = semi + 1;
+						continue;
+					}
+				}
+			}
+			out.append(c);
+			i++;
+		}
+		return out.toString();
+	}
+
+	private static boolean startsWithIgnoreCase(String s, String prefix, int offset) {
+		return s.regionMatches(true, offset, prefix, 0, prefix.length());
+	}
+
+	private static int indexOfIgnoreCase(String s, String needle, int from) {
+		int last = s.length() - needle.length();
+		for (int i = from; i <= last; i++) {
+			if (s.regionMatches(true, i, needle, 0, needle.length()))
+				return i;
+		}
+		return -1;
+	}
+
+	private static int decodeEntity(String ent) {
+		switch (ent) {
+		case "amp":
+			return '&';
+		case "lt":
+			return '<';
+		case "gt":
+			return '>';
+		case "quot":
+			return '"';
+		case "apos":
+			return '\'';
+		case "nbsp":
+			return ' ';
+		default:
+			break;
+		}
+		try {
+			if (ent.startsWith("#x"))
+				return Integer.parseInt(ent.substring(2), 16);
+			if (ent.startsWith("#"))
+				return Integer.parseInt(ent.substring(1));
+		} catch (NumberFormatException ignored) {
+		}
+		return -1;
+	}
+}
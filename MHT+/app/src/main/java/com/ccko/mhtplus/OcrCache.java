@@ -0,0 +1,276 @@
+package com.ccko.mhtplus;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * OcrCache: remembers OCR and translation results so a repeated selection skips the ML Kit models.
+ * Recognized text is keyed by a perceptual hash of the region's pixels ({@link #regionKey}) and only
+ * returned when an exact hash of them ({@link #contentHash}) matches too; translations are keyed by their
+ * text and language pair. Results live in an in-memory LruCache, and for archives in the library
+ * also in an "ocr.cache" file in the archive's folder, so they survive reopening the archive and are
+ * deleted with it.
+ * <p>
+ * Lookups never touch the disk: a folder's file is read in the background as soon as its archive is shown.
+ */
+public class OcrCache {
+
+	private static final String TAG = "OcrCache";
+	private static final String CACHE_FILE = "ocr.cache";
+	private static final int CACHE_MAGIC = 0x4D484F43; // "MHOC"
+	private static final int CACHE_VERSION = 2; // 2: texts carry the content hash of their region
+	private static final long MAX_FILE_BYTES = 512 * 1024;
+	private static final int MEMORY_ENTRIES = 256;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// Perceptual hash grid: one bit per horizontally adjacent pixel pair, HASH_SIZE x HASH_SIZE bits
+	private static final int HASH_SIZE = 16;
+
+	private static final String TEXT_PREFIX = "t:";
+	private static final String TRANSLATION_PREFIX = "x:";
+
+	private static OcrCache instance;
+
+	private final File baseDir;
+	private final LruCache<String, String> memory = new LruCache<>(MEMORY_ENTRIES);
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(() -> {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			r.run();
+		}, "ocr-cache");
+		t.setDaemon(true);
+		return t;
+	});
+
+	// Disk tier of the archive on screen: its folder (null when there is none) and the entries read from it
+	private volatile File folder;
+	private volatile Map<String, String> folderEntries = new ConcurrentHashMap<>();
+
+	public static synchronized OcrCache get(Context context) {
+		if (instance == null)
+			instance = new OcrCache(context.getApplicationContext());
+		return instance;
+	}
+
+	private OcrCache(Context context) {
+		this.baseDir = LibraryIndex.getBaseDir(context);
+	}
+
+	/**
+	 * Sets the archive being shown. Results are stored in its library folder from now on; for null or an
+	 * archive outside the library they are only kept in memory.
+	 */
+	public void setArchive(File archive) {
+		File dir = archive != null ? archive.getParentFile() : null;
+		if (dir != null && !baseDir.equals(dir.getParentFile()))
+			dir = null;
+		if (dir == null ? folder == null : dir.equals(folder))
+			return;
+		final File target = dir;
+		final Map<String, String> entries = new ConcurrentHashMap<>();
+		folder = target;
+		folderEntries = entries;
+		if (target == null)
+			return;
+		try {
+			executor.execute(() -> read(new File(target, CACHE_FILE), entries));
+		} catch (Exception ignored) {
+			// executor already shut down
+		}
+	}
+
+	/**
+	 * @return the library folder of the archive being shown, or null if there is none.
+	 */
+	public File getArchiveFolder() {
+		return folder;
+	}
+
+	// --- Lookups ---
+
+	/**
+	 * @return the text recognized in a region with this key and these exact pixels, or null.
+	 */
+	public String getText(String regionKey, long contentHash) {
+		String value = lookup(TEXT_PREFIX + regionKey);
+		String tag = textTag(contentHash);
+		// A region that only looks alike is a miss; its own text then replaces the stored one
+		return value != null && value.startsWith(tag) ? value.substring(tag.length()) : null;
+	}
+
+	public void putText(String regionKey, long contentHash, String text) {
+		if (text != null && !text.isEmpty())
+			store(TEXT_PREFIX + regionKey, textTag(contentHash) + text);
+	}
+
+	private static String textTag(long contentHash) {
+		return Long.toHexString(contentHash) + ":";
+	}
+
+	public String getTranslation(String text, String sourceLang, String targetLang) {
+		return lookup(translationKey(text, sourceLang, targetLang));
+	}
+
+	public void putTranslation(String text, String sourceLang, String targetLang, String translation) {
+		store(translationKey(text, sourceLang, targetLang), translation);
+	}
+
+	private static String translationKey(String text, String sourceLang, String targetLang) {
+		return TRANSLATION_PREFIX + ContentHash.hashOf(sourceLang + "\n" + targetLang + "\n" + text);
+	}
+
+	private String lookup(String key) {
+		String value = memory.get(key);
+		if (value == null) {
+			value = folderEntries.get(key);
+			if (value != null)
+				memory.put(key, value);
+		}
+		return value;
+	}
+
+	private void store(final String key, final String value) {
+		if (value == null || value.isEmpty())
+			return;
+		memory.put(key, value);
+		final File dir = folder;
+		if (dir == null || value.equals(folderEntries.put(key, value)))
+			return;
+		try {
+			executor.execute(() -> append(new File(dir, CACHE_FILE), key, value));
+		} catch (Exception ignored) {
+			// executor already shut down
+		}
+	}
+
+	/**
+	 * A perceptual hash of a bitmap plus its size: a difference hash over a {@value #HASH_SIZE}-row gray
+	 * thumbnail. The same region captured again, even re-rendered or re-scaled slightly differently, gets the
+	 * same key, while a region showing other text is very unlikely to. Unlikely is not never, so cached text
+	 * is also checked against the {@link #contentHash}.
+	 */
+	public static String regionKey(Bitmap bitmap) {
+		Bitmap small = Bitmap.createScaledBitmap(bitmap, HASH_SIZE + 1, HASH_SIZE, true);
+		int[] pixels = new int[(HASH_SIZE + 1) * HASH_SIZE];
+		small.getPixels(pixels, 0, HASH_SIZE + 1, 0, 0, HASH_SIZE + 1, HASH_SIZE);
+		if (small != bitmap)
+			small.recycle();
+
+		byte[] bits = new byte[HASH_SIZE * HASH_SIZE / 8];
+		int bit = 0;
+		for (int y = 0; y < HASH_SIZE; y++) {
+			int row = y * (HASH_SIZE + 1);
+			for (int x = 0; x < HASH_SIZE; x++, bit++) {
+				if (luminance(pixels[row + x]) > luminance(pixels[row + x + 1]))
+					bits[bit / 8] |= 1 << (bit % 8);
+			}
+		}
+		return bitmap.getWidth() + "x" + bitmap.getHeight() + ":" + ContentHash.toHex(bits);
+	}
+
+	/**
+	 * An exact hash of a bitmap's pixels (64-bit FNV-1a over them, row by row). Two different regions can share
+	 * a {@link #regionKey}; they are told apart by this.
+	 */
+	public static long contentHash(Bitmap bitmap) {
+		int width = bitmap.getWidth();
+		int[] row = new int[width];
+		long hash = 0xcbf29ce484222325L;
+		for (int y = 0; y < bitmap.getHeight(); y++) {
+			bitmap.getPixels(row, 0, width, 0, y, width, 1);
+			for (int pixel : row) {
+				hash ^= pixel;
+				hash *= 0x100000001b3L;
+			}
+		}
+		return hash;
+	}
+
+	private static int luminance(int color) {
+		return (Color.red(color) * 299 + Color.green(color) * 587 + Color.blue(color) * 114) / 1000;
+	}
+
+	// --- Disk tier ---
+
+	/**
+	 * Record: key (modified UTF-8), value length, value (UTF-8). A torn last record is cut off, so records
+	 * appended later stay readable.
+	 */
+	private static void read(File file, Map<String, String> into) {
+		if (!file.exists())
+			return;
+		if (file.length() > MAX_FILE_BYTES) {
+			// It is only a cache: start over rather than compact
+			file.delete();
+			return;
+		}
+		long good = 8; // end of the last complete record
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != CACHE_MAGIC || in.readInt() != CACHE_VERSION) {
+				file.delete();
+				return;
+			}
+			while (true) {
+				String key = in.readUTF();
+				int length = in.readInt();
+				if (length < 0 || length > file.length())
+					break;
+				byte[] value = new byte[length];
+				in.readFully(value);
+				into.put(key, new String(value, UTF_8));
+				good += 2 + key.length() + 4 + length; // keys are ASCII
+			}
+		} catch (EOFException e) {
+			// end of file, possibly a torn last record
+		} catch (IOException e) {
+			Log.w(TAG, "Stopped reading " + file + ": " + e.getMessage());
+			return;
+		}
+		if (good < file.length()) {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(good);
+			} catch (IOException e) {
+				file.delete();
+			}
+		}
+	}
+
+	private static void append(File file, String key, String value) {
+		boolean fresh = !file.exists() || file.length() == 0;
+		if (!fresh && file.length() > MAX_FILE_BYTES)
+			return;
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file, true)))) {
+			if (fresh) {
+				out.writeInt(CACHE_MAGIC);
+				out.writeInt(CACHE_VERSION);
+			}
+			byte[] bytes = value.getBytes(UTF_8);
+			out.writeUTF(key);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		} catch (IOException e) {
+			Log.w(TAG, "Could not write " + file + ": " + e.getMessage());
+		}
+	}
+}
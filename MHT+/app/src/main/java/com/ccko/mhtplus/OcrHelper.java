@@ -1,6 +1,12 @@
 package com.ccko.mhtplus;
 
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ColorMatrix;
+import android.graphics.ColorMatrixColorFilter;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -11,16 +17,35 @@ import com.google.mlkit.vision.text.TextRecognition;
 import com.google.mlkit.vision.text.TextRecognizer;
 import com.google.mlkit.vision.text.latin.TextRecognizerOptions;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * OcrHelper: Handles asynchronous text recognition using ML Kit Vision API.
  * This class takes a Bitmap (a cropped screenshot) and returns the extracted text.
+ * <p>
+ * Regions of a screenshot go through {@link #preprocess} first: they are drawn into a pooled bitmap,
+ * downscaled to what the recognizer needs and optionally turned gray. Screenshots can be taken from the
+ * same {@link #getBitmapPool() pool}, so repeated OCR sessions reuse a few buffers instead of allocating.
  */
 public class OcrHelper {
 
 	private static final String TAG = "OcrHelper";
+	// Latin text needs about 16 px per character; a longer side than this only costs time and memory
+	private static final int MAX_INPUT_SIDE = 1600;
+	// Room for a full-screen screenshot plus a crop on most phones
+	private static final long POOL_BYTES = 24L * 1024 * 1024;
+
 	// We make the recognizer lazy initialized (it's best practice, though ML Kit handles it fine)
 	private final TextRecognizer recognizer;
 
+	private final BitmapPool bitmapPool = new BitmapPool(POOL_BYTES);
+	// Preprocessing state, reused for every region (main thread only)
+	private final Canvas canvas = new Canvas();
+	private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	private final Rect dst = new Rect();
+	private OcrCache cache; // optional
+
 	/**
 	 * Callback interface to return results to the calling Activity/Fragment.
 	 * This will be implemented by OcrOverlayView.
@@ -31,9 +56,163 @@ public class OcrHelper {
 		void onError(Exception e);
 	}
 
+	/**
+	 * A recognized line of text and where it is in the source bitmap.
+	 */
+	public static final class TextLine {
+		public final String text;
+		public final Rect bounds;
+
+		TextLine(String text, Rect bounds) {
+			this.text = text;
+			this.bounds = bounds;
+		}
+	}
+
+	/**
+	 * Callback of {@link #recognizeLines}.
+	 */
+	public interface LinesCallback {
+		void onSuccess(List<TextLine> lines);
+
+		void onError(Exception e);
+	}
+
 	public OcrHelper() {
 		// Initialize the TextRecognizer for Latin script (English, most European languages).
 		recognizer = TextRecognition.getClient(TextRecognizerOptions.DEFAULT_OPTIONS);
+		setGrayscale(true);
+	}
+
+	/**
+	 * Pool for screenshot and crop bitmaps; release screenshots into it once they are no longer shown.
+	 */
+	public BitmapPool getBitmapPool() {
+		return bitmapPool;
+	}
+
+	/**
+	 * Lets {@link #recognizeRegion} answer repeated regions from the cache instead of running the model.
+	 */
+	public void setCache(OcrCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Whether regions are converted to grayscale before recognition, which evens out colored text and
+	 * backgrounds.
+	 */
+	public void setGrayscale(boolean enabled) {
+		if (enabled) {
+			ColorMatrix matrix = new ColorMatrix();
+			matrix.setSaturation(0f);
+			paint.setColorFilter(new ColorMatrixColorFilter(matrix));
+		} else {
+			paint.setColorFilter(null);
+		}
+	}
+
+	/**
+	 * Recognizes text in a region of a larger bitmap, e.g. a selection on a screenshot. The region is
+	 * copied out before this returns, so the source may be reused or released right after.
+	 */
+	public void recognizeRegion(@NonNull Bitmap source, @NonNull Rect region, @NonNull final OcrCallback callback) {
+		final Bitmap input;
+		try {
+			input = preprocess(source, region);
+		} catch (RuntimeException e) {
+			callback.onError(e);
+			return;
+		}
+		if (cache == null) {
+			recognize(input, callback, true);
+			return;
+		}
+		final OcrCache regionCache = cache;
+		final String key = OcrCache.regionKey(input);
+		final long contentHash = OcrCache.contentHash(input);
+		String cached = regionCache.getText(key, contentHash);
+		if (cached != null) {
+			bitmapPool.release(input);
+			callback.onSuccess(cached);
+			return;
+		}
+		recognize(input, new OcrCallback() {
+			@Override
+			public void onSuccess(String extractedText) {
+				regionCache.putText(key, contentHash, extractedText);
+				callback.onSuccess(extractedText);
+			}
+
+			@Override
+			public void onError(Exception e) {
+				callback.onError(e);
+			}
+		}, true);
+	}
+
+	/**
+	 * Like {@link #recognizeRegion}, but returns each line with its bounds in source coordinates, e.g. to
+	 * stitch the text of several screenshots together. Results are not cached.
+	 */
+	public void recognizeLines(@NonNull Bitmap source, @NonNull Rect region, @NonNull final LinesCallback callback) {
+		final Rect src = new Rect(region);
+		final Bitmap input;
+		try {
+			if (!src.intersect(0, 0, source.getWidth(), source.getHeight()) || src.isEmpty())
+				throw new IllegalArgumentException("Region outside the image");
+			input = preprocess(source, src);
+		} catch (RuntimeException e) {
+			callback.onError(e);
+			return;
+		}
+		if (recognizer == null) {
+			bitmapPool.release(input);
+			callback.onError(new IllegalStateException("OCR Recognizer is not initialized."));
+			return;
+		}
+		// Maps preprocessed pixels back onto the region
+		final float scaleX = (float) src.width() / input.getWidth();
+		final float scaleY = (float) src.height() / input.getHeight();
+		recognizer.process(InputImage.fromBitmap(input, 0)).addOnSuccessListener(result -> {
+			List<TextLine> lines = new ArrayList<>();
+			for (Text.TextBlock block : result.getTextBlocks()) {
+				for (Text.Line line : block.getLines()) {
+					Rect box = line.getBoundingBox();
+					if (box == null)
+						continue;
+					lines.add(new TextLine(line.getText(),
+							new Rect(src.left + Math.round(box.left * scaleX), src.top + Math.round(box.top * scaleY),
+									src.left + Math.round(box.right * scaleX),
+									src.top + Math.round(box.bottom * scaleY))));
+				}
+			}
+			callback.onSuccess(lines);
+		}).addOnFailureListener(e -> {
+			Log.e(TAG, "Text recognition failed.", e);
+			callback.onError(e);
+		}).addOnCompleteListener(task -> bitmapPool.release(input));
+	}
+
+	/**
+	 * Draws a region into a pooled bitmap, scaled down so its longer side is at most {@link #MAX_INPUT_SIDE}
+	 * (never up) and in gray if enabled. Release the result to the pool when done with it.
+	 */
+	Bitmap preprocess(Bitmap source, Rect region) {
+		Rect src = new Rect(region);
+		if (!src.intersect(0, 0, source.getWidth(), source.getHeight()) || src.isEmpty())
+			throw new IllegalArgumentException("Region outside the image");
+		float scale = Math.min(1f, (float) MAX_INPUT_SIDE / Math.max(src.width(), src.height()));
+		int w = Math.max(1, Math.round(src.width() * scale));
+		int h = Math.max(1, Math.round(src.height() * scale));
+
+		Bitmap out = bitmapPool.acquire(w, h, Bitmap.Config.ARGB_8888);
+		out.eraseColor(Color.WHITE); // pooled pixels are stale, and transparent pages read as black
+		dst.set(0, 0, w, h);
+		canvas.setBitmap(out);
+		canvas.drawBitmap(source, src, dst, paint);
+		canvas.setBitmap(null);
+		return out;
 	}
 
 	/**
@@ -43,8 +222,17 @@ public class OcrHelper {
 	 * @param callback The interface to handle success or failure.
 	 */
 	public void recognizeText(@NonNull Bitmap bitmap, @NonNull final OcrCallback callback) {
+		recognize(bitmap, callback, false);
+	}
+
+	/**
+	 * @param pooled true if the bitmap came from the pool and goes back to it once recognition is over.
+	 */
+	private void recognize(final Bitmap bitmap, final OcrCallback callback, final boolean pooled) {
 		// Ensure the recognizer is not closed or null
 		if (recognizer == null) {
+			if (pooled)
+				bitmapPool.release(bitmap);
 			callback.onError(new IllegalStateException("OCR Recognizer is not initialized."));
 			return;
 		}
@@ -61,6 +249,10 @@ public class OcrHelper {
 			// 4. Task failed: Log the error and inform the caller
 			Log.e(TAG, "Text recognition failed.", e);
 			callback.onError(e);
+		}).addOnCompleteListener(task -> {
+			// ML Kit reads the pixels until the task is done
+			if (pooled)
+				bitmapPool.release(bitmap);
 		});
 	}
 
@@ -81,10 +273,18 @@ public class OcrHelper {
 		return resultText.toString().trim();
 	}
 
+	/**
+	 * Frees the pooled bitmaps, e.g. when the system asks for memory back.
+	 */
+	public void trimMemory() {
+		bitmapPool.clear();
+	}
+
 	/**
 	 * Optional cleanup method.
 	 */
 	public void close() {
 		// recognizer.close(); // Not required for TextRecognition.getClient(options)
+		bitmapPool.clear();
 	}
 }
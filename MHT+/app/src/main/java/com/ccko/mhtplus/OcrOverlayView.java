@@ -16,14 +16,10 @@ import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import com.google.mlkit.common.model.DownloadConditions;
 import com.google.mlkit.nl.languageid.LanguageIdentification;
 import com.google.mlkit.nl.languageid.LanguageIdentificationOptions;
 import com.google.mlkit.nl.languageid.LanguageIdentifier;
 import com.google.mlkit.nl.translate.TranslateLanguage;
-import com.google.mlkit.nl.translate.Translator;
-import com.google.mlkit.nl.translate.TranslatorOptions;
-import com.google.mlkit.nl.translate.Translation;
 
 import java.util.Locale;
 
@@ -51,7 +47,7 @@ public class OcrOverlayView extends View implements OcrHelper.OcrCallback {
 
 	// ML Kit translation support
 	private LanguageIdentifier langIdentifier;
-	private Translator currentTranslator;
+	private TranslatorPool translators;
 	private String pendingTranslationText = null;
 
 	// Result display
@@ -61,8 +57,8 @@ public class OcrOverlayView extends View implements OcrHelper.OcrCallback {
 
 	private OcrHelper ocrHelper;
 
-	// Current translation target tag (e.g., "en", "es")
-	private String targetLangTag = "en";
+	// Current translation target as a TranslateLanguage code (e.g., "en", "es"); null until set
+	private String targetLang;
 
 	// Listener for selection lifecycle events so Activity can restore touch handling
 	public interface SelectionListener {
@@ -98,6 +94,7 @@ public class OcrOverlayView extends View implements OcrHelper.OcrCallback {
 			langIdentifier = null;
 		}
 		;
+		translators = new TranslatorPool(getContext());
 
 		// Paint for the transparent overlay outside the selection box
 		clearPaint.setColor(Color.argb(180, 0, 0, 0)); // Semi-transparent black
@@ -119,6 +116,8 @@ public class OcrOverlayView extends View implements OcrHelper.OcrCallback {
 	* Called by BrowserActivity when a new screenshot is ready to be selected.
 	*/
 	public void prepareForSelection(Bitmap bitmap) {
+		if (sourceBitmap != bitmap)
+			releaseSourceBitmap();
 		this.sourceBitmap = bitmap;
 		this.recognizedText = "Drag to select the area containing text.";
 		this.translatedText = "";
@@ -127,6 +126,18 @@ public class OcrOverlayView extends View implements OcrHelper.OcrCallback {
 		invalidate();
 	}
 
+	/**
+	* Stops showing the screenshot and hands it back to the OcrHelper's bitmap pool, e.g. before the next
+	* capture or when OCR mode ends.
+	*/
+	public void releaseSourceBitmap() {
+		Bitmap previous = sourceBitmap;
+		sourceBitmap = null;
+		if (previous != null && ocrHelper != null)
+			ocrHelper.getBitmapPool().release(previous);
+		invalidate();
+	}
+
 	/**
 	* Sets the OcrHelper instance for communication.
 	*/
@@ -193,14 +204,24 @@ public class OcrOverlayView extends View implements OcrHelper.OcrCallback {
 
 	}
 
-	// Setter for the translation target language tag
+	/**
+	* Sets the translation target from a language tag; "auto" means the device language. Tags ML Kit cannot
+	* translate to fall back to English. A new target's model starts downloading right away.
+	*/
 	public void setTargetLanguageTag(String tag) {
-		if (tag == null || tag.isEmpty() || tag.equals("auto")) {
-			// default to English if caller provides "auto" or invalid value
-			this.targetLangTag = "en";
-		} else {
-			this.targetLangTag = tag;
-		}
+		if (tag == null || tag.isEmpty() || tag.equals("auto"))
+			tag = Locale.getDefault().getLanguage();
+		String lang = TranslateLanguage.fromLanguageTag(tag);
+		if (lang == null)
+			lang = TranslateLanguage.ENGLISH;
+		if (lang.equals(targetLang))
+			return;
+		targetLang = lang;
+		translators.prefetch(lang);
+	}
+
+	private String targetLanguage() {
+		return targetLang != null ? targetLang : TranslateLanguage.ENGLISH;
 	}
 
 	private void drawInstructionText(Canvas canvas, String text) {
@@ -318,24 +339,12 @@ public class OcrOverlayView extends View implements OcrHelper.OcrCallback {
 		}
 
 		try {
-			// Ensure crop bounds are within bitmap
-			int w = Math.max(1, right - left);
-			int h = Math.max(1, bottom - top);
-			left = Math.max(0, Math.min(left, sourceBitmap.getWidth() - 1));
-			top = Math.max(0, Math.min(top, sourceBitmap.getHeight() - 1));
-			if (left + w > sourceBitmap.getWidth())
-				w = sourceBitmap.getWidth() - left;
-			if (top + h > sourceBitmap.getHeight())
-				h = sourceBitmap.getHeight() - top;
-
-			Bitmap croppedBitmap = Bitmap.createBitmap(sourceBitmap, left, top, w, h);
-
 			recognizedText = "Processing OCR...";
 			translatedText = "";
 			invalidate();
 
-			// Start the asynchronous OCR task
-			ocrHelper.recognizeText(croppedBitmap, this);
+			// The helper crops (and clamps) the selection into a pooled, downscaled bitmap
+			ocrHelper.recognizeRegion(sourceBitmap, new Rect(left, top, right, bottom), this);
 
 		} catch (Exception e) {
 			recognizedText = "Error during cropping: " + e.getMessage();
@@ -391,16 +400,6 @@ public class OcrOverlayView extends View implements OcrHelper.OcrCallback {
 				return;
 			}
 
-			// If already English, skip translation
-			if (languageCode.equalsIgnoreCase("en")) {
-				post(() -> {
-					translatedText = "Detected English; no translation needed.";
-					recognizedText = text;
-					invalidate();
-				});
-				return;
-			}
-
 			// Map to TranslateLanguage constant; fallback if mapping fails
 			String sourceLangTag = languageCode.toLowerCase(Locale.US);
 			String sourceLang = TranslateLanguage.fromLanguageTag(sourceLangTag);
@@ -414,44 +413,45 @@ public class OcrOverlayView extends View implements OcrHelper.OcrCallback {
 				return;
 			}
 
-			TranslatorOptions options = new TranslatorOptions.Builder().setSourceLanguage(sourceLang)
-					.setTargetLanguage(TranslateLanguage.ENGLISH).build();
-
-			// Close previous translator if any
-			if (currentTranslator != null) {
-				try {
-					currentTranslator.close();
-				} catch (Exception ignored) {
-				}
-				currentTranslator = null;
+			// If already in the target language, skip translation
+			final String target = targetLanguage();
+			if (sourceLang.equals(target)) {
+				post(() -> {
+					translatedText = "Detected " + new Locale(target).getDisplayLanguage()
+							+ "; no translation needed.";
+					recognizedText = text;
+					invalidate();
+				});
+				return;
 			}
-			currentTranslator = Translation.getClient(options);
 
-			// Model download conditions (adjust as desired)
-			DownloadConditions conditions = new DownloadConditions.Builder()
-					// remove requireWifi() if you want cellular downloads
-					.build();
+			final OcrCache cache = OcrCache.get(getContext());
+			String cached = cache.getTranslation(text, sourceLang, target);
+			if (cached != null) {
+				post(() -> {
+					translatedText = "Translated:\n" + cached;
+					recognizedText = "";
+					invalidate();
+				});
+				return;
+			}
 
+			// Pooled clients keep their models loaded; only a pair's first translation can download
+			final boolean ready = translators.isReady(sourceLang, target);
 			post(() -> {
-				recognizedText = "Downloading translation model...";
+				recognizedText = ready ? "Translating..." : "Downloading translation model...";
 				translatedText = "";
 				invalidate();
 			});
 
-			currentTranslator.downloadModelIfNeeded(conditions).addOnSuccessListener(aVoid -> {
-				post(() -> recognizedText = "Translating...");
+			translators.translate(text, sourceLang, target)
+					.addOnSuccessListener(translated -> post(() -> {
+				cache.putTranslation(text, sourceLang, target, translated);
+				translatedText = "Translated:\n" + translated;
+				recognizedText = "";
 				invalidate();
-				currentTranslator.translate(text).addOnSuccessListener(translated -> post(() -> {
-					translatedText = "Translated:\n" + translated;
-					recognizedText = "";
-					invalidate();
-				})).addOnFailureListener(e -> post(() -> {
-					translatedText = "Translation failed: " + e.getLocalizedMessage();
-					recognizedText = "";
-					invalidate();
-				}));
-			}).addOnFailureListener(e -> post(() -> {
-				translatedText = "Model download failed: " + e.getLocalizedMessage();
+			})).addOnFailureListener(e -> post(() -> {
+				translatedText = "Translation failed: " + e.getLocalizedMessage();
 				recognizedText = "";
 				invalidate();
 			}));
@@ -462,17 +462,18 @@ public class OcrOverlayView extends View implements OcrHelper.OcrCallback {
 		}));
 	}
 
+	/**
+	* Readies the translators of recently used source languages, so the next translation starts at once.
+	*/
+	public void prefetchTranslationModels() {
+		translators.prefetch(targetLanguage());
+	}
+
 	/**
 	* Cleanup translation resources. Call from Activity.onDestroy().
 	*/
 	public void closeTranslationResources() {
-		try {
-			if (currentTranslator != null) {
-				currentTranslator.close();
-				currentTranslator = null;
-			}
-		} catch (Exception ignored) {
-		}
+		translators.close();
 
 		try {
 			if (langIdentifier != null) {
@@ -0,0 +1,334 @@
+package com.ccko.mhtplus;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.os.Process;
+import android.util.Log;
+import android.webkit.WebView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * PageScanner: recognizes the text of a whole page, not just the visible viewport. The WebView is scrolled
+ * one screen at a time; each screen is drawn into a pooled tile and handed to {@link OcrHelper} right away,
+ * with at most {@link #MAX_IN_FLIGHT} tiles being recognized at once. Memory therefore stays at one tile
+ * plus the recognizer inputs, however tall the page. Lines from all tiles are merged by their position on
+ * the page.
+ * <p>
+ * For archives in the library the text is written to {@link #TEXT_FILE} in the archive's folder and the
+ * archive is re-indexed, so {@link SearchIndex} finds text that was only shown as images. Main thread only.
+ */
+public class PageScanner {
+
+	private static final String TAG = "PageScanner";
+	static final String TEXT_FILE = "page-ocr.txt";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final int MAX_IN_FLIGHT = 3;
+	// Stops endless pages (infinite scroll) from scanning forever
+	private static final int MAX_TILES = 100;
+	// Consecutive screens overlap by this fraction of their height, so no line is only seen cut in half
+	private static final int OVERLAP_DIVISOR = 8;
+	// Time for the WebView to draw the content scrolled into view
+	private static final long SETTLE_MS = 150;
+
+	public interface Listener {
+		/**
+		 * @param text the page's text, top to bottom; empty if none was recognized.
+		 */
+		void onFinished(String text);
+
+		void onFailed(Exception e);
+	}
+
+	/**
+	 * One screen of the page: where it starts and, once recognized, its lines in page coordinates.
+	 */
+	private static final class Tile {
+		final int top;
+		List<OcrHelper.TextLine> lines;
+
+		Tile(int top) {
+			this.top = top;
+		}
+	}
+
+	private final Context context;
+	private final OcrHelper ocrHelper;
+	private final Canvas canvas = new Canvas();
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(() -> {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			r.run();
+		}, "page-scan");
+		t.setDaemon(true);
+		return t;
+	});
+
+	// State of the running scan; scan is replaced on every start, so callbacks of an old one are ignored
+	private Object scan;
+	private WebView webView;
+	private File folder;
+	private Listener listener;
+	private final List<Tile> tiles = new ArrayList<>();
+	private int tileHeight;
+	private int inFlight;
+	private boolean capturePending; // captureNext is posted
+	private boolean captureDone;
+	private Exception lastError;
+	private int failedTiles;
+	private int startScrollX;
+	private int startScrollY;
+
+	private final Runnable captureNext = this::captureNext;
+
+	public PageScanner(Context context, OcrHelper ocrHelper) {
+		this.context = context.getApplicationContext();
+		this.ocrHelper = ocrHelper;
+	}
+
+	public boolean isRunning() {
+		return scan != null;
+	}
+
+	/**
+	 * Scans the page shown in the WebView from the top. The page cannot be scrolled by touch meanwhile, and
+	 * its scroll position is restored afterwards.
+	 *
+	 * @param archiveFolder library folder of the archive shown, where the text is stored; null to not store.
+	 */
+	public void scan(WebView webView, File archiveFolder, Listener listener) {
+		cancel();
+		if (webView.getWidth() <= 0 || webView.getHeight() <= 0) {
+			listener.onFailed(new IllegalStateException("WebView not ready for capture."));
+			return;
+		}
+		this.scan = new Object();
+		this.webView = webView;
+		this.folder = archiveFolder;
+		this.listener = listener;
+		tiles.clear();
+		tileHeight = webView.getHeight();
+		inFlight = 0;
+		capturePending = true;
+		captureDone = false;
+		lastError = null;
+		failedTiles = 0;
+		startScrollX = webView.getScrollX();
+		startScrollY = webView.getScrollY();
+
+		webView.setOnTouchListener((v, ev) -> true);
+		webView.scrollTo(startScrollX, 0);
+		webView.postDelayed(captureNext, SETTLE_MS);
+	}
+
+	/**
+	 * Stops a running scan without calling its listener.
+	 */
+	public void cancel() {
+		if (scan == null)
+			return;
+		finish();
+	}
+
+	public void close() {
+		cancel();
+		executor.shutdown();
+	}
+
+	private void captureNext() {
+		capturePending = false;
+		if (scan == null)
+			return;
+		// Waits for a recognition to complete; its callback calls back in
+		if (inFlight >= MAX_IN_FLIGHT)
+			return;
+
+		int width = webView.getWidth();
+		final Tile tile = new Tile(webView.getScrollY());
+		tiles.add(tile);
+		boolean last = tiles.size() >= MAX_TILES || !webView.canScrollVertically(1);
+		if (last)
+			captureDone = true;
+		else
+			capturePending = true;
+
+		BitmapPool pool = ocrHelper.getBitmapPool();
+		Bitmap bitmap = pool.acquire(width, tileHeight, Bitmap.Config.ARGB_8888);
+		try {
+			bitmap.eraseColor(Color.WHITE);
+			canvas.setBitmap(bitmap);
+			// draw() paints at scrolled coordinates; the parent that normally shifts them back is skipped here
+			canvas.save();
+			canvas.translate(-webView.getScrollX(), -webView.getScrollY());
+			webView.draw(canvas);
+			canvas.restore();
+			canvas.setBitmap(null);
+
+			final Object owner = scan;
+			inFlight++;
+			// Copies what it needs before returning, so the tile can go back to the pool at once
+			ocrHelper.recognizeLines(bitmap, new Rect(0, 0, width, tileHeight), new OcrHelper.LinesCallback() {
+				@Override
+				public void onSuccess(List<OcrHelper.TextLine> lines) {
+					if (owner != scan)
+						return;
+					for (OcrHelper.TextLine line : lines)
+						line.bounds.offset(0, tile.top);
+					tile.lines = lines;
+					onTileDone();
+				}
+
+				@Override
+				public void onError(Exception e) {
+					if (owner != scan)
+						return;
+					lastError = e;
+					failedTiles++;
+					onTileDone();
+				}
+			});
+		} finally {
+			pool.release(bitmap);
+		}
+
+		if (last) {
+			maybeComplete();
+			return;
+		}
+		webView.scrollBy(0, tileHeight - tileHeight / OVERLAP_DIVISOR);
+		webView.postDelayed(captureNext, SETTLE_MS);
+	}
+
+	private void onTileDone() {
+		inFlight--;
+		// Resumes a capture that waited for a free slot; the page has long settled by now
+		if (!captureDone && !capturePending) {
+			capturePending = true;
+			webView.post(captureNext);
+		}
+		maybeComplete();
+	}
+
+	private void maybeComplete() {
+		if (scan == null || !captureDone || inFlight > 0)
+			return;
+		Listener l = listener;
+		File dir = folder;
+		boolean allFailed = failedTiles == tiles.size();
+		Exception error = lastError;
+		String text = allFailed ? null : merge();
+		finish();
+
+		if (allFailed) {
+			l.onFailed(error);
+			return;
+		}
+		if (dir != null)
+			store(dir, text);
+		l.onFinished(text);
+	}
+
+	private void finish() {
+		webView.removeCallbacks(captureNext);
+		webView.setOnTouchListener(null);
+		webView.scrollTo(startScrollX, startScrollY);
+		scan = null;
+		webView = null;
+		listener = null;
+		folder = null;
+		tiles.clear();
+	}
+
+	// --- Merging ---
+
+	/**
+	 * Joins the tiles' lines top to bottom. Screens overlap, so each tile only contributes the lines whose
+	 * middle lies in its share of the page, which ends halfway through the overlap with the next tile.
+	 * Lines on about the same height are ordered left to right, and a blank line marks a gap in the text.
+	 */
+	private String merge() {
+		List<OcrHelper.TextLine> lines = new ArrayList<>();
+		for (int i = 0; i < tiles.size(); i++) {
+			Tile tile = tiles.get(i);
+			if (tile.lines == null)
+				continue;
+			int start = i == 0 ? Integer.MIN_VALUE : (tile.top + tiles.get(i - 1).top + tileHeight) / 2;
+			int end = i == tiles.size() - 1 ? Integer.MAX_VALUE
+					: (tiles.get(i + 1).top + tile.top + tileHeight) / 2;
+			for (OcrHelper.TextLine line : tile.lines) {
+				int middle = line.bounds.centerY();
+				if (middle >= start && middle < end)
+					lines.add(line);
+			}
+		}
+
+		Collections.sort(lines, (a, b) -> Integer.compare(a.bounds.top, b.bounds.top));
+		// Rows: runs of lines whose tops are within half a line height of the run's first line
+		for (int i = 0; i < lines.size();) {
+			int rowTop = lines.get(i).bounds.top;
+			int tolerance = Math.max(1, lines.get(i).bounds.height() / 2);
+			int j = i + 1;
+			while (j < lines.size() && lines.get(j).bounds.top - rowTop < tolerance)
+				j++;
+			Collections.sort(lines.subList(i, j), (a, b) -> Integer.compare(a.bounds.left, b.bounds.left));
+			i = j;
+		}
+
+		StringBuilder out = new StringBuilder();
+		OcrHelper.TextLine previous = null;
+		for (OcrHelper.TextLine line : lines) {
+			if (previous != null) {
+				boolean sameRow = line.bounds.top - previous.bounds.top < Math.max(1, previous.bounds.height() / 2);
+				if (sameRow)
+					out.append(' ');
+				else if (line.bounds.top - previous.bounds.bottom > previous.bounds.height())
+					out.append("\n\n");
+				else
+					out.append('\n');
+			}
+			out.append(line.text);
+			previous = line;
+		}
+		return out.toString();
+	}
+
+	// --- Storage ---
+
+	private void store(final File dir, final String text) {
+		try {
+			executor.execute(() -> {
+				File target = new File(dir, TEXT_FILE);
+				File tmp = new File(dir, TEXT_FILE + ".tmp");
+				try (FileOutputStream out = new FileOutputStream(tmp)) {
+					out.write(text.getBytes(UTF_8));
+				} catch (IOException e) {
+					Log.w(TAG, "Could not write " + target + ": " + e.getMessage());
+					tmp.delete();
+					return;
+				}
+				if (!tmp.renameTo(target)) {
+					Log.w(TAG, "Could not rename " + tmp);
+					tmp.delete();
+					return;
+				}
+				LibraryEntry entry = LibraryIndex.get(context).find(dir.getName());
+				if (entry != null)
+					SearchIndex.get(context).indexArchiveAsync(entry.folderName, entry.savedPath, entry.title);
+			});
+		} catch (Exception ignored) {
+			// executor already shut down
+		}
+	}
+}
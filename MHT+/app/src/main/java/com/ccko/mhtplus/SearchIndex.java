@@ -0,0 +1,583 @@
+package com.ccko.mhtplus;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SearchIndex: on-device inverted index over the text of every saved archive.
+ * Each library folder is one document; terms map to postings of (document, term frequency) and queries are
+ * ranked with BM25. The index lives in memory, is persisted to a single file, and is updated incrementally
+ * as archives are imported, saved, renamed or deleted. Text recognized by a {@link PageScanner} scan of the
+ * page is indexed along with the archive's own.
+ */
+public class SearchIndex {
+
+	private static final String TAG = "SearchIndex";
+	private static final String INDEX_FILE = "search.idx";
+	private static final int INDEX_MAGIC = 0x4D485453; // "MHTS"
+	private static final int INDEX_VERSION = 1;
+
+	// Caps per document so one giant archive cannot blow up the index
+	private static final int MAX_TERMS_PER_DOC = 20000;
+	private static final int MAX_TERM_LENGTH = 32;
+	// Title words count as if they appeared this many times in the body
+	private static final int TITLE_BOOST = 3;
+	// Expansions considered for a prefix match on the last query word
+	private static final int MAX_PREFIX_EXPANSIONS = 64;
+
+	private static final double BM25_K1 = 1.2;
+	private static final double BM25_B = 0.75;
+
+	// Changes made within this long of each other are written to the file together
+	private static final long SAVE_DELAY_MS = 2000;
+
+	private static SearchIndex instance;
+
+	private final Context context;
+	private final File indexFile;
+	// Only this thread changes the index; searches read it from other threads under the lock
+	private final ScheduledExecutorService indexExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(() -> {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			r.run();
+		}, "search-index");
+		t.setDaemon(true);
+		return t;
+	});
+
+	// Document table: id -> folder name (null once removed) and token count
+	private final List<String> docFolders = new ArrayList<>();
+	private int[] docLengths = new int[16];
+	private final Map<String, Integer> docIds = new HashMap<>();
+	private long totalLength = 0;
+	private int removedDocs = 0;
+
+	private final TreeMap<String, Postings> terms = new TreeMap<>();
+	private boolean loaded = false;
+	private boolean saveScheduled = false; // only touched on indexExecutor
+
+	/**
+	 * Growable parallel arrays of (document id, term frequency).
+	 */
+	private static final class Postings {
+		int[] docs = new int[4];
+		int[] freqs = new int[4];
+		int size;
+
+		void add(int doc, int freq) {
+			if (size == docs.length) {
+				docs = Arrays.copyOf(docs, size * 2);
+				freqs = Arrays.copyOf(freqs, size * 2);
+			}
+			docs[size] = doc;
+			freqs[size] = freq;
+			size++;
+		}
+	}
+
+	public static synchronized SearchIndex get(Context context) {
+		if (instance == null)
+			instance = new SearchIndex(context.getApplicationContext());
+		return instance;
+	}
+
+	private SearchIndex(Context context) {
+		this.context = context;
+		this.indexFile = new File(context.getFilesDir(), INDEX_FILE);
+	}
+
+	// --- Indexing ---
+
+	/**
+	 * Indexes (or re-indexes) one archive in the background.
+	 */
+	public void indexArchiveAsync(final String folderName, final String savedPath, final String title) {
+		if (folderName == null || savedPath == null)
+			return;
+		indexExecutor.execute(() -> {
+			indexArchive(folderName, savedPath, title);
+			scheduleSave();
+		});
+	}
+
+	/**
+	 * Indexes several archives in the background.
+	 */
+	public void indexArchivesAsync(final List<LibraryEntry> entries) {
+		if (entries.isEmpty())
+			return;
+		final List<LibraryEntry> snapshot = new ArrayList<>(entries);
+		indexExecutor.execute(() -> {
+			for (LibraryEntry e : snapshot)
+				indexArchive(e.folderName, e.savedPath, e.title);
+			scheduleSave();
+		});
+	}
+
+	/**
+	 * Brings the index in line with the library: indexes entries it has never seen and forgets folders that
+	 * are gone. Runs in the background.
+	 */
+	public void syncWithLibraryAsync(final List<LibraryEntry> entries) {
+		final List<LibraryEntry> snapshot = new ArrayList<>(entries);
+		indexExecutor.execute(() -> {
+			Set<String> live = new HashSet<>();
+			List<LibraryEntry> missing = new ArrayList<>();
+			boolean removed = false;
+			synchronized (this) {
+				ensureLoaded();
+				for (LibraryEntry e : snapshot) {
+					live.add(e.folderName);
+					if (!docIds.containsKey(e.folderName))
+						missing.add(e);
+				}
+				for (String folder : new ArrayList<>(docIds.keySet())) {
+					if (!live.contains(folder))
+						removed |= removeDoc(folder);
+				}
+			}
+			for (LibraryEntry e : missing)
+				indexArchive(e.folderName, e.savedPath, e.title);
+			if (removed || !missing.isEmpty())
+				scheduleSave();
+		});
+	}
+
+	/**
+	 * Forgets several folders in the background.
+	 */
+	public void removeAll(Collection<String> folderNames) {
+		if (folderNames.isEmpty())
+			return;
+		final List<String> snapshot = new ArrayList<>(folderNames);
+		indexExecutor.execute(() -> {
+			boolean removed = false;
+			synchronized (this) {
+				ensureLoaded();
+				for (String folder : snapshot)
+					removed |= removeDoc(folder);
+			}
+			if (removed)
+				scheduleSave();
+		});
+	}
+
+	private void indexArchive(String folderName, String savedPath, String title) {
+		final Map<String, int[]> counts = new HashMap<>();
+		final int[] length = new int[1];
+		if (title != null)
+			addTokens(title, counts, length, TITLE_BOOST);
+
+		try {
+			MhtTextExtractor.TextSink sink = text -> addTokens(text, counts, length, 1);
+			if (savedPath.startsWith("content://")) {
+				try (InputStream in = context.getContentResolver().openInputStream(Uri.parse(savedPath))) {
+					if (in != null)
+						MhtTextExtractor.extract(in, sink);
+				}
+			} else {
+				File f = new File(savedPath);
+				if (f.exists() && MhtContainer.isContainer(f)) {
+					try (MhtContainer container = MhtContainer.open(f)) {
+						MhtTextExtractor.extract(container, sink);
+					}
+				} else if (f.exists() && ArchiveStorage.isCompressed(f)) {
+					try (InputStream in = ArchiveStorage.openStream(f)) {
+						MhtTextExtractor.extract(in, sink);
+					}
+				} else if (f.exists()) {
+					MhtTextExtractor.extract(MhtArchive.get(f), sink);
+				}
+			}
+		} catch (Exception e) {
+			Log.w(TAG, "Failed to index " + folderName + ": " + e.getMessage());
+		}
+		// Text recognized from the rendered page, e.g. text that is only shown in images
+		File pageText = new File(new File(LibraryIndex.getBaseDir(context), folderName), PageScanner.TEXT_FILE);
+		if (pageText.exists()) {
+			try (BufferedReader in = new BufferedReader(
+					new InputStreamReader(new FileInputStream(pageText), Charset.forName("UTF-8")))) {
+				String line;
+				while ((line = in.readLine()) != null)
+					addTokens(line, counts, length, 1);
+			} catch (IOException e) {
+				Log.w(TAG, "Failed to read " + pageText + ": " + e.getMessage());
+			}
+		}
+
+		synchronized (this) {
+			ensureLoaded();
+			removeDoc(folderName);
+			int id = docFolders.size();
+			docFolders.add(folderName);
+			if (id >= docLengths.length)
+				docLengths = Arrays.copyOf(docLengths, Math.max(id + 1, docLengths.length * 2));
+			docLengths[id] = length[0];
+			docIds.put(folderName, id);
+			totalLength += length[0];
+			for (Map.Entry<String, int[]> me : counts.entrySet()) {
+				Postings p = terms.get(me.getKey());
+				if (p == null) {
+					p = new Postings();
+					terms.put(me.getKey(), p);
+				}
+				p.add(id, me.getValue()[0]);
+			}
+		}
+	}
+
+	private static void addTokens(String text, Map<String, int[]> counts, int[] length, int weight) {
+		for (String token : tokenize(text)) {
+			int[] c = counts.get(token);
+			if (c == null) {
+				if (counts.size() >= MAX_TERMS_PER_DOC)
+					continue;
+				c = new int[1];
+				counts.put(token, c);
+			}
+			c[0] += weight;
+			length[0] += weight;
+		}
+	}
+
+	/**
+	 * Lower-cased runs of letters and digits. Ideographs (CJK) become one token each, since those
+	 * scripts do not separate words with spaces.
+	 */
+	static List<String> tokenize(String text) {
+		List<String> out = new ArrayList<>();
+		StringBuilder cur = new StringBuilder();
+		int i = 0;
+		int n = text.length();
+		while (i < n) {
+			int cp = text.codePointAt(i);
+			i += Character.charCount(cp);
+			if (Character.isIdeographic(cp)) {
+				flushToken(cur, out);
+				out.add(new String(Character.toChars(cp)));
+			} else if (Character.isLetterOrDigit(cp)) {
+				if (cur.length() < MAX_TERM_LENGTH)
+					cur.appendCodePoint(Character.toLowerCase(cp));
+			} else {
+				flushToken(cur, out);
+			}
+		}
+		flushToken(cur, out);
+		return out;
+	}
+
+	private static void flushToken(StringBuilder cur, List<String> out) {
+		if (cur.length() >= 2)
+			out.add(cur.toString());
+		cur.setLength(0);
+	}
+
+	private boolean removeDoc(String folderName) {
+		Integer id = docIds.remove(folderName);
+		if (id == null)
+			return false;
+		// Postings keep the id; they are filtered at query time and dropped when the index is compacted
+		docFolders.set(id, null);
+		totalLength -= docLengths[id];
+		removedDocs++;
+		return true;
+	}
+
+	// --- Querying ---
+
+	/**
+	 * Ranks library folders against the query. Every query word must match; the last word also matches
+	 * as a prefix so results show up while the user is still typing.
+	 *
+	 * @return folder names, best match first.
+	 */
+	public synchronized List<String> search(String query, int limit) {
+		ensureLoaded();
+		List<String> words = tokenize(query == null ? "" : query);
+		List<String> out = new ArrayList<>();
+		int liveDocs = docIds.size();
+		if (words.isEmpty() || liveDocs == 0)
+			return out;
+
+		double avgLength = Math.max(1.0, (double) totalLength / liveDocs);
+		Map<Integer, double[]> scores = null; // doc id -> score
+
+		for (int w = 0; w < words.size(); w++) {
+			String word = words.get(w);
+			List<Postings> lists = new ArrayList<>();
+			Postings exact = terms.get(word);
+			if (exact != null)
+				lists.add(exact);
+			if (w == words.size() - 1) {
+				SortedMap<String, Postings> prefixed = terms.subMap(word, false, word + Character.MAX_VALUE, true);
+				for (Postings p : prefixed.values()) {
+					if (lists.size() >= MAX_PREFIX_EXPANSIONS)
+						break;
+					lists.add(p);
+				}
+			}
+
+			Map<Integer, double[]> wordScores = new HashMap<>();
+			for (Postings p : lists) {
+				double idf = Math.log(1.0 + (liveDocs - p.size + 0.5) / (p.size + 0.5));
+				for (int i = 0; i < p.size; i++) {
+					int doc = p.docs[i];
+					if (docFolders.get(doc) == null)
+						continue;
+					double tf = p.freqs[i];
+					double norm = BM25_K1 * (1 - BM25_B + BM25_B * docLengths[doc] / avgLength);
+					double s = idf * tf * (BM25_K1 + 1) / (tf + norm);
+					double[] acc = wordScores.get(doc);
+					if (acc == null)
+						wordScores.put(doc, new double[] { s });
+					else
+						acc[0] += s;
+				}
+			}
+
+			// AND across words: keep only documents that matched every word so far
+			if (scores == null) {
+				scores = wordScores;
+			} else {
+				Map<Integer, double[]> merged = new HashMap<>();
+				for (Map.Entry<Integer, double[]> me : wordScores.entrySet()) {
+					double[] prev = scores.get(me.getKey());
+					if (prev != null)
+						merged.put(me.getKey(), new double[] { prev[0] + me.getValue()[0] });
+				}
+				scores = merged;
+			}
+			if (scores.isEmpty())
+				return out;
+		}
+
+		List<Map.Entry<Integer, double[]>> ranked = new ArrayList<>(scores.entrySet());
+		ranked.sort((a, b) -> Double.compare(b.getValue()[0], a.getValue()[0]));
+		for (Map.Entry<Integer, double[]> me : ranked) {
+			if (out.size() >= limit)
+				break;
+			out.add(docFolders.get(me.getKey()));
+		}
+		return out;
+	}
+
+	// --- Persistence ---
+
+	private void ensureLoaded() {
+		if (loaded)
+			return;
+		loaded = true;
+		if (!indexFile.exists())
+			return;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+			if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION)
+				return;
+			int docCount = in.readInt();
+			docLengths = new int[Math.max(16, docCount)];
+			for (int id = 0; id < docCount; id++) {
+				String folder = in.readUTF();
+				int len = in.readInt();
+				docFolders.add(folder);
+				docLengths[id] = len;
+				docIds.put(folder, id);
+				totalLength += len;
+			}
+			int termCount = in.readInt();
+			for (int t = 0; t < termCount; t++) {
+				String term = in.readUTF();
+				int size = in.readInt();
+				Postings p = new Postings();
+				p.docs = new int[Math.max(4, size)];
+				p.freqs = new int[Math.max(4, size)];
+				for (int i = 0; i < size; i++) {
+					p.docs[i] = in.readInt();
+					p.freqs[i] = in.readInt();
+				}
+				p.size = size;
+				terms.put(term, p);
+			}
+		} catch (Exception e) {
+			// Corrupt index: start empty, the next library sync re-indexes everything
+			Log.w(TAG, "Discarding search index: " + e.getMessage());
+			docFolders.clear();
+			docIds.clear();
+			terms.clear();
+			totalLength = 0;
+		}
+	}
+
+	/**
+	 * Writes the index a little later, together with whatever else changes meanwhile. On indexExecutor only.
+	 * Changes not yet written when the process dies are made up by the next library sync, which indexes
+	 * the folders the file does not know.
+	 */
+	private void scheduleSave() {
+		if (saveScheduled)
+			return;
+		saveScheduled = true;
+		try {
+			indexExecutor.schedule(this::save, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+		} catch (Exception ignored) {
+			// executor already shut down
+		}
+	}
+
+	/**
+	 * Writes the index, dropping removed documents and renumbering the rest on the way. Runs on indexExecutor:
+	 * the tables are captured under the lock and written without it, so searches do not wait for the disk.
+	 * Postings only ever grow at their end, so the capture shares their arrays instead of copying them.
+	 */
+	private void save() {
+		saveScheduled = false;
+		String[] folders;
+		int[] lengths;
+		String[] termNames;
+		int[][] termDocs;
+		int[][] termFreqs;
+		int[] termSizes;
+		synchronized (this) {
+			folders = docFolders.toArray(new String[0]);
+			lengths = Arrays.copyOf(docLengths, folders.length);
+			termNames = new String[terms.size()];
+			termDocs = new int[termNames.length][];
+			termFreqs = new int[termNames.length][];
+			termSizes = new int[termNames.length];
+			int t = 0;
+			for (Map.Entry<String, Postings> me : terms.entrySet()) {
+				Postings p = me.getValue();
+				termNames[t] = me.getKey();
+				termDocs[t] = p.docs;
+				termFreqs[t] = p.freqs;
+				termSizes[t] = p.size;
+				t++;
+			}
+		}
+
+		int[] remap = new int[folders.length];
+		int live = 0;
+		for (int id = 0; id < folders.length; id++)
+			remap[id] = folders[id] != null ? live++ : -1;
+
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(INDEX_VERSION);
+			out.writeInt(live);
+			for (int id = 0; id < folders.length; id++) {
+				if (remap[id] < 0)
+					continue;
+				out.writeUTF(folders[id]);
+				out.writeInt(lengths[id]);
+			}
+
+			// Count surviving terms first so the header is exact
+			int termCount = 0;
+			for (int t = 0; t < termNames.length; t++) {
+				if (liveCount(termDocs[t], termSizes[t], remap) > 0)
+					termCount++;
+			}
+			out.writeInt(termCount);
+			for (int t = 0; t < termNames.length; t++) {
+				int n = liveCount(termDocs[t], termSizes[t], remap);
+				if (n == 0)
+					continue;
+				out.writeUTF(termNames[t]);
+				out.writeInt(n);
+				for (int i = 0; i < termSizes[t]; i++) {
+					int id = remap[termDocs[t][i]];
+					if (id < 0)
+						continue;
+					out.writeInt(id);
+					out.writeInt(termFreqs[t][i]);
+				}
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to write search index: " + e.getMessage());
+			tmp.delete();
+			return;
+		}
+		if (!tmp.renameTo(indexFile))
+			return;
+
+		// The file is compacted; once enough documents were removed, compact memory the same way. Nothing else
+		// changed the index since the capture, as only this thread does.
+		synchronized (this) {
+			if (removedDocs > 0 && removedDocs * 4 >= docFolders.size())
+				compact(remap, live);
+		}
+	}
+
+	private static int liveCount(int[] docs, int size, int[] remap) {
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			if (remap[docs[i]] >= 0)
+				n++;
+		}
+		return n;
+	}
+
+	private void compact(int[] remap, int live) {
+		List<String> folders = new ArrayList<>(live);
+		int[] lengths = new int[Math.max(16, live)];
+		for (int id = 0; id < docFolders.size(); id++) {
+			if (remap[id] < 0)
+				continue;
+			folders.add(docFolders.get(id));
+			lengths[remap[id]] = docLengths[id];
+		}
+		docFolders.clear();
+		docFolders.addAll(folders);
+		docLengths = lengths;
+		docIds.clear();
+		for (int id = 0; id < docFolders.size(); id++)
+			docIds.put(docFolders.get(id), id);
+
+		List<String> empty = new ArrayList<>();
+		for (Map.Entry<String, Postings> me : terms.entrySet()) {
+			Postings p = me.getValue();
+			int w = 0;
+			for (int i = 0; i < p.size; i++) {
+				int id = remap[p.docs[i]];
+				if (id < 0)
+					continue;
+				p.docs[w] = id;
+				p.freqs[w] = p.freqs[i];
+				w++;
+			}
+			p.size = w;
+			if (w == 0)
+				empty.add(me.getKey());
+		}
+		for (String term : empty)
+			terms.remove(term);
+		removedDocs = 0;
+	}
+}
@@ -0,0 +1,365 @@
+package com.ccko.mhtplus;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ThumbnailUtils;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ThumbnailLoader: a small square picture per library entry, cut from the first sizeable image part of its
+ * archive. Thumbnails are generated on background threads and kept in an in-memory LruCache plus a
+ * size-bounded disk cache, both keyed by folder name. The UI thread only ever does a memory lookup.
+ */
+public final class ThumbnailLoader {
+
+	private static final String TAG = "ThumbnailLoader";
+	private static final String PREFS = "mhtplus_prefs";
+	private static final String KEY_ENABLED = "show_thumbnails";
+
+	private static final int THUMB_DP = 48;
+	private static final int MIN_SOURCE_PX = 96; // skips icons, spacers and tracking pixels
+	private static final int MAX_SOURCE_BYTES = 8 * 1024 * 1024;
+	private static final int MAX_IMAGES_TRIED = 16;
+	private static final long MAX_DISK_BYTES = 16L * 1024 * 1024;
+	private static final int JPEG_QUALITY = 85;
+	private static final String DISK_SUFFIX = ".jpg";
+
+	public interface Callback {
+		/**
+		 * Called on the main thread once a thumbnail is available; it may belong to a row that has since
+		 * been rebound, so check the folder name.
+		 */
+		void onThumbnail(String folderName, Bitmap thumbnail);
+	}
+
+	private static ThumbnailLoader instance;
+
+	private final Context context;
+	private final File diskDir;
+	private final int sizePx;
+	private final LruCache<String, Bitmap> memory;
+	// Entries without a usable image; on disk as an empty file
+	private final Set<String> missing = Collections.synchronizedSet(new HashSet<>());
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+	private final ThreadPoolExecutor executor;
+	private long diskBytes = -1; // guarded by diskDir, computed on first write
+
+	public static synchronized ThumbnailLoader get(Context context) {
+		if (instance == null)
+			instance = new ThumbnailLoader(context.getApplicationContext());
+		return instance;
+	}
+
+	private ThumbnailLoader(Context context) {
+		this.context = context;
+		this.diskDir = new File(context.getCacheDir(), "thumbs");
+		this.sizePx = Math.round(THUMB_DP * context.getResources().getDisplayMetrics().density);
+		int memoryBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 32, 16L * 1024 * 1024);
+		this.memory = new LruCache<String, Bitmap>(memoryBytes) {
+			@Override
+			protected int sizeOf(String key, Bitmap value) {
+				return value.getByteCount();
+			}
+		};
+		final AtomicInteger count = new AtomicInteger();
+		executor = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+			Thread t = new Thread(() -> {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				r.run();
+			}, "library-thumbs-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	public static boolean isEnabled(Context context) {
+		return context.getSharedPreferences(PREFS, Context.MODE_PRIVATE).getBoolean(KEY_ENABLED, true);
+	}
+
+	public static void setEnabled(Context context, boolean enabled) {
+		context.getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit().putBoolean(KEY_ENABLED, enabled).apply();
+	}
+
+	/**
+	 * @return the thumbnail if it is in memory, else null. Cheap enough for onBindViewHolder.
+	 */
+	public Bitmap getCached(String folderName) {
+		return memory.get(folderName);
+	}
+
+	/**
+	 * Loads an entry's thumbnail from disk or generates it. Cancel the returned future (without interrupting)
+	 * when the row is recycled: a request that has not started yet never runs, one already running finishes
+	 * into the caches.
+	 *
+	 * @return null if the entry is known to have no thumbnail.
+	 */
+	public Future<?> load(final LibraryEntry entry, final Callback callback) {
+		final String key = entry.folderName;
+		if (missing.contains(key))
+			return null;
+		return executor.submit(() -> {
+			Bitmap thumb = memory.get(key);
+			if (thumb == null)
+				thumb = loadOrCreate(entry);
+			if (thumb == null) {
+				missing.add(key);
+				return;
+			}
+			memory.put(key, thumb);
+			final Bitmap result = thumb;
+			mainHandler.post(() -> callback.onThumbnail(key, result));
+		});
+	}
+
+	/**
+	 * Forgets a deleted entry's thumbnail.
+	 */
+	public void remove(String folderName) {
+		memory.remove(folderName);
+		missing.remove(folderName);
+		synchronized (diskDir) {
+			File f = diskFile(folderName);
+			long length = f.length();
+			if (f.delete() && diskBytes >= 0)
+				diskBytes -= length;
+		}
+	}
+
+	// --- Generation ---
+
+	private Bitmap loadOrCreate(LibraryEntry entry) {
+		String path = entry.savedPath;
+		if (path == null)
+			return null;
+		boolean local = !path.startsWith("content://");
+		File source = local ? new File(path) : null;
+		File cached = diskFile(entry.folderName);
+
+		// A cached thumbnail older than its archive is stale
+		if (cached.exists() && (source == null || cached.lastModified() >= source.lastModified())) {
+			if (cached.length() == 0)
+				return null;
+			Bitmap b = BitmapFactory.decodeFile(cached.getPath());
+			if (b != null) {
+				cached.setLastModified(System.currentTimeMillis()); // keeps it recently used
+				return b;
+			}
+		}
+
+		Bitmap thumb = null;
+		try {
+			if (local && MhtContainer.isContainer(source)) {
+				thumb = fromContainer(source);
+			} else if (local && !ArchiveStorage.isCompressed(source)) {
+				thumb = fromArchive(source);
+			} else if (local) {
+				try (InputStream in = ArchiveStorage.openStream(source)) {
+					thumb = fromStream(in);
+				}
+			} else {
+				try (InputStream in = context.getContentResolver().openInputStream(Uri.parse(path))) {
+					if (in != null)
+						thumb = fromStream(in);
+				}
+			}
+		} catch (Exception e) {
+			// Unreadable right now; not remembered on disk, so the next session tries again
+			Log.w(TAG, "No thumbnail for " + entry.folderName + ": " + e.getMessage());
+			return null;
+		}
+		writeToDisk(cached, thumb);
+		return thumb;
+	}
+
+	/**
+	 * Opens the decoded body of an indexed part.
+	 */
+	private interface PartOpener {
+		InputStream open(MhtParser.Part part) throws IOException;
+	}
+
+	private Bitmap fromContainer(File file) throws IOException {
+		try (MhtContainer container = MhtContainer.open(file)) {
+			return firstImage(container.parts(), container::openPart);
+		}
+	}
+
+	/**
+	 * A plain MHT file, read through the mapping that serving and indexing it share.
+	 */
+	private Bitmap fromArchive(File file) throws IOException {
+		MhtArchive archive = MhtArchive.get(file);
+		return firstImage(archive.parts(), archive::openPart);
+	}
+
+	private Bitmap firstImage(List<MhtParser.Part> parts, PartOpener opener) throws IOException {
+		int tried = 0;
+		for (MhtParser.Part part : parts) {
+			if (!isCandidate(part))
+				continue;
+			if (++tried > MAX_IMAGES_TRIED)
+				return null;
+			Bitmap b;
+			try (InputStream in = opener.open(part)) {
+				b = decode(readBounded(in));
+			}
+			if (b != null)
+				return b;
+		}
+		return null;
+	}
+
+	/**
+	 * Parses an MHT stream (a content:// document or a compressed archive) and stops at the first image
+	 * that makes a thumbnail.
+	 */
+	private Bitmap fromStream(InputStream in) throws IOException {
+		final Bitmap[] found = new Bitmap[1];
+		final int[] tried = new int[1];
+		MhtParser.parse(in, (part, body) -> {
+			if (!isCandidate(part))
+				return true;
+			if (++tried[0] > MAX_IMAGES_TRIED)
+				return false;
+			found[0] = decode(readBounded(body));
+			return found[0] == null;
+		});
+		return found[0];
+	}
+
+	private static boolean isCandidate(MhtParser.Part part) {
+		// BitmapFactory cannot draw SVG
+		return part.contentType.startsWith("image/") && !part.contentType.startsWith("image/svg");
+	}
+
+	private static byte[] readBounded(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+		byte[] buf = new byte[16 * 1024];
+		int n;
+		while ((n = in.read(buf)) > 0) {
+			if (out.size() + n > MAX_SOURCE_BYTES)
+				return null;
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes an image at the smallest power-of-two scale that still covers the thumbnail, then crops it to
+	 * a square. Null if the image is undecodable or too small to be a picture of the page.
+	 */
+	private Bitmap decode(byte[] data) {
+		if (data == null)
+			return null;
+		BitmapFactory.Options opts = new BitmapFactory.Options();
+		opts.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+		int w = opts.outWidth, h = opts.outHeight;
+		if (w < MIN_SOURCE_PX || h < MIN_SOURCE_PX)
+			return null;
+		int sample = 1;
+		while (Math.min(w, h) / (sample * 2) >= sizePx)
+			sample *= 2;
+		opts.inJustDecodeBounds = false;
+		opts.inSampleSize = sample;
+		Bitmap full = BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+		if (full == null)
+			return null;
+		Bitmap thumb = ThumbnailUtils.extractThumbnail(full, sizePx, sizePx);
+		if (thumb != full)
+			full.recycle();
+		return thumb;
+	}
+
+	// --- Disk cache ---
+
+	private File diskFile(String folderName) {
+		return new File(diskDir, folderName + DISK_SUFFIX);
+	}
+
+	/**
+	 * Stores a thumbnail, or an empty marker for an entry without one, then trims the least recently used
+	 * files until the cache fits its budget.
+	 */
+	private void writeToDisk(File target, Bitmap thumb) {
+		synchronized (diskDir) {
+			if (!diskDir.isDirectory() && !diskDir.mkdirs())
+				return;
+			if (diskBytes < 0)
+				diskBytes = directorySize();
+			long old = target.length();
+			File tmp = new File(target.getPath() + ".tmp");
+			try (OutputStream out = new FileOutputStream(tmp)) {
+				if (thumb != null)
+					thumb.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+			} catch (IOException e) {
+				tmp.delete();
+				return;
+			}
+			if (!tmp.renameTo(target)) {
+				tmp.delete();
+				return;
+			}
+			diskBytes += target.length() - old;
+			if (diskBytes > MAX_DISK_BYTES)
+				trimDisk();
+		}
+	}
+
+	private long directorySize() {
+		long total = 0;
+		File[] files = diskDir.listFiles();
+		if (files != null) {
+			for (File f : files)
+				total += f.length();
+		}
+		return total;
+	}
+
+	private void trimDisk() {
+		File[] files = diskDir.listFiles();
+		if (files == null)
+			return;
+		// Oldest first, on a snapshot of the times since hits touch them concurrently. Evicts down to three
+		// quarters of the budget so trimming does not run on every write.
+		final Map<File, Long> used = new HashMap<>();
+		for (File f : files)
+			used.put(f, f.lastModified());
+		Arrays.sort(files, (a, b) -> Long.compare(used.get(a), used.get(b)));
+		long target = MAX_DISK_BYTES * 3 / 4;
+		for (File f : files) {
+			if (diskBytes <= target)
+				break;
+			long length = f.length();
+			if (f.delete())
+				diskBytes -= length;
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package com.ccko.mhtplus;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import com.google.android.gms.tasks.Task;
+import com.google.mlkit.common.model.DownloadConditions;
+import com.google.mlkit.common.model.RemoteModelManager;
+import com.google.mlkit.nl.translate.TranslateLanguage;
+import com.google.mlkit.nl.translate.TranslateRemoteModel;
+import com.google.mlkit.nl.translate.Translation;
+import com.google.mlkit.nl.translate.Translator;
+import com.google.mlkit.nl.translate.TranslatorOptions;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * TranslatorPool: keeps ML Kit Translator clients open per (source, target) language pair, so only the
+ * first translation of a pair builds a client and checks its model; later ones translate right away. At most
+ * {@link #MAX_TRANSLATORS} clients stay open, least recently used go first; a client that is dropped while
+ * a translation or download still runs on it is closed once that is done.
+ * <p>
+ * The source languages the user translates from are remembered, and {@link #prefetch} readies their
+ * clients and models, and the target language's model, ahead of time. Use from the main thread only.
+ */
+public class TranslatorPool {
+
+	private static final String PREFS = "mhtplus_prefs";
+	private static final String KEY_RECENT_SOURCES = "ocr_recent_sources";
+	private static final int MAX_TRANSLATORS = 3; // each open client holds its models in memory
+	private static final int MAX_RECENT_SOURCES = 3;
+
+	private static final class Slot {
+		final Translator translator;
+		Task<Void> ready; // model check of a translation; reused once it succeeded
+		int running; // translations and downloads not yet complete
+		boolean released; // dropped from the pool; closed once nothing runs on it
+
+		Slot(Translator translator) {
+			this.translator = translator;
+		}
+	}
+
+	private final SharedPreferences prefs;
+	private final Map<String, Slot> slots = new LinkedHashMap<String, Slot>(MAX_TRANSLATORS + 1, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Slot> eldest) {
+			if (size() <= MAX_TRANSLATORS)
+				return false;
+			release(eldest.getValue());
+			return true;
+		}
+	};
+	private boolean closed;
+
+	// Model download of the target language passed to prefetch, kept so repeated calls do not restart it
+	private String fetchedTarget;
+	private Task<Void> targetDownload;
+
+	public TranslatorPool(Context context) {
+		this.prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+	}
+
+	/**
+	 * @return true if a pair's model is known to be on the device, so {@link #translate} will not download.
+	 */
+	public boolean isReady(String sourceLang, String targetLang) {
+		Slot slot = slots.get(key(sourceLang, targetLang));
+		return slot != null && slot.ready != null && slot.ready.isSuccessful();
+	}
+
+	/**
+	 * Translates with the pair's pooled client, downloading its model first if needed. Languages are
+	 * TranslateLanguage codes.
+	 */
+	public Task<String> translate(final String text, String sourceLang, String targetLang) {
+		rememberSource(sourceLang);
+		final Slot slot = slot(sourceLang, targetLang);
+		if (slot.ready == null || (slot.ready.isComplete() && !slot.ready.isSuccessful()))
+			slot.ready = slot.translator.downloadModelIfNeeded(new DownloadConditions.Builder().build());
+		return track(slot, slot.ready.onSuccessTask(v -> slot.translator.translate(text)));
+	}
+
+	/**
+	 * Fetches the target language's model and opens clients for the recently used source languages, so
+	 * the next translation into the target language does not wait for either. The target's model is needed
+	 * whatever the source and is downloaded on any network; source models only over Wi-Fi.
+	 */
+	public void prefetch(String targetLang) {
+		if (closed)
+			return;
+		// English is built in; every other language is translated via English and needs its own model
+		if (!TranslateLanguage.ENGLISH.equals(targetLang) && (!targetLang.equals(fetchedTarget)
+				|| (targetDownload.isComplete() && !targetDownload.isSuccessful()))) {
+			fetchedTarget = targetLang;
+			targetDownload = RemoteModelManager.getInstance().download(
+					new TranslateRemoteModel.Builder(targetLang).build(), new DownloadConditions.Builder().build());
+		}
+
+		// Leaves a slot free for a pair not prefetched, so prefetching never evicts itself
+		int budget = MAX_TRANSLATORS - 1;
+		for (String source : recentSources()) {
+			if (budget == 0)
+				break;
+			if (source.equals(targetLang))
+				continue;
+			budget--;
+			Slot slot = slot(source, targetLang);
+			if (slot.ready == null)
+				track(slot, slot.translator
+						.downloadModelIfNeeded(new DownloadConditions.Builder().requireWifi().build()));
+		}
+	}
+
+	public void close() {
+		closed = true;
+		for (Slot slot : slots.values())
+			release(slot);
+		slots.clear();
+	}
+
+	private Slot slot(String sourceLang, String targetLang) {
+		String key = key(sourceLang, targetLang);
+		Slot slot = slots.get(key);
+		if (slot == null) {
+			TranslatorOptions options = new TranslatorOptions.Builder().setSourceLanguage(sourceLang)
+					.setTargetLanguage(targetLang).build();
+			slot = new Slot(Translation.getClient(options));
+			slots.put(key, slot);
+		}
+		return slot;
+	}
+
+	private static String key(String sourceLang, String targetLang) {
+		return sourceLang + ">" + targetLang;
+	}
+
+	/**
+	 * Counts a task running on the slot's client until it completes; completion listeners run on the main
+	 * thread like the rest of the pool.
+	 */
+	private static <T> Task<T> track(final Slot slot, Task<T> task) {
+		slot.running++;
+		task.addOnCompleteListener(t -> {
+			slot.running--;
+			if (slot.released && slot.running == 0)
+				close(slot);
+		});
+		return task;
+	}
+
+	/**
+	 * Takes a slot out of use. Its client is closed now if it is idle, otherwise when its last task completes.
+	 */
+	private static void release(Slot slot) {
+		slot.released = true;
+		if (slot.running == 0)
+			close(slot);
+	}
+
+	private static void close(Slot slot) {
+		try {
+			slot.translator.close();
+		} catch (Exception ignored) {
+		}
+	}
+
+	// --- Recently used source languages ---
+
+	private List<String> recentSources() {
+		String stored = prefs.getString(KEY_RECENT_SOURCES, "");
+		List<String> out = new ArrayList<>();
+		for (String s : stored.split(",")) {
+			if (!s.isEmpty())
+				out.add(s);
+		}
+		return out;
+	}
+
+	private void rememberSource(String sourceLang) {
+		List<String> recent = recentSources();
+		if (!recent.isEmpty() && recent.get(0).equals(sourceLang))
+			return;
+		recent.remove(sourceLang);
+		recent.add(0, sourceLang);
+		while (recent.size() > MAX_RECENT_SOURCES)
+			recent.remove(recent.size() - 1);
+		prefs.edit().putString(KEY_RECENT_SOURCES, TextUtils.join(",", recent)).apply();
+	}
+}
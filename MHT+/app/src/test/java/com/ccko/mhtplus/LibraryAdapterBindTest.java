@@ -0,0 +1,77 @@
+package com.ccko.mhtplus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import android.widget.FrameLayout;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binding a library row only copies what the loader prepared: the subtitle is formatted off the main thread
+ * by {@link LibraryAdapter#formatSubtitles} and never again per bind, so scrolling allocates no date strings.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class LibraryAdapterBindTest {
+
+	private static final int ROWS = 200;
+	private static final int REBINDS = 3;
+
+	private static LibraryEntry entry(int i) {
+		return new LibraryEntry("import_" + i, "Saved page " + i, "https://example.com/" + i,
+				1700000000000L - i * 60000L, "/data/mht/import_" + i + "/page.mhtc");
+	}
+
+	@Test
+	public void formatSubtitlesFillsOnlyMissingOnes() {
+		DateFormat format = DateFormat.getDateTimeInstance();
+		LibraryEntry fresh = entry(1);
+		LibraryEntry formatted = entry(2);
+		formatted.subtitle = "kept";
+		LibraryAdapter.formatSubtitles(format, Arrays.asList(fresh, formatted));
+		assertEquals(LibraryAdapter.formatSubtitle(format, fresh), fresh.subtitle);
+		assertEquals("kept", formatted.subtitle);
+	}
+
+	@Test
+	public void bindUsesThePreparedSubtitle() {
+		List<LibraryEntry> entries = new ArrayList<>(ROWS);
+		for (int i = 0; i < ROWS; i++)
+			entries.add(entry(i));
+		LibraryAdapter.formatSubtitles(DateFormat.getDateTimeInstance(), entries);
+		LibraryEntry unprepared = entry(ROWS);
+		entries.add(unprepared);
+
+		LibraryAdapter adapter = new LibraryAdapter(null);
+		adapter.setItems(entries);
+		assertEquals(entries.size(), adapter.getItemCount());
+		FrameLayout parent = new FrameLayout(RuntimeEnvironment.getApplication());
+		LibraryAdapter.VH holder = adapter.onCreateViewHolder(parent, 0);
+
+		String[] prepared = new String[ROWS];
+		for (int i = 0; i < ROWS; i++)
+			prepared[i] = entries.get(i).subtitle;
+		// Rows scrolling back into view are bound again; each bind reuses the one prepared string
+		for (int round = 0; round < REBINDS; round++) {
+			for (int i = 0; i < ROWS; i++) {
+				adapter.onBindViewHolder(holder, i);
+				assertSame(prepared[i], entries.get(i).subtitle);
+				assertEquals(prepared[i], holder.tv2.getText().toString());
+			}
+		}
+		// Nothing is formatted during the bind, even when the loader skipped the entry
+		adapter.onBindViewHolder(holder, ROWS);
+		assertNull(unprepared.subtitle);
+	}
+}
@@ -0,0 +1,171 @@
+package com.ccko.mhtplus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+
+/**
+ * Cold library load: {@link LibraryIndex#readEntry} fanned out over the parse pool against the serial loop
+ * that built a JSONObject per meta.json, both merged into the newest-first list. The results must be the
+ * same; the timing comparison on a large synthetic tree is opt-in ({@code ./gradlew test -Pbenchmark}).
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class LibraryScanBenchmarkTest {
+
+	private static final int FOLDERS = 500;
+	private static final int BENCHMARK_FOLDERS = 10000;
+	private static final int ROUNDS = 5;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void parallelStreamingScanMatchesSerialLoop() throws Exception {
+		File[] folders = writeTree(tmp.newFolder("mht"), FOLDERS);
+		List<LibraryEntry> expected = serialScan(folders);
+		List<LibraryEntry> actual = parallelScan(folders);
+		assertEquals(FOLDERS, expected.size());
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			LibraryEntry e = expected.get(i);
+			LibraryEntry a = actual.get(i);
+			assertEquals(e.folderName, a.folderName);
+			assertEquals(e.url, a.url);
+			assertEquals(e.timestamp, a.timestamp);
+			assertEquals(e.savedPath, a.savedPath);
+		}
+	}
+
+	/**
+	 * The parallel scan has to beat the serial loop where there are cores to spread it over.
+	 */
+	@Test
+	public void parallelScanIsFasterOnSeveralCores() throws Exception {
+		assumeTrue("opt-in benchmark", Boolean.getBoolean("mhtplus.benchmark"));
+		assumeTrue("needs more than one core", Runtime.getRuntime().availableProcessors() > 1);
+		File[] folders = writeTree(tmp.newFolder("mht"), BENCHMARK_FOLDERS);
+		// Warms up both paths
+		serialScan(folders);
+		parallelScan(folders);
+
+		long serial = Long.MAX_VALUE;
+		long parallel = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			serialScan(folders);
+			serial = Math.min(serial, System.nanoTime() - start);
+			start = System.nanoTime();
+			parallelScan(folders);
+			parallel = Math.min(parallel, System.nanoTime() - start);
+		}
+		assertTrue(String.format(Locale.US, "%d folders: serial %.1f ms, parallel %.1f ms", BENCHMARK_FOLDERS,
+				serial / 1e6, parallel / 1e6), parallel < serial);
+	}
+
+	/**
+	 * meta.json files shaped like the ones MhtImporter writes.
+	 */
+	private static File[] writeTree(File base, int count) throws Exception {
+		long now = 1700000000000L;
+		for (int i = 0; i < count; i++) {
+			File dir = new File(base, String.format(Locale.US, "import_%05d", i));
+			dir.mkdirs();
+			JSONObject meta = new JSONObject();
+			meta.put("uri", "content://com.example.documents/document/" + i);
+			meta.put("path", new File(dir, "page-" + i + ".mhtc").getAbsolutePath());
+			meta.put("title", "Saved page number " + i);
+			// Shuffled so sorting has work to do
+			meta.put("timestamp", now - (i * 7919L % count) * 60000L);
+			meta.put("sha256", String.format(Locale.US, "%064x", i));
+			meta.put(LibraryIndex.KEY_ORIGINAL_SIZE, 250000 + i);
+			try (FileOutputStream out = new FileOutputStream(new File(dir, "meta.json"))) {
+				out.write(meta.toString().getBytes("UTF-8"));
+			}
+		}
+		File[] folders = base.listFiles();
+		Arrays.sort(folders);
+		return folders;
+	}
+
+	private static List<LibraryEntry> parallelScan(File[] folders) throws Exception {
+		CompletionService<LibraryEntry> completion = new ExecutorCompletionService<>(LibraryIndex.parsePool());
+		for (File f : folders)
+			completion.submit(() -> LibraryIndex.readEntry(f));
+		List<LibraryEntry> out = new ArrayList<>(folders.length);
+		for (int i = 0; i < folders.length; i++) {
+			LibraryEntry e = completion.take().get();
+			if (e != null)
+				out.add(e);
+		}
+		out.sort(LibraryIndex.NEWEST_FIRST);
+		return out;
+	}
+
+	private static List<LibraryEntry> serialScan(File[] folders) {
+		List<LibraryEntry> out = new ArrayList<>(folders.length);
+		for (File f : folders) {
+			LibraryEntry e = serialReadEntry(f);
+			if (e != null)
+				out.add(e);
+		}
+		out.sort(LibraryIndex.NEWEST_FIRST);
+		return out;
+	}
+
+	/**
+	 * The per-folder parse as it was before the parallel loader.
+	 */
+	private static LibraryEntry serialReadEntry(File f) {
+		try {
+			File meta = new File(f, "meta.json");
+			if (!meta.exists())
+				meta = new File(f, "metadata.json");
+
+			String url = "";
+			long ts = f.lastModified();
+			String savedPath = null;
+
+			if (meta.exists()) {
+				StringBuilder sb = new StringBuilder();
+				try (InputStreamReader isr = new InputStreamReader(new FileInputStream(meta), "UTF-8")) {
+					char[] buf = new char[1024];
+					int r;
+					while ((r = isr.read(buf)) > 0)
+						sb.append(buf, 0, r);
+				}
+
+				JSONObject jo = new JSONObject(sb.toString());
+				url = jo.optString("url", jo.optString("uri", ""));
+				ts = jo.optLong("timestamp", ts);
+				savedPath = jo.optString("savedPath", jo.optString("path", null));
+			}
+			if (savedPath == null)
+				return null;
+
+			File sp = new File(savedPath);
+			return new LibraryEntry(f.getName(), sp.getName(), url, ts, savedPath);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,292 @@
+package com.ccko.mhtplus;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * MhtParser on hand-written archives. Archives are written with LF line breaks and converted to CRLF where
+ * a test runs both; the parser has to give the same parts and bodies either way.
+ */
+public class MhtParserTest {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	/**
+	 * A part as the handler saw it, with its decoded body.
+	 */
+	private static final class Parsed {
+		final MhtParser.Part part;
+		final byte[] body;
+
+		Parsed(MhtParser.Part part, byte[] body) {
+			this.part = part;
+			this.body = body;
+		}
+
+		String text() {
+			return new String(body, UTF_8);
+		}
+	}
+
+	private static List<Parsed> parse(String archive) throws IOException {
+		return parse(archive.getBytes(UTF_8));
+	}
+
+	private static List<Parsed> parse(byte[] archive) throws IOException {
+		final List<Parsed> parts = new ArrayList<>();
+		MhtParser.parse(new ByteArrayInputStream(archive), (part, body) -> {
+			parts.add(new Parsed(part, readAll(body)));
+			return true;
+		});
+		return parts;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		int n;
+		while ((n = in.read(buf)) > 0)
+			out.write(buf, 0, n);
+		return out.toByteArray();
+	}
+
+	private static String crlf(String lf) {
+		return lf.replace("\n", "\r\n");
+	}
+
+	private static String archive(String... parts) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("MIME-Version: 1.0\n");
+		sb.append("Content-Type: multipart/related; type=\"text/html\"; boundary=\"----=_B\"\n\n");
+		for (String part : parts)
+			sb.append("------=_B\n").append(part);
+		sb.append("------=_B--\n");
+		return sb.toString();
+	}
+
+	@Test
+	public void crlfAndLfGiveTheSameParts() throws IOException {
+		String lf = archive(
+				"Content-Type: text/html; charset=utf-8\nContent-Location: https://example.com/\n\n"
+						+ "<p>one</p>\n<p>two</p>\n",
+				"Content-Type: text/css\nContent-ID: <style@example>\n\nbody { color: red }\n");
+
+		List<Parsed> fromLf = parse(lf);
+		List<Parsed> fromCrlf = parse(crlf(lf));
+		assertEquals(2, fromLf.size());
+		assertEquals(2, fromCrlf.size());
+
+		assertEquals("text/html", fromLf.get(0).part.contentType);
+		assertEquals("utf-8", fromLf.get(0).part.charset);
+		assertEquals("https://example.com/", fromLf.get(0).part.contentLocation);
+		assertEquals("style@example", fromLf.get(1).part.contentId);
+		// The line break in front of a delimiter belongs to the delimiter
+		assertEquals("<p>one</p>\n<p>two</p>", fromLf.get(0).text());
+		assertEquals("<p>one</p>\r\n<p>two</p>", fromCrlf.get(0).text());
+		assertEquals("body { color: red }", fromLf.get(1).text());
+		assertEquals("body { color: red }", fromCrlf.get(1).text());
+		for (int i = 0; i < 2; i++) {
+			assertEquals(fromLf.get(i).part.contentType, fromCrlf.get(i).part.contentType);
+			assertEquals(fromLf.get(i).part.contentLocation, fromCrlf.get(i).part.contentLocation);
+		}
+	}
+
+	@Test
+	public void indexedPartsReadBackFromTheFile() throws IOException {
+		String text = crlf(archive("Content-Type: text/html\n\n<p>first</p>\n",
+				"Content-Type: text/plain\nContent-Transfer-Encoding: quoted-printable\n\na=3Db\n"));
+		File file = tmp.newFile("page.mht");
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(text.getBytes(UTF_8));
+		}
+
+		List<MhtParser.Part> index;
+		try (InputStream in = new FileInputStream(file)) {
+			index = MhtParser.index(in);
+		}
+		assertEquals(2, index.size());
+		try (InputStream in = MhtParser.openPart(file, index.get(0))) {
+			assertEquals("<p>first</p>", new String(readAll(in), UTF_8));
+		}
+		try (InputStream in = MhtParser.openPart(file, index.get(1))) {
+			assertEquals("a=b", new String(readAll(in), UTF_8));
+		}
+	}
+
+	@Test
+	public void boundaryTextInsideABodyIsNotADelimiter() throws IOException {
+		String body = "before ------=_B in a line\n"
+				+ "------=_Bextra\n"
+				+ " ------=_B\n"
+				+ "after";
+		List<Parsed> parts = parse(archive("Content-Type: text/plain\n\n" + body + "\n",
+				"Content-Type: text/plain\n\nsecond\n"));
+		assertEquals(2, parts.size());
+		assertEquals(body, parts.get(0).text());
+		assertEquals("second", parts.get(1).text());
+	}
+
+	@Test
+	public void delimiterMayCarryTransportPadding() throws IOException {
+		String text = "Content-Type: multipart/related; boundary=B\n\n"
+				+ "--B \t\nContent-Type: text/plain\n\none\n"
+				+ "--B  \nContent-Type: text/plain\n\ntwo\n"
+				+ "--B-- \n";
+		List<Parsed> parts = parse(text);
+		assertEquals(2, parts.size());
+		assertEquals("one", parts.get(0).text());
+		assertEquals("two", parts.get(1).text());
+	}
+
+	@Test
+	public void missingFinalBoundaryEndsTheLastPartAtTheEndOfTheStream() throws IOException {
+		String text = "Content-Type: multipart/related; boundary=\"B\"\n\n"
+				+ "--B\nContent-Type: text/html\n\n<p>first</p>\n"
+				+ "--B\nContent-Type: text/plain\n\nlast line\n";
+		List<Parsed> parts = parse(text);
+		assertEquals(2, parts.size());
+		assertEquals("<p>first</p>", parts.get(0).text());
+		// Nothing follows, so the final line break stays in the body
+		assertEquals("last line\n", parts.get(1).text());
+	}
+
+	@Test
+	public void quotedPrintableSoftBreaksAreJoined() throws IOException {
+		String body = "Soft=\nly broken, es=3Dcaped, and a =\nsplit line.=\n\nHard break kept";
+		String expected = "Softly broken, es=caped, and a split line.\nHard break kept";
+		String text = archive("Content-Type: text/plain\nContent-Transfer-Encoding: quoted-printable\n\n" + body
+				+ "\n");
+		assertEquals(expected, parse(text).get(0).text());
+		assertEquals(expected.replace("\n", "\r\n"), parse(crlf(text)).get(0).text());
+	}
+
+	@Test
+	public void malformedQuotedPrintableEscapeIsKeptLiterally() throws IOException {
+		String text = archive("Content-Type: text/plain\nContent-Transfer-Encoding: Quoted-Printable\n\n"
+				+ "100=% sure, =G0\n");
+		assertEquals("100=% sure, =G0", parse(text).get(0).text());
+	}
+
+	@Test
+	public void base64BodiesAreDecodedAcrossLines() throws IOException {
+		byte[] data = new byte[1000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (i * 31);
+		String encoded = Base64.getMimeEncoder(76, "\n".getBytes(UTF_8)).encodeToString(data);
+		String text = archive("Content-Type: image/png\nContent-Transfer-Encoding: base64\n\n" + encoded + "\n");
+
+		assertArrayEquals(data, parse(text).get(0).body);
+		assertArrayEquals(data, parse(crlf(text)).get(0).body);
+	}
+
+	@Test
+	public void nestedMultipartsAreFlattenedInOrder() throws IOException {
+		String text = "Content-Type: multipart/related; boundary=\"OUTER\"\n\n"
+				+ "preamble\n"
+				+ "--OUTER\nContent-Type: multipart/alternative; boundary=\"INNER\"\n\n"
+				+ "--INNER\nContent-Type: text/plain\n\nplain\n"
+				+ "--INNER\nContent-Type: text/html\n\n<b>html</b>\n"
+				+ "--INNER--\n"
+				+ "inner epilogue\n"
+				+ "--OUTER\nContent-Type: image/gif\nContent-Location: a.gif\n\nGIF\n"
+				+ "--OUTER--\n"
+				+ "epilogue\n";
+		List<Parsed> parts = parse(text);
+		assertEquals(3, parts.size());
+		assertEquals("text/plain", parts.get(0).part.contentType);
+		assertEquals("plain", parts.get(0).text());
+		assertEquals("text/html", parts.get(1).part.contentType);
+		assertEquals("<b>html</b>", parts.get(1).text());
+		assertEquals("a.gif", parts.get(2).part.contentLocation);
+		assertEquals("GIF", parts.get(2).text());
+		for (int i = 0; i < parts.size(); i++)
+			assertEquals(i, parts.get(i).part.index);
+	}
+
+	@Test
+	public void unclosedNestedMultipartEndsAtTheOuterDelimiter() throws IOException {
+		String text = "Content-Type: multipart/related; boundary=\"OUTER\"\n\n"
+				+ "--OUTER\nContent-Type: multipart/alternative; boundary=\"INNER\"\n\n"
+				+ "--INNER\nContent-Type: text/plain\n\nplain\n"
+				+ "--OUTER\nContent-Type: text/css\n\ncss\n"
+				+ "--OUTER--\n";
+		List<Parsed> parts = parse(text);
+		assertEquals(2, parts.size());
+		assertEquals("plain", parts.get(0).text());
+		assertEquals("css", parts.get(1).text());
+	}
+
+	@Test
+	public void truncatedArchivesKeepWhatWasRead() throws IOException {
+		byte[] data = new byte[300];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) i;
+		String encoded = Base64.getMimeEncoder(76, "\n".getBytes(UTF_8)).encodeToString(data);
+		String full = archive("Content-Type: text/html\n\n<p>kept</p>\n",
+				"Content-Type: image/png\nContent-Transfer-Encoding: base64\n\n" + encoded + "\n");
+		byte[] bytes = full.getBytes(UTF_8);
+
+		// Cut at every length: parsing must never fail, and the first part is intact once its delimiter is in
+		int firstComplete = full.indexOf("------=_B", full.indexOf("<p>kept</p>")) + "------=_B".length();
+		for (int cut = 0; cut <= bytes.length; cut++) {
+			byte[] truncated = new byte[cut];
+			System.arraycopy(bytes, 0, truncated, 0, cut);
+			List<Parsed> parts = parse(truncated);
+			if (cut >= firstComplete + 1)
+				assertEquals("<p>kept</p>", parts.get(0).text());
+		}
+
+		// Cut inside the base64 body: the whole quanta before the cut are decoded
+		int bodyStart = full.indexOf(encoded);
+		byte[] truncated = new byte[bodyStart + 40];
+		System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+		List<Parsed> parts = parse(truncated);
+		assertEquals(2, parts.size());
+		byte[] expected = new byte[30];
+		System.arraycopy(data, 0, expected, 0, expected.length);
+		assertArrayEquals(expected, parts.get(1).body);
+	}
+
+	@Test
+	public void singlePartDocumentIsOnePart() throws IOException {
+		List<Parsed> parts = parse("Content-Type: text/html; charset=\"iso-8859-1\"\n\n<html>x</html>\n");
+		assertEquals(1, parts.size());
+		assertEquals("text/html", parts.get(0).part.contentType);
+		assertEquals("iso-8859-1", parts.get(0).part.charset);
+		assertNull(parts.get(0).part.contentLocation);
+		assertEquals("<html>x</html>\n", parts.get(0).text());
+	}
+
+	@Test
+	public void linesLongerThanASegmentAreKeptWhole() throws IOException {
+		StringBuilder line = new StringBuilder();
+		while (line.length() < MhtParser.SEGMENT_SIZE * 3)
+			line.append("0123456789");
+		// A delimiter-like run right at a segment edge must not end the body
+		line.setLength(MhtParser.SEGMENT_SIZE);
+		line.append("------=_B--");
+		List<Parsed> parts = parse(archive("Content-Type: text/plain\n\n" + line + "\n"));
+		assertEquals(1, parts.size());
+		assertEquals(line.toString(), parts.get(0).text());
+	}
+}